@@ -0,0 +1,120 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The {@link ArabicProcessor} stages: annotating single sentences and whole
+ * files, sequentially and with {@link ParallelProcessor}. By default the
+ * annotator is {@link StubAnnotator}, so that the benchmarks run without the
+ * Farasa models; -p annotator=farasa measures Farasa itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AnnotationBenchmark {
+
+  @Param({StubAnnotator.NAME})
+  public String annotator;
+
+  @Param({ArabicProcessor.DEFAULT_PATH_TO_FARASA_MODEL})
+  public String model;
+
+  /** Comma-separated short options of the layers */
+  @Param({"c,l,s,p,t"})
+  public String layers;
+
+  @Param({"4"})
+  public int threads;
+
+  @Param({"1000"})
+  public int copies;
+
+  private EnumSet<Layer> requested;
+
+  private AnnotatorFactory factory;
+
+  private Annotator single;
+
+  private List<String> sentences;
+
+  private File input;
+
+  private ParallelProcessor processor;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    requested = StubAnnotator.parseLayers(layers);
+    factory = StubAnnotator.factory(annotator, model, requested);
+    single = factory.newAnnotator();
+    sentences = Fixtures.load(Fixtures.SENTENCES);
+    input = Fixtures.toTempFile(Fixtures.SENTENCES, copies);
+    processor = new ParallelProcessor(factory, threads);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    processor.shutdown();
+    Fixtures.deleteOutputs(input);
+    input.delete();
+  }
+
+  @Benchmark
+  public void annotateSentences(Blackhole bh) throws Exception {
+    for (String sentence : sentences) {
+      bh.consume(single.annotate(sentence));
+    }
+  }
+
+  @Benchmark
+  public long annotateFile() throws Exception {
+    return ArabicProcessor.annotateFile(input.toString(), requested, single);
+  }
+
+  @Benchmark
+  public long annotateFileParallel() throws Exception {
+    AnnotationWriter writer = new AnnotationWriter(input.toString(), requested);
+    ReadFile rf = new ReadFile(input.toString());
+    try {
+      return processor.process(rf, writer);
+    } finally {
+      rf.close();
+      writer.close();
+    }
+  }
+
+  /** Writing only, with the annotations of the stub */
+  @Benchmark
+  public long writeAnnotations() throws IOException {
+    StubAnnotator stub = new StubAnnotator(requested);
+    AnnotationWriter writer = new AnnotationWriter(input.toString(), requested);
+    for (int i = 0; i < copies; i++) {
+      for (String sentence : sentences) {
+        writer.write(stub.annotate(sentence));
+      }
+    }
+    writer.close();
+    return writer.getCount();
+  }
+}
@@ -0,0 +1,111 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and writing a sentences file with {@link ReadFile} and
+ * {@link WriteFile}, and reading it with {@link MappedReadFile}. The file
+ * holds the fixture sentences repeated {@code copies} times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileIoBenchmark {
+
+  @Param({"10000"})
+  public int copies;
+
+  private File input;
+
+  private File output;
+
+  private List<String> sentences;
+
+  @Setup
+  public void setup() throws IOException {
+    input = Fixtures.toTempFile(Fixtures.SENTENCES, copies);
+    output = File.createTempFile("araproc-bench", ".out");
+    sentences = Fixtures.load(Fixtures.SENTENCES);
+  }
+
+  @TearDown
+  public void tearDown() {
+    input.delete();
+    output.delete();
+  }
+
+  @Benchmark
+  public void readFile(Blackhole bh) {
+    ReadFile rf = new ReadFile(input.toString());
+    while (rf.hasNextLine()) {
+      bh.consume(rf.nextLine());
+    }
+    rf.close();
+  }
+
+  @Benchmark
+  public void mappedReadFile(Blackhole bh) throws IOException {
+    MappedReadFile rf = new MappedReadFile(input.toString());
+    while (rf.hasNextLine()) {
+      bh.consume(rf.nextLine());
+    }
+    rf.close();
+  }
+
+  @Benchmark
+  public long mappedReadFileSkip() throws IOException {
+    MappedReadFile rf = new MappedReadFile(input.toString());
+    long lines = 0;
+    while (rf.skipLine()) {
+      lines++;
+    }
+    rf.close();
+    return lines;
+  }
+
+  @Benchmark
+  public long mappedReadFileStream() throws IOException {
+    MappedReadFile rf = new MappedReadFile(input.toString());
+    try (Stream<String> lines = rf.lines()) {
+      return lines.mapToInt(new ToIntFunction<String>() {
+        @Override
+        public int applyAsInt(String line) {
+          return line.length();
+        }
+      }).sum();
+    }
+  }
+
+  @Benchmark
+  public void writeFile() {
+    WriteFile wf = new WriteFile(output.toString());
+    for (int i = 0; i < copies; i++) {
+      for (String sentence : sentences) {
+        wf.writeLn(sentence);
+      }
+    }
+    wf.close();
+  }
+}
@@ -0,0 +1,78 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Representative OpenITI inputs for the benchmarks: lines with mARkdown,
+ * paragraphs of plain text and sentences, as found in the .sent files.
+ */
+final class Fixtures {
+
+  static final String LINES = "/fixtures/lines.txt";
+  static final String PARAGRAPHS = "/fixtures/paragraphs.txt";
+  static final String SENTENCES = "/fixtures/sentences.txt";
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param resource
+   *          one of the fixtures
+   * @return
+   *          its lines
+   */
+  static List<String> load(String resource) throws IOException {
+    InputStream in = Fixtures.class.getResourceAsStream(resource);
+    if (in == null) {
+      throw new IOException("Missing fixture " + resource);
+    }
+    List<String> lines = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      br.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Writes the fixture repeatedly into a temporary file, which is deleted on
+   * exit
+   * @param resource
+   *          one of the fixtures
+   * @param copies
+   *          number of times the fixture is repeated
+   * @return
+   *          the temporary file
+   */
+  static File toTempFile(String resource, int copies) throws IOException {
+    List<String> lines = load(resource);
+    File file = File.createTempFile("araproc-bench", ".sent");
+    file.deleteOnExit();
+    WriteFile wf = new WriteFile(file.toString());
+    for (int i = 0; i < copies; i++) {
+      for (String line : lines) {
+        wf.writeLn(line);
+      }
+    }
+    wf.close();
+    return file;
+  }
+
+  /** Deletes the files generated by an annotation run on the given input */
+  static void deleteOutputs(File input) {
+    for (Layer layer : Layer.values()) {
+      new File(input + layer.getSuffix()).delete();
+    }
+  }
+}
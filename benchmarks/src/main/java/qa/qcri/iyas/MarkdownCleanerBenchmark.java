@@ -0,0 +1,76 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * mARkdown removal: {@link MarkdownCleaner} against the original chain of
+ * {@code String.replaceAll} calls, on the lines of the fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkdownCleanerBenchmark {
+
+  private List<String> lines;
+
+  private MarkdownCleaner cleaner;
+
+  @Setup
+  public void setup() throws IOException {
+    lines = Fixtures.load(Fixtures.LINES);
+    cleaner = new MarkdownCleaner();
+  }
+
+  @Benchmark
+  public void cleaner(Blackhole bh) {
+    for (String line : lines) {
+      bh.consume(cleaner.clean(line));
+    }
+  }
+
+  @Benchmark
+  public void replaceAll(Blackhole bh) {
+    for (String line : lines) {
+      bh.consume(replaceAll(line));
+    }
+  }
+
+  /** The original chain of substitutions */
+  private static String replaceAll(String line) {
+    return line
+        .replaceAll(MarkdownCleaner.SUBJECT_PATTERN, MarkdownCleaner.SUBJECT_SUBST)
+        .replaceAll(MarkdownCleaner.HEADER_PATTERN, MarkdownCleaner.HEADER_SUBST)
+        .replaceAll(MarkdownCleaner.EDITORIAL_PATTERN, MarkdownCleaner.EDITORIAL_SUBST)
+        .replaceAll(MarkdownCleaner.DICTIONARY_PATTERN, MarkdownCleaner.DICTIONARY_SUBST)
+        .replaceAll(MarkdownCleaner.HISTORY_PATTERN, MarkdownCleaner.HISTORY_SUBST)
+        .replaceAll(MarkdownCleaner.GENERIC_PATTERN, MarkdownCleaner.GENERIC_SUBST)
+        .replaceAll(MarkdownCleaner.BIOGRAPHY_PATTERN, MarkdownCleaner.BIOGRAPHY_SUBST)
+        .replaceAll(MarkdownCleaner.PAGE_NUMBER_PATTERN, MarkdownCleaner.PAGE_NUMBER_SUBST)
+        .replaceAll(MarkdownCleaner.TAG_PARAGRAPH_BEGINS, MarkdownCleaner.PAR_DIVISOR)
+        .replaceAll(MarkdownCleaner.TAG_PARAGRAPH_CONTINUES, " ")
+        .replaceAll(MarkdownCleaner.SPACES_PATTERN, MarkdownCleaner.SPACES_SUBST)
+        .replaceAll(MarkdownCleaner.LINE_NUMBER, MarkdownCleaner.LINE_SUBST)
+        .replaceAll(MarkdownCleaner.VERSE_HEMISTICH_PATTERN,
+            MarkdownCleaner.VERSE_HEMISTICH_SUBST)
+        .replaceAll(MarkdownCleaner.MILESTONE_PATTERN, MarkdownCleaner.MILESTONE_SUBST)
+        .replaceAll(MarkdownCleaner.LOOSE_PERCENT_PATTERN,
+            MarkdownCleaner.LOOSE_PERCENT_SUBST);
+  }
+}
@@ -0,0 +1,78 @@
+package qa.qcri.iyas;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import opennlp.tools.sentdetect.SentenceModel;
+
+/**
+ * Sentence splitting of the paragraphs of the fixture, on one thread and in
+ * parallel. It needs the OpenNLP model (-p model=...).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SentenceSplitterBenchmark {
+
+  @Param({SentenceSplitter.DEFAULT_SENTENCE_MODEL})
+  public String model;
+
+  @Param({"4"})
+  public int threads;
+
+  private List<String> paragraphs;
+
+  private SentenceSplitter splitter;
+
+  private ExecutorService pool;
+
+  @Setup
+  public void setup() throws IOException {
+    paragraphs = Fixtures.load(Fixtures.PARAGRAPHS);
+    FileInputStream in = new FileInputStream(model);
+    try {
+      splitter = new SentenceSplitter(new SentenceModel(in));
+    } finally {
+      in.close();
+    }
+    pool = Executors.newFixedThreadPool(threads);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public void sequential(Blackhole bh) {
+    for (String paragraph : paragraphs) {
+      bh.consume(splitter.split(paragraph));
+    }
+  }
+
+  @Benchmark
+  public List<List<String>> parallel() throws InterruptedException {
+    return splitter.split(paragraphs, pool, threads);
+  }
+}
@@ -0,0 +1,96 @@
+package qa.qcri.iyas;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A stand-in for {@link FarasaAnnotator} that needs no model: every 
+ * whitespace-separated token is its own segment, clitic and lemma, with a 
+ * constant POS, and the tree is flat. It lets the benchmarks of the 
+ * pipeline around Farasa (reading, scheduling, writing) run on machines 
+ * without the Farasa models.
+ */
+public class StubAnnotator implements Annotator {
+
+  /** Selects this annotator in the benchmark parameters */
+  public static final String NAME = "stub";
+
+  /** Selects {@link FarasaAnnotator} in the benchmark parameters */
+  public static final String FARASA = "farasa";
+
+  private final Set<Layer> layers;
+
+  public StubAnnotator(Set<Layer> layers) {
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+  }
+
+  @Override
+  public Annotation annotate(String text) {
+    String[] tokens = text.trim().split("\\s+");
+    Annotation annotation = new Annotation();
+    StringBuilder sb = new StringBuilder();
+    for (Layer layer : layers) {
+      sb.setLength(0);
+      if (layer == Layer.TREES) {
+        sb.append("(S");
+        for (String token : tokens) {
+          sb.append(" (NOUN ").append(token).append(')');
+        }
+        sb.append(')');
+      } else {
+        for (String token : tokens) {
+          sb.append(token);
+          if (layer == Layer.POS) {
+            sb.append("/NOUN-MS");
+          }
+          sb.append(' ');
+        }
+      }
+      annotation.set(layer, sb.toString());
+    }
+    return annotation;
+  }
+
+  /**
+   * @param name
+   *          {@link #NAME} or {@link #FARASA}
+   * @param pathToModel
+   *          path to the Farasa parser model (ignored by the stub)
+   * @param layers
+   *          the layers to compute
+   * @return
+   *          a factory of the chosen annotator
+   */
+  static AnnotatorFactory factory(final String name, final String pathToModel,
+      final Set<Layer> layers) {
+    if (! NAME.equals(name) && ! FARASA.equals(name)) {
+      throw new IllegalArgumentException("Unknown annotator " + name);
+    }
+    return new AnnotatorFactory() {
+      @Override
+      public Annotator newAnnotator() throws Exception {
+        return NAME.equals(name)
+            ? new StubAnnotator(layers)
+            : new FarasaAnnotator(pathToModel, layers);
+      }
+    };
+  }
+
+  /**
+   * @param option
+   *          comma-separated short options of the layers (e.g., "s,p,t")
+   */
+  static EnumSet<Layer> parseLayers(String option) {
+    EnumSet<Layer> layers = EnumSet.noneOf(Layer.class);
+    for (String o : option.split(",")) {
+      for (Layer layer : Layer.values()) {
+        if (layer.getOption().equals(o.trim())) {
+          layers.add(layer);
+        }
+      }
+    }
+    return layers;
+  }
+}
@@ -0,0 +1,48 @@
+package qa.qcri.iyas;
+
+/**
+ * One sentence of a stream (see {@link AnnotationStream}) together with its
+ * position in the input and its annotation.
+ */
+public class AnnotatedSentence {
+
+  private final long index;
+
+  private final String text;
+
+  private final Annotation annotation;
+
+  AnnotatedSentence(long index, String text, Annotation annotation) {
+    this.index = index;
+    this.text = text;
+    this.annotation = annotation;
+  }
+
+  /** @return the position of the sentence in the input, from 0 */
+  public long getIndex() {
+    return index;
+  }
+
+  /** @return the sentence, as read */
+  public String getText() {
+    return text;
+  }
+
+  public Annotation getAnnotation() {
+    return annotation;
+  }
+
+  /**
+   * @param layer
+   * @return
+   *        the line of the given layer or null if it was not computed
+   */
+  public String get(Layer layer) {
+    return annotation.get(layer);
+  }
+
+  @Override
+  public String toString() {
+    return index + "\t" + text;
+  }
+}
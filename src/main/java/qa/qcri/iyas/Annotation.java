@@ -0,0 +1,93 @@
+package qa.qcri.iyas;
+
+import java.util.Set;
+
+/**
+ * The output lines computed for one sentence, one per requested {@link Layer}.
+ * Each line is stored exactly as it is written to the layer file, without the 
+ * trailing line break. An annotation cannot be modified once it has been 
+ * returned by an {@link Annotator}, so it can be shared (e.g., by caches).
+ */
+public class Annotation {
+  
+  private final String[] lines = new String[Layer.values().length];
+  
+  private boolean timedOut;
+  
+  /** Tokens of every chunk; null if the sentence was not cut */
+  private int[] chunks;
+  
+  /**
+   * @param layers
+   * @return
+   *        the placeholder of a sentence that ran out of time: an empty line 
+   *        for every layer
+   */
+  static Annotation timedOut(Set<Layer> layers) {
+    Annotation annotation = new Annotation();
+    for (Layer layer : layers) {
+      annotation.set(layer, "");
+    }
+    annotation.timedOut = true;
+    return annotation;
+  }
+  
+  /**
+   * @param layer
+   * @return
+   *        the line for the given layer or null if it was not computed
+   */
+  public String get(Layer layer) {
+    return lines[layer.ordinal()];
+  }
+  
+  /**
+   * @param layer
+   * @return
+   *        true if the line for the given layer has been computed
+   */
+  public boolean has(Layer layer) {
+    return lines[layer.ordinal()] != null;
+  }
+  
+  /**
+   * @return
+   *        true if this is the placeholder of a sentence that was not 
+   *        annotated because it ran out of time (see {@link DeadlineAnnotator})
+   */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+  
+  /**
+   * @return
+   *        the number of tokens of every chunk, in order, if the sentence was 
+   *        too long and was annotated in chunks (see {@link SentenceChunker}); 
+   *        null otherwise
+   */
+  public int[] getChunks() {
+    return chunks == null ? null : chunks.clone();
+  }
+  
+  void setChunks(int[] chunks) {
+    this.chunks = chunks;
+  }
+  
+  void set(Layer layer, String line) {
+    lines[layer.ordinal()] = line;
+  }
+  
+  /**
+   * @return
+   *        the total number of characters of the computed lines 
+   */
+  public int length() {
+    int length = 0;
+    for (String line : lines) {
+      if (line != null) {
+        length += line.length();
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,548 @@
+package qa.qcri.iyas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the models loaded and annotates text sent over HTTP, so that other
+ * jobs do not pay the startup of the JVM and the models for every request.
+ * The server only listens on the loopback interface.
+ *
+ * <ul>
+ * <li>{@code POST /annotate[?layers=s,p]} takes one sentence per line
+ * (UTF-8) and returns a JSON array with one object per sentence, whose keys
+ * are the long names of the layers (e.g., {"segments": "...", "pos": "..."}).
+ * By default, all the served layers are returned. The sentences that ran
+ * out of time have empty layers and {"timeout": true}.</li>
+ * <li>{@code GET /stats} returns the queue depth, the throughput and the
+ * latencies, one "name value" pair per line.</li>
+ * </ul>
+ *
+ * The sentences of all the concurrent requests go into one bounded queue.
+ * Every worker has its own {@link Annotator} and takes the sentences in
+ * batches, which it hands to the annotator together (see
+ * {@link Annotator#annotate(List)}), so a burst of small requests is spread
+ * over all the workers without contention on the queue. When the queue is
+ * full, a request waits for room; it is rejected with 503 if it cannot be
+ * queued within {@value #ENQUEUE_TIMEOUT} seconds. A request whose next
+ * sentence is not ready within {@value #RESULT_TIMEOUT} seconds, e.g.
+ * because an annotator hangs, is answered with 504.
+ */
+public class AnnotationServer {
+
+  /** Sentences taken from the queue at once by a worker */
+  public static final int DEFAULT_BATCH_SIZE = 8;
+
+  /** Sentences queued per worker */
+  private static final int QUEUE_CAPACITY_PER_THREAD = 256;
+
+  /** Seconds a request waits for room in the queue before it is rejected */
+  private static final int ENQUEUE_TIMEOUT = 30;
+
+  /** Seconds a request waits for each of its sentences before giving up */
+  private static final int RESULT_TIMEOUT = 600;
+
+  private static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+
+  private static final String PATH_ANNOTATE = "/annotate";
+  private static final String PATH_STATS = "/stats";
+
+  private static final String PARAM_LAYERS = "layers=";
+
+  private static final String CONTENT_TYPE_JSON = "application/json; charset=utf-8";
+  private static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+
+  private final AnnotatorFactory factory;
+
+  private final Set<Layer> layers;
+
+  private final int threads;
+
+  private final int batchSize;
+
+  private final BlockingQueue<Job> queue;
+
+  private final List<Annotator> annotators = new ArrayList<Annotator>();
+
+  private ExecutorService workers;
+
+  private ExecutorService handlers;
+
+  private HttpServer server;
+
+  private volatile boolean running;
+
+  private final long started = System.nanoTime();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong sentences = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
+  private final LatencyHistogram requestLatency = new LatencyHistogram();
+  private final LatencyHistogram queueLatency = new LatencyHistogram();
+  private final LatencyHistogram sentenceLatency = new LatencyHistogram();
+
+  /**
+   * @param factory
+   *          creates one annotator per worker
+   * @param layers
+   *          the layers computed by the annotators
+   * @param threads
+   *          number of workers
+   */
+  public AnnotationServer(AnnotatorFactory factory, Set<Layer> layers, int threads) {
+    this(factory, layers, threads, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param factory
+   *          creates one annotator per worker
+   * @param layers
+   *          the layers computed by the annotators
+   * @param threads
+   *          number of workers
+   * @param batchSize
+   *          maximum number of sentences taken from the queue at once
+   */
+  public AnnotationServer(AnnotatorFactory factory, Set<Layer> layers, int threads,
+      int batchSize) {
+    if (threads < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("The threads and the batch size must be positive");
+    }
+    this.factory = factory;
+    this.layers = EnumSet.copyOf(layers);
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<Job>(threads * QUEUE_CAPACITY_PER_THREAD);
+  }
+
+  private static class Job {
+    final String text;
+    final long enqueued = System.nanoTime();
+    final CompletableFuture<Annotation> result = new CompletableFuture<Annotation>();
+
+    Job(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * Creates the annotators (i.e., loads the models) and starts listening
+   * @param port
+   *          the port on the loopback interface
+   */
+  public void start(int port) throws Exception {
+    for (int i = annotators.size(); i < threads; i++) {
+      annotators.add(factory.newAnnotator());
+    }
+    running = true;
+    workers = Executors.newFixedThreadPool(threads);
+    for (final Annotator annotator : annotators) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          work(annotator);
+        }
+      });
+    }
+    handlers = Executors.newCachedThreadPool();
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(PATH_ANNOTATE, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleAnnotate(exchange);
+      }
+    });
+    server.createContext(PATH_STATS, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleStats(exchange);
+      }
+    });
+    server.setExecutor(handlers);
+    server.start();
+  }
+
+  /** @return the port the server listens to */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops accepting requests, waits a few seconds for the ongoing ones,
+   * stops the workers and closes their annotators; a worker still busy after
+   * that keeps its annotator
+   */
+  public void stop() {
+    if (server == null) {
+      return;
+    }
+    server.stop(5);
+    running = false;
+    handlers.shutdown();
+    workers.shutdown();
+    boolean terminated = false;
+    try {
+      terminated = workers.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (terminated) {
+      for (Annotator annotator : annotators) {
+        try {
+          annotator.close();
+        } catch (IOException e) {
+          System.err.println("An annotator could not be closed: " + e.getMessage());
+        }
+      }
+      // the next start creates new ones
+      annotators.clear();
+    }
+    for (Job job : new ArrayList<Job>(queue)) {
+      job.result.completeExceptionally(new IllegalStateException("The server stopped"));
+    }
+    queue.clear();
+    server = null;
+    System.err.println("Served " + requests.get() + " requests (" + sentences.get()
+        + " sentences); latency: " + requestLatency.getReport());
+  }
+
+  private void work(Annotator annotator) {
+    List<Job> batch = new ArrayList<Job>(batchSize);
+    List<Job> live = new ArrayList<Job>(batchSize);
+    List<String> texts = new ArrayList<String>(batchSize);
+    while (running) {
+      try {
+        Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        batches.incrementAndGet();
+        long start = System.nanoTime();
+        for (Job job : batch) {
+          // unless cancelled along with its request
+          if (! job.result.isDone()) {
+            queueLatency.record(start - job.enqueued);
+            live.add(job);
+            texts.add(job.text);
+          }
+        }
+        if (! live.isEmpty()) {
+          annotate(annotator, live, texts);
+          // the share of the batch of every sentence
+          long latency = (System.nanoTime() - start) / live.size();
+          for (int i = 0; i < live.size(); i++) {
+            sentenceLatency.record(latency);
+          }
+        }
+        batch.clear();
+        live.clear();
+        texts.clear();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Annotates the jobs as one batch; if it fails, one by one, so that only
+   * the sentences that fail get the error
+   */
+  private static void annotate(Annotator annotator, List<Job> jobs, List<String> texts) {
+    try {
+      List<Annotation> annotations = annotator.annotate(texts);
+      for (int i = 0; i < jobs.size(); i++) {
+        jobs.get(i).result.complete(annotations.get(i));
+      }
+      return;
+    } catch (Throwable e) {
+      if (jobs.size() == 1) {
+        jobs.get(0).result.completeExceptionally(e);
+        return;
+      }
+    }
+    for (Job job : jobs) {
+      try {
+        job.result.complete(annotator.annotate(job.text));
+      } catch (Throwable e) {
+        job.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void handleAnnotate(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    requests.incrementAndGet();
+    try {
+      if (! "POST".equals(exchange.getRequestMethod())) {
+        reply(exchange, 405, CONTENT_TYPE_TEXT, "Use POST with one sentence per line\n");
+        return;
+      }
+      Set<Layer> requested = parseLayers(exchange.getRequestURI());
+      if (requested == null) {
+        reply(exchange, 400, CONTENT_TYPE_TEXT,
+            "The layers must be a comma-separated subset of " + layers + "\n");
+        return;
+      }
+      String body = readBody(exchange.getRequestBody());
+      if (body == null) {
+        reply(exchange, 413, CONTENT_TYPE_TEXT,
+            "The request cannot exceed " + MAX_REQUEST_BYTES + " bytes\n");
+        return;
+      }
+      List<String> lines = splitLines(body);
+      List<Job> jobs = new ArrayList<Job>(lines.size());
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ENQUEUE_TIMEOUT);
+      for (String line : lines) {
+        Job job = new Job(line);
+        if (! queue.offer(job, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          break;
+        }
+        jobs.add(job);
+      }
+      if (jobs.size() < lines.size()) {
+        for (Job job : jobs) {
+          job.result.cancel(false);
+        }
+        rejected.incrementAndGet();
+        reply(exchange, 503, CONTENT_TYPE_TEXT, "The server is busy; try again later\n");
+        return;
+      }
+      StringBuilder json = new StringBuilder("[");
+      for (int i = 0; i < jobs.size(); i++) {
+        Annotation annotation;
+        try {
+          annotation = jobs.get(i).result.get(RESULT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+          for (Job job : jobs) {
+            job.result.cancel(false);
+          }
+          timedOut.incrementAndGet();
+          reply(exchange, 504, CONTENT_TYPE_TEXT, "Sentence " + (i + 1)
+              + " was not annotated within " + RESULT_TIMEOUT + " seconds\n");
+          return;
+        }
+        json.append(i == 0 ? "\n" : ",\n");
+        appendJson(json, annotation, requested);
+      }
+      json.append("\n]\n");
+      sentences.addAndGet(jobs.size());
+      reply(exchange, 200, CONTENT_TYPE_JSON, json.toString());
+    } catch (ExecutionException e) {
+      failed.incrementAndGet();
+      reply(exchange, 500, CONTENT_TYPE_TEXT,
+          "Annotation failed: " + e.getCause() + "\n");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed.incrementAndGet();
+      reply(exchange, 500, CONTENT_TYPE_TEXT, "Interrupted\n");
+    } finally {
+      requestLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  /** @return the layers requested in the query, or null if not valid */
+  private Set<Layer> parseLayers(URI uri) {
+    String query = uri.getRawQuery();
+    if (query == null) {
+      return layers;
+    }
+    for (String parameter : query.split("&")) {
+      if (! parameter.startsWith(PARAM_LAYERS)) {
+        continue;
+      }
+      Set<Layer> requested = EnumSet.noneOf(Layer.class);
+      for (String name : parameter.substring(PARAM_LAYERS.length()).split(",|%2C")) {
+        Layer layer = findLayer(name);
+        if (layer == null || ! layers.contains(layer)) {
+          return null;
+        }
+        requested.add(layer);
+      }
+      return requested;
+    }
+    return layers;
+  }
+
+  private static Layer findLayer(String name) {
+    for (Layer layer : Layer.values()) {
+      if (layer.getOption().equals(name) || layer.getLongOption().equals(name)) {
+        return layer;
+      }
+    }
+    return null;
+  }
+
+  /** @return the body as text, or null if it is too large */
+  private static String readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    try {
+      while ((n = in.read(buffer)) > 0) {
+        if (body.size() + n > MAX_REQUEST_BYTES) {
+          return null;
+        }
+        body.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /** @return the lines of the text, without the empty one after the last break */
+  private static List<String> splitLines(String text) {
+    List<String> lines = new ArrayList<String>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+      if (end < 0) {
+        end = text.length();
+      }
+      int stop = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+      lines.add(text.substring(start, stop));
+      start = end + 1;
+    }
+    return lines;
+  }
+
+  private static void appendJson(StringBuilder json, Annotation annotation,
+      Set<Layer> requested) {
+    json.append('{');
+    boolean first = true;
+    for (Layer layer : requested) {
+      if (! first) {
+        json.append(", ");
+      }
+      first = false;
+      json.append('"').append(layer.getLongOption()).append("\": ");
+      appendJsonString(json, annotation.get(layer));
+    }
+    if (annotation.isTimedOut()) {
+      json.append(first ? "" : ", ").append("\"timeout\": true");
+    }
+    json.append('}');
+  }
+
+  private static void appendJsonString(StringBuilder json, String text) {
+    if (text == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+  private void handleStats(HttpExchange exchange) throws IOException {
+    exchange.getRequestBody().close();
+    reply(exchange, 200, CONTENT_TYPE_TEXT, getStats());
+  }
+
+  /**
+   * @return
+   *        the state of the queue, the counters and the latencies (in ms),
+   *        one "name value" pair per line
+   */
+  public String getStats() {
+    StringBuilder stats = new StringBuilder();
+    line(stats, "uptime_s", (System.nanoTime() - started) / 1000000000L);
+    line(stats, "workers", threads);
+    line(stats, "queue_depth", queue.size());
+    line(stats, "queue_capacity", queue.size() + queue.remainingCapacity());
+    line(stats, "requests", requests.get());
+    line(stats, "rejected", rejected.get());
+    line(stats, "failed", failed.get());
+    line(stats, "timed_out", timedOut.get());
+    line(stats, "sentences", sentences.get());
+    long batchCount = batches.get();
+    line(stats, "batches", batchCount);
+    line(stats, "mean_batch_size", String.format("%.2f",
+        batchCount == 0 ? 0.0 : (double) sentenceLatency.getCount() / batchCount));
+    latencies(stats, "request", requestLatency);
+    latencies(stats, "queue", queueLatency);
+    latencies(stats, "sentence", sentenceLatency);
+    return stats.toString();
+  }
+
+  private static void line(StringBuilder stats, String name, Object value) {
+    stats.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void latencies(StringBuilder stats, String name,
+      LatencyHistogram histogram) {
+    line(stats, name + "_ms_mean", String.format("%.3f", histogram.getMean() / 1000));
+    line(stats, name + "_ms_p50", String.format("%.3f", histogram.getPercentile(0.5) / 1000.0));
+    line(stats, name + "_ms_p95", String.format("%.3f", histogram.getPercentile(0.95) / 1000.0));
+    line(stats, name + "_ms_p99", String.format("%.3f", histogram.getPercentile(0.99) / 1000.0));
+    line(stats, name + "_ms_max", String.format("%.3f", histogram.getMax() / 1000.0));
+  }
+
+  private static void reply(HttpExchange exchange, int status, String contentType,
+      String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package qa.qcri.iyas;
+
+/**
+ * Where the {@link Annotation}s of a file are written, one per sentence and 
+ * in input order: one text file per layer ({@link AnnotationWriter}) or a 
+ * single binary file ({@link BinaryAnnotationWriter}).
+ */
+public interface AnnotationSink {
+
+  /**
+   * Writes the next sentence
+   * @param annotation
+   *          the annotation of the next sentence
+   */
+  void write(Annotation annotation);
+  
+  /** Pushes the sentences written so far to disk */
+  void flush();
+  
+  /** @return the number of sentences written so far */
+  long getCount();
+  
+  void close();
+  
+}
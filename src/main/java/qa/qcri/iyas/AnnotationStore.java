@@ -0,0 +1,804 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A persistent store of sentence annotations, so that re-processing a mostly
+ * unchanged corpus (e.g., a new OpenITI release) only calls Farasa for the
+ * sentences never seen before. Every entry is keyed by a 128-bit hash of the
+ * model identity and the sentence (see {@link #key(String, String)}).
+ *
+ * The store is a single append-only file: a header followed by one record
+ * per entry, each with its length and its CRC32. The records present at
+ * opening time are read from memory-mapped regions of the file and the newer
+ * ones with positional reads. The index (key to offset, see
+ * {@link StoreIndex}) is saved next to the store when it is closed and mapped
+ * too when it is opened again, so only the records appended since then are
+ * scanned and kept on the heap, at some 20 to 30 bytes each; the first time,
+ * or if the saved index does not match the store, the whole file is scanned.
+ * A truncated or corrupt tail, left by a killed run, is dropped when it is
+ * found. A corrupt record followed by more data cannot come from a killed
+ * run: it is reported, and moved together with everything after it to a
+ * side file (the store path plus {@link #CORRUPT_SUFFIX}) before the store
+ * is cut there.
+ *
+ * New entries are buffered and appended in batches while holding an exclusive
+ * lock on the file, so several worker threads, and several processes with
+ * their own instance, can fill the same store. Only one instance per file
+ * can be open in a JVM (share it among the threads).
+ *
+ * If the same sentence is stored twice, e.g. with different layers, the last
+ * record wins. {@link #compact(boolean)} rewrites the file with the live
+ * records only; it must not run while other processes use the store. The
+ * keys looked up or added are only remembered, for {@code compact(true)},
+ * if the store is opened with {@code trackUsage}.
+ */
+public class AnnotationStore {
+
+  private static final byte[] MAGIC = "ARAPROC-STORE".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int VERSION = 1;
+
+  /** Suffix of the file that keeps the bytes cut after a corrupt record */
+  public static final String CORRUPT_SUFFIX = ".corrupt";
+
+  private static final int HEADER_LENGTH = MAGIC.length + 4;
+
+  /** Length and CRC of every record */
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private static final int KEY_LENGTH = 16;
+
+  /** Largest record accepted when reading, to detect garbage lengths */
+  private static final int MAX_RECORD_LENGTH = 1 << 28;
+
+  /** Size of every memory-mapped region */
+  private static final long REGION_SIZE = 1L << 30;
+
+  /** Buffered bytes that trigger an append to the file */
+  private static final int FLUSH_BYTES = 1 << 20;
+
+  private static final String COMPACT_SUFFIX = ".compact";
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final File file;
+
+  private RandomAccessFile raf;
+
+  private FileChannel channel;
+
+  /** Read-only views of the file as it was when opened */
+  private MappedByteBuffer[] regions;
+
+  /** Bytes covered by the regions */
+  private long mapped;
+
+  /** Offset of the last record of every key in the file */
+  private StoreIndex index;
+
+  /** Whether the index file must be rewritten even if no entry was added */
+  private boolean staleIndex;
+
+  /** End of the records of the file in the index */
+  private long scanned;
+
+  /** Offset of the last record in the index; -1 if none */
+  private long lastRecord;
+
+  /** Length and CRC of that record */
+  private long lastHeader;
+
+  /** Records not yet appended to the file */
+  private final Map<HashCode, Annotation> pending = new HashMap<HashCode, Annotation>();
+
+  /** Offset of every pending record within the buffer */
+  private final Map<HashCode, Integer> pendingOffsets = new LinkedHashMap<HashCode, Integer>();
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  /** Keys read or written since the store was opened; null if not tracked */
+  private final LongTable used;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong added = new AtomicLong();
+
+  /**
+   * Opens the store, creating it if it does not exist
+   * @param file
+   *          the store file
+   */
+  public AnnotationStore(File file) throws IOException {
+    this(file, false);
+  }
+
+  /**
+   * Opens the store, creating it if it does not exist
+   * @param file
+   *          the store file
+   * @param trackUsage
+   *          whether to remember the keys looked up or added, which
+   *          {@link #compact(boolean)} needs to keep only those
+   */
+  public AnnotationStore(File file, boolean trackUsage) throws IOException {
+    this.file = file;
+    this.used = trackUsage ? new LongTable() : null;
+    open();
+  }
+
+  private void open() throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    FileLock lock = channel.lock();
+    try {
+      if (channel.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).putInt(VERSION).flip();
+        channel.write(header, 0);
+      }
+      checkHeader();
+      index = loadIndex();
+      staleIndex = index == null;
+      if (index == null) {
+        index = new StoreIndex();
+        scanned = HEADER_LENGTH;
+        lastRecord = -1;
+        lastHeader = 0;
+      } else {
+        scanned = index.getCovered();
+        lastRecord = index.getLastRecord();
+        lastHeader = index.getLastHeader();
+      }
+      catchUp();
+      map(scanned);
+    } finally {
+      lock.release();
+    }
+  }
+
+  private void checkHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    try {
+      readFully(channel, header, 0);
+    } catch (EOFException e) {
+      throw new IOException(file + " is not an annotation store");
+    }
+    byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (! Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+      throw new IOException(file + " is not an annotation store");
+    }
+  }
+
+  /**
+   * @return
+   *        the saved index, if it matches the store: the last record it
+   *        covers is still there; null otherwise
+   */
+  private StoreIndex loadIndex() throws IOException {
+    StoreIndex saved = StoreIndex.load(StoreIndex.getFile(file));
+    if (saved == null) {
+      return null;
+    }
+    long covered = saved.getCovered();
+    long last = saved.getLastRecord();
+    boolean valid;
+    if (covered < HEADER_LENGTH || covered > channel.size()) {
+      valid = false;
+    } else if (last < 0) {
+      valid = covered == HEADER_LENGTH;
+    } else {
+      long value = readRecordHeader(last);
+      valid = value == saved.getLastHeader()
+          && last + RECORD_HEADER_LENGTH + (value >>> 32) == covered;
+    }
+    if (! valid) {
+      System.err.println("The index of " + file + " is out of date; rebuilding it");
+      return null;
+    }
+    return saved;
+  }
+
+  /**
+   * Indexes the records appended since the last scan, by this or other
+   * processes, and drops an incomplete tail. The file must be locked.
+   */
+  private void catchUp() throws IOException {
+    final long[] last = {-1};
+    long end = scan(scanned, new StoreIndex.Visitor() {
+      @Override
+      public void visit(long key, long offset) {
+        index.put(key, offset);
+        last[0] = offset;
+      }
+    });
+    if (last[0] >= 0) {
+      lastRecord = last[0];
+      lastHeader = readRecordHeader(lastRecord);
+    }
+    long size = channel.size();
+    if (end < size) {
+      long next = nextRecord(end);
+      if (next < 0) {
+        System.err.println("Dropping " + (size - end)
+            + " bytes of incomplete records from " + file);
+      } else {
+        moveAside(end, next, size);
+      }
+      channel.truncate(end);
+    }
+    scanned = end;
+  }
+
+  /**
+   * @param offset
+   *          the offset of a record that is not valid
+   * @return
+   *          the offset of the record after it, if there is data after it;
+   *          -1 if it is the last thing in the file: it runs past the end,
+   *          or its length is impossible and only zeros follow (blocks
+   *          allocated but never written before a crash)
+   */
+  private long nextRecord(long offset) throws IOException {
+    long size = channel.size();
+    if (size - offset < RECORD_HEADER_LENGTH) {
+      return -1;
+    }
+    long length = readRecordHeader(offset) >> 32;
+    if (length >= KEY_LENGTH + 1 && length <= MAX_RECORD_LENGTH) {
+      long next = offset + RECORD_HEADER_LENGTH + length;
+      return next >= size ? -1 : next;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    for (long position = offset; position < size; position += buffer.limit()) {
+      buffer.clear();
+      if (channel.read(buffer, position) < 0) {
+        break;
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        if (buffer.get() != 0) {
+          // with an unknown length, the next record is not known either
+          return offset;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copies the bytes from a corrupt record to the end of the file to a side
+   * file and reports the records that are lost with them
+   * @param next
+   *          the offset after the corrupt record, as its header says; the
+   *          offset of the record itself if its length is not known
+   */
+  private void moveAside(long offset, long next, long size) throws IOException {
+    File aside = new File(file.getPath() + CORRUPT_SUFFIX);
+    for (int i = 1; aside.exists(); i++) {
+      aside = new File(file.getPath() + CORRUPT_SUFFIX + "." + i);
+    }
+    FileOutputStream out = new FileOutputStream(aside);
+    try {
+      FileChannel target = out.getChannel();
+      for (long position = offset; position < size;) {
+        position += channel.transferTo(position, size - position, target);
+      }
+      target.force(true);
+    } finally {
+      out.close();
+    }
+    final long[] valid = new long[1];
+    if (next > offset) {
+      scan(next, new StoreIndex.Visitor() {
+        @Override
+        public void visit(long key, long record) {
+          valid[0]++;
+        }
+      });
+    }
+    System.err.println("Corrupt record at byte " + offset + " of " + file
+        + (next > offset
+            ? "; it and the " + valid[0] + " valid records after it"
+            : "; it and an unknown number of records after it")
+        + " (" + (size - offset) + " bytes) are lost from the store and "
+        + "moved to " + aside);
+  }
+
+  /** @return the length and the CRC of the record at the offset */
+  private long readRecordHeader(long offset) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    readFully(channel, header, offset);
+    return header.getLong();
+  }
+
+  /**
+   * Visits the records from the given offset on, until the first one that
+   * is not valid
+   * @return
+   *          the end of the last valid record
+   */
+  private long scan(long start, StoreIndex.Visitor visitor) throws IOException {
+    if (start >= channel.size()) {
+      return start;
+    }
+    // read through the channel of the store, and not closed: closing
+    // another descriptor of the file would release the lock of the process
+    channel.position(start);
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+    long offset = start;
+    CRC32 crc = new CRC32();
+    byte[] payload = new byte[1024];
+    while (true) {
+      int length;
+      int checksum;
+      try {
+        length = in.readInt();
+        checksum = in.readInt();
+      } catch (EOFException e) {
+        return offset;
+      }
+      if (length < KEY_LENGTH + 1 || length > MAX_RECORD_LENGTH) {
+        return offset;
+      }
+      if (payload.length < length) {
+        payload = new byte[Math.max(length, payload.length * 2)];
+      }
+      if (! readFully(in, payload, length)) {
+        return offset;
+      }
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        return offset;
+      }
+      visitor.visit(shortKey(payload), offset);
+      offset += RECORD_HEADER_LENGTH + length;
+    }
+  }
+
+  /** @return the first 64 bits of the key, as {@link HashCode#asLong()} */
+  private static long shortKey(byte[] key) {
+    return ByteBuffer.wrap(key, 0, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  private static boolean readFully(InputStream in, byte[] bytes, int length)
+      throws IOException {
+    int read = 0;
+    while (read < length) {
+      int n = in.read(bytes, read, length - read);
+      if (n < 0) {
+        return false;
+      }
+      read += n;
+    }
+    return true;
+  }
+
+  private void map(long size) throws IOException {
+    List<MappedByteBuffer> list = new ArrayList<MappedByteBuffer>();
+    for (long start = 0; start < size; start += REGION_SIZE) {
+      list.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(REGION_SIZE, size - start)));
+    }
+    regions = list.toArray(new MappedByteBuffer[list.size()]);
+    mapped = size;
+  }
+
+  /**
+   * @param model
+   *          the identity of the models, e.g. from {@link #modelIdentity(String)}
+   * @param text
+   *          one sentence
+   * @return
+   *          the key of the sentence in the store
+   */
+  public static HashCode key(String model, String text) {
+    return HASH.newHasher()
+        .putString(model, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(text, StandardCharsets.UTF_8)
+        .hash();
+  }
+
+  /**
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @return
+   *          the path together with the size of the model, so that replacing
+   *          the model in place does not reuse the old annotations
+   */
+  public static String modelIdentity(String pathToModel) {
+    File model = new File(pathToModel);
+    return model.isFile()
+        ? pathToModel + ":" + model.length()
+        : pathToModel;
+  }
+
+  /**
+   * @param key
+   *          the key of the sentence
+   * @return
+   *          the stored annotation, with the layers it was stored with, or
+   *          null if the sentence is not in the store
+   */
+  public Annotation get(HashCode key) throws IOException {
+    long offset;
+    MappedByteBuffer[] regions;
+    long mapped;
+    FileChannel channel;
+    synchronized (this) {
+      if (used != null) {
+        used.put(key.asLong(), 0);
+      }
+      Annotation annotation = pending.get(key);
+      if (annotation != null) {
+        hits.incrementAndGet();
+        return annotation;
+      }
+      offset = index.get(key.asLong());
+      if (offset < 0) {
+        misses.incrementAndGet();
+        return null;
+      }
+      regions = this.regions;
+      mapped = this.mapped;
+      channel = this.channel;
+    }
+    Annotation annotation = decode(read(offset, regions, mapped, channel), key);
+    if (annotation == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return annotation;
+  }
+
+  /** @return the payload of the record at the given offset, or null if corrupt */
+  private static ByteBuffer read(long offset, MappedByteBuffer[] regions,
+      long mapped, FileChannel channel) throws IOException {
+    ByteBuffer header = slice(offset, RECORD_HEADER_LENGTH, regions, mapped);
+    if (header == null) {
+      header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+      readFully(channel, header, offset);
+    }
+    int length = header.getInt();
+    int checksum = header.getInt();
+    long start = offset + RECORD_HEADER_LENGTH;
+    ByteBuffer payload = slice(start, length, regions, mapped);
+    if (payload == null) {
+      payload = ByteBuffer.allocate(length);
+      readFully(channel, payload, start);
+    }
+    CRC32 crc = new CRC32();
+    byte[] bytes = new byte[length];
+    payload.get(bytes);
+    crc.update(bytes, 0, length);
+    return (int) crc.getValue() == checksum
+        ? ByteBuffer.wrap(bytes)
+        : null;
+  }
+
+  /**
+   * @return
+   *        a view of the given bytes if they are within a single mapped
+   *        region; null otherwise
+   */
+  private static ByteBuffer slice(long offset, int length,
+      MappedByteBuffer[] regions, long mapped) {
+    if (offset + length > mapped) {
+      return null;
+    }
+    int region = (int) (offset / REGION_SIZE);
+    long start = offset - region * REGION_SIZE;
+    if (start + length > REGION_SIZE) {
+      return null;
+    }
+    ByteBuffer view = regions[region].duplicate();
+    view.position((int) start);
+    view.limit((int) start + length);
+    return view;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  /**
+   * @return
+   *        the annotation in the payload; null if it is corrupt or belongs
+   *        to another key with the same first 64 bits
+   */
+  private static Annotation decode(ByteBuffer payload, HashCode key) {
+    if (payload == null) {
+      return null;
+    }
+    byte[] stored = new byte[KEY_LENGTH];
+    payload.get(stored);
+    if (! Arrays.equals(stored, key.asBytes())) {
+      return null;
+    }
+    int mask = payload.get();
+    Annotation annotation = new Annotation();
+    for (Layer layer : Layer.values()) {
+      if ((mask & (1 << layer.ordinal())) != 0) {
+        byte[] line = new byte[payload.getInt()];
+        payload.get(line);
+        annotation.set(layer, new String(line, StandardCharsets.UTF_8));
+      }
+    }
+    return annotation;
+  }
+
+  private static void encode(HashCode key, Annotation annotation,
+      DataOutputStream out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.write(key.asBytes());
+    int mask = 0;
+    for (Layer layer : Layer.values()) {
+      if (annotation.has(layer)) {
+        mask |= 1 << layer.ordinal();
+      }
+    }
+    payload.writeByte(mask);
+    for (Layer layer : Layer.values()) {
+      if (annotation.has(layer)) {
+        byte[] line = annotation.get(layer).getBytes(StandardCharsets.UTF_8);
+        payload.writeInt(line.length);
+        payload.write(line);
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt(bytes.size());
+    out.writeInt((int) crc.getValue());
+    bytes.writeTo(out);
+  }
+
+  /**
+   * Stores the annotation of a sentence, replacing the previous one if any.
+   * It is written to the file with the next batch.
+   * @param key
+   *          the key of the sentence
+   * @param annotation
+   *          the annotation to store
+   */
+  public synchronized void put(HashCode key, Annotation annotation) throws IOException {
+    pendingOffsets.remove(key);
+    pendingOffsets.put(key, buffer.size());
+    pending.put(key, annotation);
+    if (used != null) {
+      used.put(key.asLong(), 0);
+    }
+    encode(key, annotation, new DataOutputStream(buffer));
+    added.incrementAndGet();
+    if (buffer.size() >= FLUSH_BYTES) {
+      flush();
+    }
+  }
+
+  /** Appends the pending records to the file */
+  public synchronized void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    FileLock lock = channel.lock();
+    try {
+      catchUp();
+      long base = scanned;
+      ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+      while (bytes.hasRemaining()) {
+        channel.write(bytes, base + bytes.position());
+      }
+      channel.force(false);
+      int last = 0;
+      for (Map.Entry<HashCode, Integer> entry : pendingOffsets.entrySet()) {
+        index.put(entry.getKey().asLong(), base + entry.getValue());
+        last = Math.max(last, entry.getValue());
+      }
+      lastRecord = base + last;
+      lastHeader = bytes.getLong(last);
+      scanned = base + bytes.capacity();
+    } finally {
+      lock.release();
+    }
+    pending.clear();
+    pendingOffsets.clear();
+    buffer.reset();
+  }
+
+  /**
+   * Rewrites the store with the last record of every key, dropping the
+   * superseded ones. No other process can be using the store.
+   * @param onlyUsed
+   *          if true, only the entries read or written since the store was
+   *          opened are kept, e.g. to drop the sentences of a previous release
+   *          of the corpus after re-processing all of it
+   * @return
+   *          the number of bytes saved
+   */
+  public synchronized long compact(final boolean onlyUsed) throws IOException {
+    if (onlyUsed && used == null) {
+      throw new IllegalStateException(
+          "The store was not opened to track the entries used");
+    }
+    flush();
+    long before = channel.size();
+    File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+    RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+    final StoreIndex kept = new StoreIndex();
+    // offset and header of the last record copied
+    final long[] last = {-1, 0};
+    long end;
+    try {
+      out.setLength(0);
+      final FileChannel target = out.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.put(MAGIC).putInt(VERSION).flip();
+      target.write(header);
+      final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+      index.forEach(new StoreIndex.Visitor() {
+        @Override
+        public void visit(long key, long offset) throws IOException {
+          if (onlyUsed && used.get(key) < 0) {
+            return;
+          }
+          recordHeader.clear();
+          readFully(channel, recordHeader, offset);
+          long value = recordHeader.getLong(0);
+          long size = RECORD_HEADER_LENGTH + (value >>> 32);
+          last[0] = target.position();
+          last[1] = value;
+          kept.put(key, last[0]);
+          long copied = 0;
+          while (copied < size) {
+            copied += channel.transferTo(offset + copied, size - copied,
+                target);
+          }
+        }
+      });
+      target.force(true);
+      end = target.position();
+    } finally {
+      out.close();
+    }
+    release(false);
+    Files.move(compacted.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    kept.write(StoreIndex.getFile(file), end, last[0], last[1]);
+    open();
+    return before - channel.size();
+  }
+
+  /** @return the number of sentences in the store */
+  public synchronized long size() {
+    long size = index.size();
+    for (HashCode key : pending.keySet()) {
+      if (index.get(key.asLong()) < 0) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return
+   *        a one-line summary of the entries served from the store
+   */
+  public String getReport() {
+    long lookups = hits.get() + misses.get();
+    return String.format(
+        "Annotation store %s: %d sentences, %d lookups, %.1f%% found in the store, %d added",
+        file, size(), lookups, lookups == 0 ? 0.0 : 100.0 * hits.get() / lookups,
+        added.get());
+  }
+
+  /** Writes the pending records and the index and closes the file */
+  public synchronized void close() throws IOException {
+    release(true);
+  }
+
+  private void release(boolean saveIndex) throws IOException {
+    flush();
+    if (saveIndex) {
+      FileLock lock = channel.lock();
+      try {
+        catchUp();
+        if (staleIndex || index.isModified()) {
+          index.write(StoreIndex.getFile(file), scanned, lastRecord, lastHeader);
+        }
+      } finally {
+        lock.release();
+      }
+    }
+    regions = null;
+    mapped = 0;
+    raf.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    HelpFormatter formatter = new HelpFormatter();
+    Options options= new Options();
+    CommandLineParser parser = new DefaultParser();
+
+    options.addOption("s", "store", true, "Annotation store file");
+    options.addOption(null, "compact", false,
+        "Rewrite the store without the superseded records");
+    options.addOption("h", "help", false, "This help");
+
+    CommandLine cLine = null;
+    try {
+      cLine = parser.parse( options, args );
+    } catch( ParseException exp ) {
+      System.err.println( "Unexpected exception:" + exp.getMessage() );
+    }
+
+    if (cLine == null || cLine.hasOption("h") || ! cLine.hasOption("s")) {
+      System.err.println("Please, provide the necessary parameters");
+      formatter.printHelp(AnnotationStore.class.getSimpleName(), options);
+      System.exit(1);
+    }
+
+    File file = new File(cLine.getOptionValue("s"));
+    if (! file.isFile()) {
+      System.err.println("I cannot read the file at " + file);
+      System.exit(1);
+    }
+    AnnotationStore store = new AnnotationStore(file);
+    System.err.println(store.size() + " sentences in " + file + " ("
+        + file.length() + " bytes)");
+    if (cLine.hasOption("compact")) {
+      long saved = store.compact(false);
+      System.err.println("Compacted " + file + ": " + saved + " bytes saved");
+    }
+    store.close();
+  }
+}
@@ -0,0 +1,294 @@
+package qa.qcri.iyas;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import opennlp.tools.util.InvalidFormatException;
+
+/**
+ * Streams the annotations of sentences as they are computed, for consumers
+ * that want them one by one (e.g., an indexer) rather than in layer files.
+ * The sentences come from an iterator, a {@link LineReader} (one sentence
+ * per line) or an OpenITI file, whose paragraphs are cleaned and split as
+ * they are needed.
+ *
+ * The streams are pulled: a sentence is only read when the consumer asks for
+ * an element and there is room for it in a window of {@code window}
+ * sentences ahead of the consumer, which the {@code threads} annotate in
+ * parallel. A slow consumer therefore stops the reading and the annotation,
+ * and the memory is bounded by the window. The elements come in input order.
+ * The streams are sequential (calling {@code parallel()} does not split
+ * them) and must be closed to release the threads and the input.
+ *
+ * <pre>
+ * try (Stream&lt;AnnotatedSentence&gt; stream = AnnotationStream.annotate(
+ *     MappedReadFile.open("book.sent"), analyzer, 4, 256)) {
+ *   stream.forEach(indexer::add);
+ * }
+ * </pre>
+ */
+public final class AnnotationStream {
+
+  private AnnotationStream() {
+  }
+
+  /**
+   * Annotates the sentences on the calling thread, one at a time
+   * @param sentences
+   *          one sentence per element
+   * @param analyzer
+   *          computes the annotations
+   */
+  public static Stream<AnnotatedSentence> annotate(Iterator<String> sentences,
+      ArabicAnalyzer analyzer) {
+    return annotate(sentences, analyzer, 1, 1);
+  }
+
+  /**
+   * @param sentences
+   *          one sentence per element
+   * @param analyzer
+   *          computes the annotations; it should have at least
+   *          {@code threads} instances
+   * @param threads
+   *          the number of threads annotating sentences; 1 to annotate them
+   *          on the thread of the consumer
+   * @param window
+   *          the maximum number of sentences read ahead of the consumer; at
+   *          least {@code threads}
+   */
+  public static Stream<AnnotatedSentence> annotate(Iterator<String> sentences,
+      ArabicAnalyzer analyzer, int threads, int window) {
+    final Window spliterator = new Window(sentences, analyzer, threads, window);
+    return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+      @Override
+      public void run() {
+        spliterator.close();
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #annotate(Iterator, ArabicAnalyzer, int, int)}; closing the
+   * stream closes the reader too
+   * @param input
+   *          one sentence per line
+   */
+  public static Stream<AnnotatedSentence> annotate(final LineReader input,
+      ArabicAnalyzer analyzer, int threads, int window) {
+    return annotate(lines(input), analyzer, threads, window).onClose(new Runnable() {
+      @Override
+      public void run() {
+        input.close();
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #annotate(Iterator, ArabicAnalyzer, int, int)}, with the
+   * sentences of an OpenITI file; closing the stream closes the file too
+   * @param openItiFile
+   *          a book in OpenITI format
+   */
+  public static Stream<AnnotatedSentence> annotateOpenITI(String openItiFile,
+      ArabicAnalyzer analyzer, int threads, int window)
+      throws InvalidFormatException, FileNotFoundException, IOException {
+    final MARkdown markdown = new MARkdown(openItiFile);
+    return annotate(sentences(markdown), analyzer, threads, window).onClose(new Runnable() {
+      @Override
+      public void run() {
+        markdown.close();
+      }
+    });
+  }
+
+  /**
+   * @return
+   *        the remaining lines of the reader
+   */
+  public static Iterator<String> lines(final LineReader input) {
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        return input.hasNextLine();
+      }
+
+      @Override
+      public String next() {
+        if (! input.hasNextLine()) {
+          throw new NoSuchElementException();
+        }
+        return input.nextLine();
+      }
+    };
+  }
+
+  /**
+   * @return
+   *        the sentences of the remaining paragraphs of the book, which are
+   *        cleaned and split one at a time as the sentences are needed
+   */
+  public static Iterator<String> sentences(final MARkdown markdown) {
+    return new Iterator<String>() {
+      private Iterator<String> paragraph = Collections.<String>emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (! paragraph.hasNext() && markdown.hasNextParagraph()) {
+          paragraph = markdown.getParagraphSentences(markdown.nextParagraph()).iterator();
+        }
+        return paragraph.hasNext();
+      }
+
+      @Override
+      public String next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return paragraph.next();
+      }
+    };
+  }
+
+  /** A sentence read ahead of the consumer */
+  private static class Pending {
+    final String text;
+    final Future<Annotation> annotation;
+
+    Pending(String text, Future<Annotation> annotation) {
+      this.text = text;
+      this.annotation = annotation;
+    }
+  }
+
+  /** Reads up to window sentences ahead of the consumer and annotates them */
+  private static class Window extends Spliterators.AbstractSpliterator<AnnotatedSentence> {
+
+    private final Iterator<String> sentences;
+
+    private final ArabicAnalyzer analyzer;
+
+    private final int window;
+
+    /** Null if the sentences are annotated on the thread of the consumer */
+    private final ExecutorService pool;
+
+    private final Deque<Pending> pending = new ArrayDeque<Pending>();
+
+    private long index;
+
+    Window(Iterator<String> sentences, ArabicAnalyzer analyzer, int threads,
+        int window) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      if (threads < 1) {
+        throw new IllegalArgumentException("At least one thread is necessary");
+      }
+      if (window < threads) {
+        throw new IllegalArgumentException(
+            "The window cannot be smaller than the number of threads");
+      }
+      this.sentences = sentences;
+      this.analyzer = analyzer;
+      this.window = window;
+      this.pool = threads == 1 ? null : Executors.newFixedThreadPool(threads,
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "annotation-stream");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super AnnotatedSentence> action) {
+      if (pool == null) {
+        if (! sentences.hasNext()) {
+          return false;
+        }
+        String text = sentences.next();
+        action.accept(new AnnotatedSentence(index, text, annotate(text)));
+        index++;
+        return true;
+      }
+      while (pending.size() < window && sentences.hasNext()) {
+        final String text = sentences.next();
+        pending.add(new Pending(text, pool.submit(new Callable<Annotation>() {
+          @Override
+          public Annotation call() throws Exception {
+            return analyzer.annotate(text);
+          }
+        })));
+      }
+      Pending next = pending.poll();
+      if (next == null) {
+        return false;
+      }
+      action.accept(new AnnotatedSentence(index, next.text, get(next.annotation)));
+      index++;
+      return true;
+    }
+
+    private Annotation annotate(String text) {
+      try {
+        return analyzer.annotate(text);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw failure(e);
+      }
+    }
+
+    private Annotation get(Future<Annotation> annotation) {
+      try {
+        return annotation.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw failure(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw failure(e);
+      }
+    }
+
+    private IllegalStateException failure(Throwable cause) {
+      return new IllegalStateException("The annotation of sentence " + index
+          + " failed", cause);
+    }
+
+    /** Not splittable: the window is what bounds the memory */
+    @Override
+    public Spliterator<AnnotatedSentence> trySplit() {
+      return null;
+    }
+
+    void close() {
+      for (Pending p : pending) {
+        p.annotation.cancel(true);
+      }
+      pending.clear();
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+}
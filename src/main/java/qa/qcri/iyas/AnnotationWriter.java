@@ -0,0 +1,168 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the {@link Annotation}s of a file, one line per sentence and one 
+ * output file per layer. Every annotation is handed to the output files as 
+ * soon as it is written; they are {@link AsyncWriteFile}s, so the caller 
+ * does not wait for the disk. The files are flushed periodically, so 
+ * memory stays bounded no matter the size of the input and an interrupted 
+ * run keeps the lines written so far. With a {@link Checkpoint}, every flush 
+ * is committed, and a resumed checkpoint makes the writer append to the 
+ * outputs of the interrupted run.
+ */
+public class AnnotationWriter implements AnnotationSink {
+
+  /** Number of sentences between two flushes of the output files */
+  public static final int DEFAULT_FLUSH_INTERVAL = 1000;
+  
+  private static final String LINE_BREAK = "\n";
+  
+  private final Map<Layer, WriteFile> files = new EnumMap<Layer, WriteFile>(Layer.class);
+  
+  private final Map<Layer, String> paths = new EnumMap<Layer, String>(Layer.class);
+  
+  private final int flushInterval;
+  
+  /** Null if no checkpoints are kept */
+  private final Checkpoint checkpoint;
+  
+  private long counter;
+  
+  /**
+   * @param inputFile
+   *          the input file; each output has its path plus the layer suffix 
+   * @param layers
+   *          the layers to write
+   */
+  public AnnotationWriter(String inputFile, Set<Layer> layers) {
+    this(inputFile, layers, DEFAULT_FLUSH_INTERVAL);
+  }
+  
+  /**
+   * @param inputFile
+   *          the input file; each output has its path plus the layer suffix 
+   * @param layers
+   *          the layers to write
+   * @param flushInterval
+   *          number of sentences between two flushes of the output files
+   */
+  public AnnotationWriter(String inputFile, Set<Layer> layers, int flushInterval) {
+    this(inputFile, layers, flushInterval, null);
+  }
+  
+  /**
+   * @param inputFile
+   *          the input file; each output has its path plus the layer suffix 
+   * @param layers
+   *          the layers to write
+   * @param checkpoint
+   *          where every flush is committed, with the outputs given by 
+   *          {@link #getPaths(String, Set)}; if it has been resumed, the 
+   *          annotations are appended to the current outputs
+   */
+  public AnnotationWriter(String inputFile, Set<Layer> layers, Checkpoint checkpoint) {
+    this(inputFile, layers, DEFAULT_FLUSH_INTERVAL, checkpoint);
+  }
+  
+  private AnnotationWriter(String inputFile, Set<Layer> layers, int flushInterval, 
+      Checkpoint checkpoint) {
+    if (flushInterval < 1) {
+      throw new IllegalArgumentException("The flush interval must be positive");
+    }
+    this.flushInterval = flushInterval;
+    this.checkpoint = checkpoint;
+    boolean append = checkpoint != null && checkpoint.isResumed();
+    if (append) {
+      counter = checkpoint.getLines();
+    }
+    for (Layer layer : layers) {
+      String path = Compression.withSuffix(inputFile, layer.getSuffix());
+      paths.put(layer, path);
+      files.put(layer, new AsyncWriteFile(path, append));
+    }
+  }
+  
+  /**
+   * @param inputFile
+   *          the input file
+   * @param layers
+   *          the layers to write
+   * @return
+   *          the paths of the output files, in layer order
+   */
+  public static List<String> getPaths(String inputFile, Set<Layer> layers) {
+    List<String> paths = new ArrayList<String>();
+    for (Layer layer : EnumSet.copyOf(layers)) {
+      paths.add(Compression.withSuffix(inputFile, layer.getSuffix()));
+    }
+    return paths;
+  }
+  
+  /**
+   * Writes one line per layer for the next sentence
+   * @param annotation
+   *          the annotation of the next sentence
+   */
+  @Override
+  public void write(Annotation annotation) {
+    long start = Metrics.start();
+    String first = null;
+    for (Map.Entry<Layer, WriteFile> entry : files.entrySet()) {
+      String line = annotation.get(entry.getKey());
+      entry.getValue().write(line);
+      entry.getValue().write(LINE_BREAK);
+      if (first == null) {
+        first = line;
+      }
+    }
+    if (++counter % flushInterval == 0) {
+      flush();
+    }
+    Metrics.record(Metrics.Stage.WRITE, first == null ? "" : first, start);
+  }
+  
+  /** Pushes the lines written so far to disk and commits the checkpoint */
+  @Override
+  public void flush() {
+    for (WriteFile wf : files.values()) {
+      wf.flush();
+    }
+    if (checkpoint != null) {
+      try {
+        checkpoint.commit(counter);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+  
+  /** 
+   * @return 
+   *        the number of sentences written so far, including those of the 
+   *        interrupted run if the checkpoint was resumed
+   */
+  @Override
+  public long getCount() {
+    return counter;
+  }
+  
+  @Override
+  public void close() {
+    flush();
+    for (Map.Entry<Layer, WriteFile> entry : files.entrySet()) {
+      entry.getValue().close();
+      Layer layer = entry.getKey();
+      System.err.println(layer.getLabel().substring(0, 1).toUpperCase()
+          + layer.getLabel().substring(1) + " written to file " + paths.get(layer));
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package qa.qcri.iyas;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the {@link Annotation} of one sentence. Implementations are not 
+ * required to be thread-safe: every thread should own its own annotator.
+ * Whoever creates an annotator closes it once done, which releases what it
+ * holds beyond memory, such as a worker process.
+ */
+public interface Annotator extends Closeable {
+
+  /**
+   * @param text
+   *          one sentence
+   * @return
+   *          the output line of every layer this annotator computes
+   */
+  Annotation annotate(String text) throws Exception;
+  
+  /**
+   * Annotates several sentences at once; by default, one after the other. 
+   * Annotators that pay a cost per call (e.g., a {@link ProcessAnnotator}) 
+   * send the whole batch together.
+   * @param texts
+   *          one sentence per element
+   * @return
+   *          their annotations, in the same order
+   */
+  default List<Annotation> annotate(List<String> texts) throws Exception {
+    List<Annotation> annotations = new ArrayList<Annotation>(texts.size());
+    for (String text : texts) {
+      annotations.add(annotate(text));
+    }
+    return annotations;
+  }
+  
+  /** Releases what the annotator holds; by default, nothing */
+  @Override
+  default void close() throws IOException {
+  }
+  
+}
@@ -0,0 +1,11 @@
+package qa.qcri.iyas;
+
+/**
+ * Creates {@link Annotator}s, one per worker thread. Every call is expected 
+ * to return an instance that shares no mutable state with the previous ones.
+ */
+public interface AnnotatorFactory {
+
+  Annotator newAnnotator() throws Exception;
+  
+}
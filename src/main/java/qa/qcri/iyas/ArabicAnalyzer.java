@@ -0,0 +1,376 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The entry point to use AraProc as a library: a thread-safe analyzer that
+ * computes the {@link Annotation}s of sentences, one at a time or in batches.
+ * It is configured with a {@link Builder}:
+ *
+ * <pre>
+ * ArabicAnalyzer analyzer = ArabicAnalyzer.builder()
+ *     .layers(EnumSet.of(Layer.SEGMENTS, Layer.POS))
+ *     .instances(4)
+ *     .build();
+ * List&lt;Annotation&gt; annotations = analyzer.annotate(sentences);
+ * </pre>
+ *
+ * The Farasa models are not thread-safe, so the analyzer keeps a pool of up
+ * to {@code instances} annotators, each with its own models, loaded the
+ * first time they are needed. Every call takes one annotator from the pool
+ * for the whole batch, waiting if all of them are in use, so the models and
+ * the buffers of the annotator are reused for every sentence of the batch;
+ * concurrent calls run in parallel on different annotators. With
+ * {@link Builder#processes(boolean)}, the models of every annotator are
+ * loaded in a child JVM instead (see {@link ProcessAnnotator}), which gets
+ * the batches whole.
+ */
+public class ArabicAnalyzer implements AutoCloseable {
+
+  private final FarasaAnnotatorFactory factory;
+
+  private final int instances;
+
+  /** Annotators not in use; guarded by itself, as are the fields below */
+  private final Deque<Annotator> idle = new ArrayDeque<Annotator>();
+
+  /** Number of annotators created */
+  private int created;
+
+  /** Number of annotators in use, i.e. of calls in progress */
+  private int busy;
+
+  private boolean closed;
+
+  private ArabicAnalyzer(FarasaAnnotatorFactory factory, int instances) {
+    this.factory = factory;
+    this.instances = instances;
+  }
+
+  /** @return a builder with the default settings */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** @return the layers computed for every sentence */
+  public Set<Layer> getLayers() {
+    return Collections.unmodifiableSet(factory.getLayers());
+  }
+
+  /**
+   * @param text
+   *          one sentence
+   * @return
+   *          the output line of every layer
+   */
+  public Annotation annotate(String text) throws Exception {
+    Annotator annotator = acquire();
+    try {
+      return annotator.annotate(text);
+    } finally {
+      release(annotator);
+    }
+  }
+
+  /**
+   * @param sentences
+   *          one sentence per element
+   * @return
+   *          their annotations, in the same order
+   */
+  public List<Annotation> annotate(List<String> sentences) throws Exception {
+    if (sentences.isEmpty()) {
+      return new ArrayList<Annotation>();
+    }
+    Annotator annotator = acquire();
+    try {
+      return new ArrayList<Annotation>(annotator.annotate(sentences));
+    } finally {
+      release(annotator);
+    }
+  }
+
+  /**
+   * @param sentences
+   *          one sentence per element; consumed entirely
+   * @return
+   *          their annotations, in the same order
+   */
+  public List<Annotation> annotate(Iterator<String> sentences) throws Exception {
+    List<Annotation> annotations = new ArrayList<Annotation>();
+    if (! sentences.hasNext()) {
+      return annotations;
+    }
+    Annotator annotator = acquire();
+    try {
+      while (sentences.hasNext()) {
+        annotations.add(annotator.annotate(sentences.next()));
+      }
+    } finally {
+      release(annotator);
+    }
+    return annotations;
+  }
+
+  /**
+   * Loads the models of one annotator now instead of on the first call
+   * @return this analyzer
+   */
+  public ArabicAnalyzer preload() throws Exception {
+    release(acquire());
+    return this;
+  }
+
+  /** Takes an idle annotator, creates one or waits until one is released */
+  private Annotator acquire() throws Exception {
+    synchronized (idle) {
+      while (true) {
+        if (closed) {
+          throw new IllegalStateException("The analyzer is closed");
+        }
+        if (! idle.isEmpty()) {
+          busy++;
+          return idle.poll();
+        }
+        if (created < instances) {
+          created++;
+          busy++;
+          break;
+        }
+        idle.wait();
+      }
+    }
+    try {
+      return factory.newAnnotator();
+    } catch (Exception e) {
+      synchronized (idle) {
+        created--;
+        busy--;
+        idle.notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  /** Puts the annotator back, or closes it if the analyzer has been closed */
+  private void release(Annotator annotator) {
+    synchronized (idle) {
+      if (! closed) {
+        idle.add(annotator);
+        busy--;
+        idle.notifyAll();
+        return;
+      }
+    }
+    try {
+      annotator.close();
+    } catch (IOException e) {
+      System.err.println("An annotator could not be closed: " + e.getMessage());
+    } finally {
+      synchronized (idle) {
+        busy--;
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Closes the annotators, which ends their worker processes, if any, and
+   * writes and closes the annotation store, if any. The calls in progress
+   * are waited for (with a time budget or worker processes, none takes
+   * much longer than the budget of its sentences); the following ones fail.
+   * If interrupted meanwhile, the store is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    List<Annotator> annotators;
+    synchronized (idle) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      // the calls waiting for an annotator fail
+      idle.notifyAll();
+      annotators = new ArrayList<Annotator>(idle);
+      idle.clear();
+    }
+    IOException failure = null;
+    for (Annotator annotator : annotators) {
+      try {
+        annotator.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    synchronized (idle) {
+      while (busy > 0) {
+        try {
+          idle.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted while waiting for the calls in progress");
+        }
+      }
+    }
+    factory.close();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Configures an {@link ArabicAnalyzer}. By default, it computes all the
+   * layers with the default model and one annotator, without caches.
+   */
+  public static class Builder {
+
+    private String pathToModel = ArabicProcessor.DEFAULT_PATH_TO_FARASA_MODEL;
+
+    private Set<Layer> layers = EnumSet.allOf(Layer.class);
+
+    private int instances = 1;
+
+    private long wordCache;
+
+    private long sentenceCacheMb;
+
+    private File store;
+
+    private long timeoutMillis;
+
+    private int maxTokens;
+
+    private boolean processes;
+
+    private Builder() {
+    }
+
+    /**
+     * @param pathToModel
+     *          path to the Farasa parser model
+     */
+    public Builder model(String pathToModel) {
+      this.pathToModel = pathToModel;
+      return this;
+    }
+
+    /**
+     * @param layers
+     *          the layers to compute; at least one
+     */
+    public Builder layers(Set<Layer> layers) {
+      if (layers.isEmpty()) {
+        throw new IllegalArgumentException("At least one layer is necessary");
+      }
+      this.layers = EnumSet.copyOf(layers);
+      return this;
+    }
+
+    /**
+     * @param instances
+     *          the maximum number of annotators, each with its own models,
+     *          and hence of calls running in parallel
+     */
+    public Builder instances(int instances) {
+      if (instances < 1) {
+        throw new IllegalArgumentException("At least one instance is necessary");
+      }
+      this.instances = instances;
+      return this;
+    }
+
+    /**
+     * @param entries
+     *          the number of word forms whose segments and lemmas are cached;
+     *          0 to disable the cache
+     */
+    public Builder wordCache(long entries) {
+      this.wordCache = entries;
+      return this;
+    }
+
+    /**
+     * @param megabytes
+     *          the size of the cache of repeated sentences; 0 to disable it
+     */
+    public Builder sentenceCache(long megabytes) {
+      this.sentenceCacheMb = megabytes;
+      return this;
+    }
+
+    /**
+     * @param file
+     *          the {@link AnnotationStore} to reuse and extend; null for none
+     */
+    public Builder store(File file) {
+      this.store = file;
+      return this;
+    }
+
+    /**
+     * @param millis
+     *          the time budget of every sentence (see
+     *          {@link DeadlineAnnotator}); 0 for no limit
+     */
+    public Builder timeout(long millis) {
+      this.timeoutMillis = millis;
+      return this;
+    }
+
+    /**
+     * @param tokens
+     *          the longest sentence annotated as a whole (see
+     *          {@link SentenceChunker}); 0 for no limit
+     */
+    public Builder maxTokens(int tokens) {
+      this.maxTokens = tokens;
+      return this;
+    }
+
+    /**
+     * @param processes
+     *          whether every instance loads its models in a child JVM of its
+     *          own, restarted if it dies or hangs (see
+     *          {@link ProcessAnnotator})
+     */
+    public Builder processes(boolean processes) {
+      this.processes = processes;
+      return this;
+    }
+
+    /**
+     * @return
+     *        a new analyzer; the models are loaded on the first call, or
+     *        with {@link ArabicAnalyzer#preload()}
+     * @throws IOException
+     *        if the store cannot be opened
+     */
+    public ArabicAnalyzer build() throws IOException {
+      FarasaAnnotatorFactory factory = new FarasaAnnotatorFactory(pathToModel, layers);
+      if (wordCache > 0) {
+        factory.setWordCache(new WordCache(wordCache));
+      }
+      if (sentenceCacheMb > 0) {
+        factory.setSentenceCache(new SentenceCache(sentenceCacheMb * 1024 * 1024));
+      }
+      if (store != null) {
+        factory.setStore(new AnnotationStore(store));
+      }
+      factory.setTimeout(timeoutMillis);
+      factory.setMaxTokens(maxTokens);
+      factory.setProcesses(processes, wordCache, 0);
+      return new ArabicAnalyzer(factory, instances);
+    }
+  }
+}
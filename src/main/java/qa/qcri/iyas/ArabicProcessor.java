@@ -1,11 +1,12 @@
 package qa.qcri.iyas;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.CommandLine;
@@ -31,20 +32,29 @@ public class ArabicProcessor {
   
   private CommandLine cLine; 
   
-  private final String DEFAULT_PATH_TO_FARASA_MODEL = "resources/farasa-models/modelIteration10";
+  private int threads = 1;
+  
+  /** Whether to continue an interrupted run and skip an up-to-date one */
+  private boolean resume;
+  
+  /** Whether to write one binary file instead of one text file per layer */
+  private boolean binary;
+  
+  /** Port of the annotation server; -1 to process the input file */
+  private int port = -1;
+  
+  /** Creates the annotators for the requested layers, set up in setup */
+  private FarasaAnnotatorFactory factory;
+  
+  public static final String DEFAULT_PATH_TO_FARASA_MODEL = "resources/farasa-models/modelIteration10";
   private String PATH_TO_FARASA_MODEL;
   
-  private final String FILE_SUFFIX_CLITICS = ".clit";
-  private final String FILE_SUFFIX_LEMMAS = ".lem";
 //  private final String FILE_SUFFIX_NAMEDENT = "ner";
-  private final String FILE_SUFFIX_POS = ".pos";
-  private final String FILE_SUFFIX_SEGMENT = ".segm";
-  private final String FILE_SUFFIX_TREES = ".tree";
   private final String SEPARATOR = " ";
 
   
   public ArabicProcessor() throws Exception{
-    FARASA = new Farasa();
+    //the models are loaded when a layer needs them (see loadModels)
     
     //TODO with this invocation, I cannot call setPathToFarasaModel becuase if
     //it doesn't exist 
@@ -80,15 +90,44 @@ public class ArabicProcessor {
   }
   
   public List<String> getLemmas(String text) {
+    try {
+      loadModels(EnumSet.of(Layer.LEMMAS));
+    } catch (Exception e) {
+      throw new IllegalStateException("Farasa could not be loaded", e);
+    }
     ArrayList<String> lemmas =  FARASA.lemmatizeLine(text);
     return lemmas;
   }
   
   public Sentence getFarasaSentence(String text) throws InterruptedException, Exception {
+     loadModels(EnumSet.of(Layer.POS));
      ArrayList<String> segOutput = FARASA.segmentLine(text);
      return farasaPOS.tagLine(segOutput);
   }
   
+  /**
+   * Loads the models needed by the layers that have not been loaded yet. The 
+   * first time, the independent models are loaded concurrently and the time 
+   * taken by each of them is reported.
+   * @param layers
+   *          the layers to compute
+   */
+  private synchronized void loadModels(Set<Layer> layers) throws Exception {
+    if (FARASA == null) {
+      FarasaModels models = FarasaModels.load(PATH_TO_FARASA_MODEL, layers);
+      FARASA = models.getFarasa();
+      farasaPOS = models.getTagger();
+      p = models.getParser();
+      System.err.println(models.getReport());
+    }
+    if (farasaPOS == null && FarasaAnnotator.needsTagger(layers)) {
+      farasaPOS = new FarasaPOSTagger(FARASA);
+    }
+    if (p == null && layers.contains(Layer.TREES)) {
+      p = new ConstituencyParser(PATH_TO_FARASA_MODEL);
+    }
+  }
+  
 //  private void runStemmer() {
 //    ReadFile rf = new ReadFile(INPUT_FILE);
 //    
@@ -97,176 +136,139 @@ public class ArabicProcessor {
 //    }
 //  }
   
+  /**
+   * Computes all the requested layers for one sentence. The sentence is 
+   * segmented and POS-tagged at most once, no matter how many of the layers 
+   * depend on the segments or on the tagged sentence. 
+   * 
+   * @param text
+   *          one sentence
+   * @param layers
+   *          the layers to compute
+   * @return
+   *          the output line of every requested layer
+   */
+  public Annotation annotate(String text, Set<Layer> layers) 
+      throws InterruptedException, Exception {
+    loadModels(layers);
+    return new FarasaAnnotator(FARASA, farasaPOS, p, layers).annotate(text);
+  }
   
-    
-  
-  private void runSegmenter() throws InterruptedException, Exception {
-    System.err.println("Computing segments");
-    final String outputFile = INPUT_FILE + FILE_SUFFIX_SEGMENT; 
-    
-    ReadFile rf = new ReadFile(INPUT_FILE);
-
-    StringBuffer sb = new StringBuffer();
-    while (rf.hasNextLine()) {
-      ArrayList<String> segOutput = FARASA.segmentLine(rf.nextLine());
+  /**
+   * @return
+   *          a factory whose first annotator uses the models already loaded by
+   *          this processor; the following ones load their own models, and
+   *          all of them do with --processes
+   */
+  private AnnotatorFactory getAnnotatorFactory() {
+    return new AnnotatorFactory() {
+      private boolean first = true;
       
-      for (String w : segOutput) {
-        sb.append(w)
-          .append(SEPARATOR);
+      @Override
+      public synchronized Annotator newAnnotator() throws Exception {
+        if (first && ! factory.isProcesses()) {
+          first = false;
+          return factory.newAnnotator(FARASA, farasaPOS, p);
         }
-      sb.append("\n");
-    }
-      rf.close();
-      WriteFile wf = new WriteFile(outputFile);
-      wf.write(sb.toString());
-      wf.close();
-      System.err.println("Segments written to file " + outputFile);
-    
+        return factory.newAnnotator();
+      }
+    };
   }
   
-  private final String SEPARATOR_POS = "/";
-  
-  
-  
-  private void runPost() throws InterruptedException, Exception {
-    System.err.println("Computing POS");
-    final String outputFile = INPUT_FILE + FILE_SUFFIX_POS; 
-    
-    ReadFile rf = new ReadFile(INPUT_FILE);
-    
-    StringBuffer sb = new StringBuffer();
-    while (rf.hasNextLine()) {
-      Sentence segments = getFarasaSentence(rf.nextLine());
-      for (Clitic w : segments.clitics) {
-        sb.append(w.surface)
-          .append(SEPARATOR_POS)
-          .append(w.guessPOS)
-          .append(    //only add the gender if it exists
-              w.genderNumber!=""
-                  ? "-"+w.genderNumber
-                  : "")
-          .append(SEPARATOR);
-        }
-      sb.append("\n");
-    }
-      rf.close();
-      WriteFile wf = new WriteFile(outputFile);
-      wf.write(sb.toString());
-      wf.close();
-      System.err.println("POS written to file " + outputFile);
-  }
- 
-  private void runClitics() throws InterruptedException, Exception {
-    System.err.println("Computing clitics");
-    final String outputFile = INPUT_FILE + FILE_SUFFIX_CLITICS; 
-    
-    ReadFile rf = new ReadFile(INPUT_FILE);
-   
-    StringBuffer sb = new StringBuffer();
-    while (rf.hasNextLine()) {
-      for (String stem : getClitics(rf.nextLine()) ) {
-        sb.append(stem)
-          .append(SEPARATOR);
+  /**
+   * @return
+   *        the layers requested in the command line, in the order in which 
+   *        they used to be computed; when serving, all of them if none was 
+   *        requested
+   */
+  private EnumSet<Layer> getRequestedLayers() {
+    EnumSet<Layer> layers = EnumSet.noneOf(Layer.class);
+    for (Layer layer : Layer.values()) {
+      if (cLine.hasOption(layer.getOption())) {
+        layers.add(layer);
       }
-      sb.append("\n");
     }
-    rf.close();
-    
-    WriteFile wf = new WriteFile(outputFile);
-    wf.write(sb.toString());
-    wf.close();
-    System.err.println("Clitics written to file " + outputFile);
+    if (layers.isEmpty() && port >= 0) {
+      layers = EnumSet.allOf(Layer.class);
+    }
+    return layers;
   }
   
-  private void runLemmatizer() {
-    System.err.println("Computing lemmas");
-    final String outputFile = INPUT_FILE + FILE_SUFFIX_LEMMAS; 
-    
-    ReadFile rf = new ReadFile(INPUT_FILE);
-    StringBuffer sb = new StringBuffer();
-    while (rf.hasNextLine()) {
-      for (String lemma : getLemmas(rf.nextLine())) {
-        sb.append(lemma)
-          .append(SEPARATOR);
+  /**
+   * Keeps the models loaded and annotates the text posted to the local port 
+   * until the JVM is stopped (see {@link AnnotationServer}). Each of the 
+   * threads has its own models.
+   */
+  public void serve() throws Exception {
+    final AnnotationServer server = 
+        new AnnotationServer(getAnnotatorFactory(), getRequestedLayers(), threads);
+    server.start(port);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop();
+        factory.printReport();
+        try {
+          factory.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
       }
-      sb.append("\n");
-    }
-    rf.close();
-    
-    WriteFile wf = new WriteFile(outputFile);
-    wf.write(sb.toString());
-    wf.close();
-    System.err.println("Lemmas written to file " + outputFile);
+    });
+    System.err.println("Serving " + getRequestedLayers() + " on http://localhost:" 
+        + server.getPort() + "/annotate with " + threads + " threads");
   }
   
-//  public void runNer() {
-//    System.err.println("Computing NEs");
-//    final String outputFile = INPUT_FILE + FILE_SUFFIX_NAMEDENT; 
-//    ArabicNER ner = new ArabicNER(FARASA, farasaPOS);
-//    ArrayList output = ner.tagLine("النص المراد معالجته");
-//
-//  int loc = 0;
-//  for (String s : output)
-//    {
-//  String plusSign = " ";
-//  if (loc == 0)
-//  {
-//      plusSign = "";
-//  }
-//              System.out.println(plusSign + s.trim());
-//  
-//  loc++;
-//    }
-//
-//
-//    }
-  
-
-  
-  public void runParser() throws InterruptedException, IOException, Exception {
-    System.err.println("Computing parse trees");
-    final String outputFile = INPUT_FILE + FILE_SUFFIX_TREES; 
-    
-    ReadFile rf = new ReadFile(INPUT_FILE);
-   
-    
-    StringBuffer sb = new StringBuffer();
-    while (rf.hasNextLine()) {
-      Sentence sentence = farasaPOS.tagLine(
-          FARASA.segmentLine(rf.nextLine()));
-      System.out.println(p.generateParserFormat(sentence));
-      sb.append(p.generateParserFormat(sentence))
-        .append("\n");
-    }
-    rf.close();
-    WriteFile wf = new WriteFile(outputFile);
-    wf.write(sb.toString());
-    wf.close();
-    System.err.println("Parse trees written to file " + outputFile);
-    
-
-  }
+  /**
+   * Computes all the requested layers in one single pass over the input: 
+   * every sentence is read once and segmented and tagged at most once, and 
+   * then each layer file gets its line from the same Farasa sentence. 
+   * The lines are written as soon as they are computed. With more than one 
+   * thread, the sentences are annotated in parallel and written in order;
+   * with --processes, every thread sends them in batches to a worker process.
+   */
   public void run() throws InterruptedException, Exception {
-
-    if (cLine.hasOption("c")) {
-      runClitics();
+    EnumSet<Layer> layers = getRequestedLayers();
+    if (layers.isEmpty()) {
+      return;
     }
-    
-    if (cLine.hasOption("l")) {
-      runLemmatizer();
-    }
-    if (cLine.hasOption("s")) {
-      runSegmenter();
-    }
-
-    if (cLine.hasOption("p")) {
-      runPost();
+    for (Layer layer : layers) {
+      System.err.println("Computing " + layer.getLabel());
     }
     
-    if (cLine.hasOption("t")) {
-      runParser();
+    Checkpoint checkpoint = newCheckpoint(INPUT_FILE, layers, PATH_TO_FARASA_MODEL,
+        binary);
+    if (factory.isProcesses()) {
+      System.err.println("Running " + threads + " worker processes");
+      ParallelProcessor processor = new ParallelProcessor(getAnnotatorFactory(), 
+          threads, threads * ParallelProcessor.DEFAULT_CAPACITY_PER_THREAD, 
+          ProcessAnnotator.BATCH_SIZE);
+      try {
+        annotateFile(INPUT_FILE, layers, null, processor, checkpoint, resume, binary);
+      } finally {
+        processor.shutdown();
+      }
+    } else if (threads > 1) {
+      System.err.println("Running on " + threads + " threads");
+      ParallelProcessor processor = 
+          new ParallelProcessor(getAnnotatorFactory(), threads);
+      try {
+        annotateFile(INPUT_FILE, layers, null, processor, checkpoint, resume, binary);
+      } finally {
+        processor.shutdown();
+      }
+    } else {
+      Annotator annotator = factory.newAnnotator(FARASA, farasaPOS, p);
+      try {
+        annotateFile(INPUT_FILE, layers, annotator, null, checkpoint, resume, binary);
+      } finally {
+        annotator.close();
+      }
     }
-//    
+    factory.printReport();
+    factory.close();
+    System.err.print(Metrics.getSummary());
+    
 //    if (cLine.hasOption("n")) {
 //      runNer();
 //    }
@@ -289,6 +291,144 @@ public class ArabicProcessor {
 
   }
   
+  /**
+   * Annotates every sentence of a file on the current thread and writes one 
+   * output file per layer
+   * @param inputFile
+   *          one sentence per line
+   * @param layers
+   *          the layers to write
+   * @param annotator
+   *          computes (at least) the requested layers
+   * @return
+   *          the number of sentences processed
+   */
+  public static long annotateFile(String inputFile, Set<Layer> layers, 
+      Annotator annotator) throws Exception {
+    return annotateFile(inputFile, layers, annotator, null, null, false, false);
+  }
+  
+  /**
+   * Annotates every sentence of a file on the current thread and writes one 
+   * output file per layer, committing the checkpoint periodically
+   * @param inputFile
+   *          one sentence per line
+   * @param layers
+   *          the layers to write
+   * @param annotator
+   *          computes (at least) the requested layers
+   * @param checkpoint
+   *          from {@link #newCheckpoint(String, Set, String)}; null for none
+   * @param resume
+   *          whether to continue from the checkpoint of an interrupted run and 
+   *          to skip the file if it is up to date
+   * @return
+   *          the number of sentences in the file
+   */
+  public static long annotateFile(String inputFile, Set<Layer> layers, 
+      Annotator annotator, Checkpoint checkpoint, boolean resume) throws Exception {
+    return annotateFile(inputFile, layers, annotator, null, checkpoint, resume, false);
+  }
+  
+  /**
+   * Same as {@link #annotateFile(String, Set, Annotator, Checkpoint, boolean)}, 
+   * but all the layers can be written to a single binary file instead
+   * @param binary
+   *          whether to write a {@link BinaryAnnotationWriter} file; the 
+   *          checkpoint must come from 
+   *          {@link #newCheckpoint(String, Set, String, boolean)} with the 
+   *          same value
+   */
+  public static long annotateFile(String inputFile, Set<Layer> layers, 
+      Annotator annotator, Checkpoint checkpoint, boolean resume, boolean binary) 
+      throws Exception {
+    return annotateFile(inputFile, layers, annotator, null, checkpoint, resume, binary);
+  }
+  
+  /**
+   * Same as {@link #annotateFile(String, Set, Annotator, Checkpoint, boolean)}, 
+   * but the sentences are annotated in parallel
+   */
+  public static long annotateFile(String inputFile, Set<Layer> layers, 
+      ParallelProcessor processor, Checkpoint checkpoint, boolean resume) 
+      throws Exception {
+    return annotateFile(inputFile, layers, null, processor, checkpoint, resume, false);
+  }
+  
+  private static long annotateFile(String inputFile, Set<Layer> layers, 
+      Annotator annotator, ParallelProcessor processor, Checkpoint checkpoint, 
+      boolean resume, boolean binary) throws Exception {
+    if (resume && checkpoint != null && checkpoint.isUpToDate()) {
+      System.err.println(inputFile + " is up to date");
+      return checkpoint.getLines();
+    }
+    long skip = 0;
+    if (resume && checkpoint != null && checkpoint.canResume()) {
+      skip = checkpoint.resume();
+      System.err.println("Resuming " + inputFile + " after sentence " + skip);
+    }
+    SentenceLog writer = new SentenceLog(binary 
+        ? new BinaryAnnotationWriter(inputFile, layers, checkpoint)
+        : new AnnotationWriter(inputFile, layers, checkpoint), inputFile, skip);
+    LineReader rf = Metrics.meter(MappedReadFile.open(inputFile));
+    try {
+      for (long i = 0; i < skip && rf.skipLine(); i++) {
+        // already annotated
+      }
+      if (processor != null) {
+        processor.process(rf, writer);
+      } else {
+        while (rf.hasNextLine()) {
+          writer.write(annotator.annotate(rf.nextLine()));
+        }
+      }
+    } finally {
+      rf.close();
+      writer.close();
+    }
+    writer.printReport();
+    if (checkpoint != null) {
+      checkpoint.complete(writer.getCount());
+    }
+    return writer.getCount();
+  }
+  
+  /**
+   * @param inputFile
+   *          one sentence per line
+   * @param layers
+   *          the layers to compute
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @return
+   *          the checkpoint of annotating the file with these layers and model
+   */
+  public static Checkpoint newCheckpoint(String inputFile, Set<Layer> layers, 
+      String pathToModel) throws IOException {
+    return newCheckpoint(inputFile, layers, pathToModel, false);
+  }
+  
+  /**
+   * Same as {@link #newCheckpoint(String, Set, String)}
+   * @param binary
+   *          whether the layers are written to a single binary file
+   */
+  public static Checkpoint newCheckpoint(String inputFile, Set<Layer> layers, 
+      String pathToModel, boolean binary) throws IOException {
+    StringBuilder task = new StringBuilder("annotate");
+    for (Layer layer : EnumSet.copyOf(layers)) {
+      task.append(' ').append(layer.getOption());
+    }
+    task.append(' ').append(AnnotationStore.modelIdentity(pathToModel));
+    if (binary) {
+      task.append(" binary");
+      return new Checkpoint(inputFile, task.toString(), 
+          Collections.singletonList(BinaryAnnotationWriter.getPath(inputFile)));
+    }
+    return new Checkpoint(inputFile, task.toString(), 
+        AnnotationWriter.getPaths(inputFile, layers));
+  }
+  
   public void setInputFile(File path) {
     if (!path.isFile()) {
       System.err.println("I cannot read the file at " + path);
@@ -297,7 +437,31 @@ public class ArabicProcessor {
     INPUT_FILE = path.toString();
   }
   
-  private void setup(String[] args) throws FileNotFoundException, ClassNotFoundException, UnsupportedEncodingException, IOException, InterruptedException {
+  public void setPort(String number) {
+    try {
+      port = Integer.parseInt(number);
+    } catch (NumberFormatException e) {
+      port = -1;
+    }
+    if (port < 0 || port > 65535) {
+      System.err.println("The port must be a number between 0 and 65535: " + number);
+      System.exit(1);
+    }
+  }
+  
+  public void setThreads(String number) {
+    try {
+      threads = Integer.parseInt(number);
+    } catch (NumberFormatException e) {
+      threads = 0;
+    }
+    if (threads < 1) {
+      System.err.println("The number of threads must be a positive integer: " + number);
+      System.exit(1);
+    }
+  }
+  
+  private void setup(String[] args) throws Exception {
     HelpFormatter formatter = new HelpFormatter();
 //    int widthFormatter = 88;    
     
@@ -309,12 +473,25 @@ public class ArabicProcessor {
     
     options.addOption("m", "model", true, 
         "Path to the farasa model; if not set: " + DEFAULT_PATH_TO_FARASA_MODEL);
-    options.addOption("l", "lemmas", false, "Compute lemmas");
-    options.addOption("c", "clitics", false, "Compute clitics");
-    options.addOption("s", "segments", false,  "Compute segments");
-    options.addOption("p", "pos", false,    "Compute POS");
+    for (Layer layer : Layer.values()) {
+      options.addOption(layer.getOption(), layer.getLongOption(), false, 
+          "Compute " + layer.getLabel());
+    }
 //    options.addOption("n", "nes", false, "Compute NEs");
-    options.addOption("t", "tree", false,   "Compute parse tree");
+    
+    options.addOption(null, "threads", true, 
+        "Number of threads annotating sentences in parallel; default: 1");
+    options.addOption(null, "serve", true, 
+        "Annotate the text posted to this local port instead of a file; "
+        + "all the layers if none is requested");
+    options.addOption(null, "resume", false, 
+        "Continue an interrupted run from its checkpoint; skip the file if it is up to date");
+    options.addOption(null, "binary", false, 
+        "Write all the layers to one compact binary file (input path plus " 
+        + BinaryAnnotationWriter.FILE_SUFFIX + ") instead of one text file each");
+    
+    FarasaAnnotatorFactory.addOptions(options);
+    Metrics.addOptions(options);
     
     options.addOption("h", "help", false, "This help");
     
@@ -329,25 +506,32 @@ public class ArabicProcessor {
       System.err.println( "Unexpected exception:" + exp.getMessage() );     
     }
     
-    if (cLine == null || ! cLine.hasOption("f") ) {
+    if (cLine == null || cLine.hasOption("f") == cLine.hasOption("serve")) {
       System.err.println("Please, provide the necessary parameters");
       formatter.printHelp(ArabicProcessor.class.getSimpleName(),options);
       System.exit(1);
     }
     
-    setInputFile(new File(cLine.getOptionValue("f")));
+    if (cLine.hasOption("serve")) {
+      setPort(cLine.getOptionValue("serve"));
+    } else {
+      setInputFile(new File(cLine.getOptionValue("f")));
+    }
     
     if (cLine.hasOption("m")) {
       setPathToFarasaModel(cLine.getOptionValue("m"));
     }
-    farasaPOS = new FarasaPOSTagger(FARASA);
-    if (cLine.hasOption("p")) {
-      
-      p = new ConstituencyParser(PATH_TO_FARASA_MODEL);
-    } else if (cLine.hasOption("t")) {
-      p = new ConstituencyParser(PATH_TO_FARASA_MODEL);
+    if (cLine.hasOption("threads")) {
+      setThreads(cLine.getOptionValue("threads"));
+    }
+    resume = cLine.hasOption("resume");
+    binary = cLine.hasOption("binary");
+    factory = new FarasaAnnotatorFactory(PATH_TO_FARASA_MODEL, getRequestedLayers());
+    factory.configure(cLine);
+    Metrics.configure(cLine);
+    if (! getRequestedLayers().isEmpty() && ! factory.isProcesses()) {
+      loadModels(getRequestedLayers());
     }
-   
   }
   
   
@@ -355,7 +539,11 @@ public class ArabicProcessor {
     
     ArabicProcessor erc = new ArabicProcessor();
     erc.setup(args);
-    erc.run();
+    if (erc.port >= 0) {
+      erc.serve();
+    } else {
+      erc.run();
+    }
   }
   
 }
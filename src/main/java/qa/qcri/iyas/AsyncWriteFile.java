@@ -0,0 +1,325 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link WriteFile} whose disk I/O happens on a background thread. The
+ * text written is collected in a buffer of {@code bufferSize} chars; when it
+ * is full, it is handed to the background thread, which writes it to the
+ * file while the caller fills the next one. There are {@code buffers}
+ * buffers in total, so the memory is bounded: when all of them are waiting
+ * to be written, the caller blocks until one is free.
+ *
+ * The {@link FlushPolicy} sets when the text written reaches the operating
+ * system; {@link #flush()} always does it, and waits for it, whatever the
+ * policy (e.g., before committing a {@link Checkpoint}).
+ *
+ * Unlike {@link WriteFile}, errors are not printed: the first I/O error
+ * makes the following calls throw an {@link UncheckedIOException}, and
+ * {@link #close()}, which waits for every buffer to be written, throws it
+ * too. A file must be written from one thread at a time.
+ */
+public class AsyncWriteFile extends WriteFile {
+
+  /** When the background thread flushes the file */
+  public enum FlushPolicy {
+    /** Only on {@link AsyncWriteFile#flush()} and on close */
+    EXPLICIT,
+    /** After writing every buffer */
+    EVERY_BUFFER,
+    /**
+     * When the file has not been flushed for the given period; the current
+     * buffer is also handed off on the first write after the period
+     */
+    PERIODIC
+  }
+
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 18;
+
+  public static final int DEFAULT_BUFFERS = 4;
+
+  /** Marks the end of the file in the queue */
+  private static final StringBuilder END = new StringBuilder();
+
+  private final BufferedWriter sink;
+
+  private final int bufferSize;
+
+  private final FlushPolicy policy;
+
+  private final long periodMillis;
+
+  /** Buffers waiting to be written, in order */
+  private final BlockingQueue<StringBuilder> full;
+
+  /** Buffers already written, ready to be filled again */
+  private final BlockingQueue<StringBuilder> free;
+
+  private final Thread writer;
+
+  /** The buffer being filled by the caller */
+  private StringBuilder current;
+
+  /** When the current buffer started to be filled, for the PERIODIC policy */
+  private long currentSince = System.currentTimeMillis();
+
+  private final Object lock = new Object();
+
+  /** Number of buffers handed off; guarded by lock */
+  private long submitted;
+
+  /** Number of buffers handed off whose flush was requested; guarded by lock */
+  private long flushRequested;
+
+  /** Number of buffers written and flushed; guarded by lock */
+  private long flushed;
+
+  private volatile IOException error;
+
+  private boolean closed;
+
+  /**
+   * Opens the file with the default buffers and the EXPLICIT policy
+   * @param path
+   *          the output file; it is compressed if its name has the extension
+   *          of one of the {@link Compression} formats
+   * @param append
+   *          if true, the contents are written after the current ones
+   */
+  public AsyncWriteFile(String path, boolean append) {
+    this(path, append, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS, FlushPolicy.EXPLICIT, 0);
+  }
+
+  /**
+   * @param path
+   *          the output file; it is compressed if its name has the extension
+   *          of one of the {@link Compression} formats
+   * @param append
+   *          if true, the contents are written after the current ones
+   * @param bufferSize
+   *          the size of every buffer, in chars
+   * @param buffers
+   *          the number of buffers (at least 2): one is filled while the
+   *          others are written
+   * @param policy
+   *          when the file is flushed
+   * @param periodMillis
+   *          the flush period of the PERIODIC policy, in ms
+   */
+  public AsyncWriteFile(String path, boolean append, int bufferSize, int buffers,
+      FlushPolicy policy, long periodMillis) {
+    this(openSink(path, append, bufferSize), bufferSize, buffers, policy, periodMillis,
+        path);
+  }
+
+  private AsyncWriteFile(BufferedWriter sink, int bufferSize, int buffers,
+      FlushPolicy policy, long periodMillis, String path) {
+    super(sink);
+    if (bufferSize < 1 || buffers < 2) {
+      throw new IllegalArgumentException("At least two buffers of one char are needed");
+    }
+    if (policy == FlushPolicy.PERIODIC && periodMillis < 1) {
+      throw new IllegalArgumentException("The flush period must be positive");
+    }
+    this.sink = sink;
+    this.bufferSize = bufferSize;
+    this.policy = policy;
+    this.periodMillis = periodMillis;
+    full = new ArrayBlockingQueue<StringBuilder>(buffers);
+    free = new ArrayBlockingQueue<StringBuilder>(buffers);
+    for (int i = 1; i < buffers; i++) {
+      free.add(new StringBuilder(bufferSize));
+    }
+    current = new StringBuilder(bufferSize);
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "writer-" + path);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private static BufferedWriter openSink(String path, boolean append, int bufferSize) {
+    try {
+      return open(path, append, bufferSize);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** The loop of the background thread */
+  private void drain() {
+    long written = 0;
+    long lastFlush = System.currentTimeMillis();
+    boolean dirty = false;
+    try {
+      while (true) {
+        StringBuilder buffer = policy == FlushPolicy.PERIODIC
+            ? full.poll(periodMillis, TimeUnit.MILLISECONDS)
+            : full.take();
+        if (buffer == END) {
+          return;
+        }
+        boolean flush = policy == FlushPolicy.EVERY_BUFFER;
+        if (buffer != null) {
+          if (error == null && buffer.length() > 0) {
+            try {
+              sink.append(buffer);
+              dirty = true;
+            } catch (IOException e) {
+              error = e;
+            }
+          }
+          buffer.setLength(0);
+          if (buffer.capacity() > 2 * bufferSize) {
+            buffer = new StringBuilder(bufferSize);
+          }
+          free.put(buffer);
+          written++;
+          synchronized (lock) {
+            flush |= flushRequested >= written;
+          }
+        }
+        if (policy == FlushPolicy.PERIODIC
+            && System.currentTimeMillis() - lastFlush >= periodMillis) {
+          flush |= dirty;
+        }
+        if (flush) {
+          if (error == null) {
+            try {
+              sink.flush();
+            } catch (IOException e) {
+              error = e;
+            }
+          }
+          dirty = false;
+          lastFlush = System.currentTimeMillis();
+          synchronized (lock) {
+            flushed = written;
+            lock.notifyAll();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      error = new InterruptedIOException("Interrupted while writing");
+    } finally {
+      synchronized (lock) {
+        flushed = Long.MAX_VALUE;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void checkState() {
+    if (closed) {
+      throw new IllegalStateException("The file is closed");
+    }
+    if (error != null) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  /** Hands the current buffer to the background thread and takes a free one */
+  private void handOff() {
+    try {
+      synchronized (lock) {
+        submitted++;
+      }
+      full.put(current);
+      current = free.take();
+      currentSince = System.currentTimeMillis();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new InterruptedIOException("Interrupted while writing"));
+    }
+  }
+
+  @Override
+  public void write(String content) {
+    checkState();
+    current.append(content);
+    handOffIfDue();
+  }
+
+  @Override
+  public void writeLn(String content) {
+    checkState();
+    current.append(content).append(System.lineSeparator());
+    handOffIfDue();
+  }
+
+  private void handOffIfDue() {
+    if (current.length() >= bufferSize || (policy == FlushPolicy.PERIODIC
+        && System.currentTimeMillis() - currentSince >= periodMillis)) {
+      handOff();
+    }
+  }
+
+  /**
+   * Hands off the current buffer and waits until everything written so far
+   * has reached the operating system
+   */
+  @Override
+  public void flush() {
+    checkState();
+    long target;
+    synchronized (lock) {
+      target = submitted + 1;
+      flushRequested = target;
+    }
+    handOff();
+    try {
+      synchronized (lock) {
+        while (flushed < target) {
+          lock.wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedIOException(new InterruptedIOException("Interrupted while flushing"));
+    }
+    checkState();
+  }
+
+  /**
+   * Waits for everything to be written and closes the file
+   * @throws UncheckedIOException
+   *          if any write failed
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      full.put(current);
+      full.put(END);
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      writer.interrupt();
+      if (error == null) {
+        error = new InterruptedIOException("Interrupted while closing");
+      }
+    }
+    try {
+      sink.close();
+    } catch (IOException e) {
+      if (error == null) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw new UncheckedIOException(error);
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Reads the binary files written by {@link BinaryAnnotationWriter}, whose
+ * format is described there. Opening a file only reads its footer (the
+ * dictionaries and the size of every record); any sentence can then be read
+ * with {@link #get(long)} without reading the others. A reader can be used
+ * from several threads.
+ */
+public class BinaryAnnotationReader {
+
+  static final byte[] MAGIC = "APB1".getBytes(StandardCharsets.US_ASCII);
+
+  static final byte[] TRAILER_MAGIC = "APBF".getBytes(StandardCharsets.US_ASCII);
+
+  static final int VERSION = 1;
+
+  static final int HEADER_LENGTH = MAGIC.length + 2;
+
+  private static final int TRAILER_LENGTH = 8 + TRAILER_MAGIC.length;
+
+  private static final String SEPARATOR = " ";
+
+  private static final String SEPARATOR_POS = "/";
+
+  private final File file;
+
+  private final RandomAccessFile raf;
+
+  private final FileChannel channel;
+
+  private final Set<Layer> layers;
+
+  private final String[] tokens;
+
+  private final String[] tags;
+
+  /** Offset of every record, plus the end of the last one */
+  private final long[] offsets;
+
+  /**
+   * @param file
+   *          a file written by {@link BinaryAnnotationWriter}
+   */
+  public BinaryAnnotationReader(File file) throws IOException {
+    this.file = file;
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    try {
+      ByteBuffer header = read(0, HEADER_LENGTH);
+      layers = readHeader(header, file);
+
+      long size = channel.size();
+      if (size < HEADER_LENGTH + TRAILER_LENGTH) {
+        throw new IOException(file + " is incomplete");
+      }
+      ByteBuffer trailer = read(size - TRAILER_LENGTH, TRAILER_LENGTH);
+      long footer = trailer.getLong();
+      byte[] magic = new byte[TRAILER_MAGIC.length];
+      trailer.get(magic);
+      if (! Arrays.equals(magic, TRAILER_MAGIC) || footer < HEADER_LENGTH
+          || footer > size - TRAILER_LENGTH) {
+        throw new IOException(file + " is incomplete (it has no footer)");
+      }
+
+      ByteBuffer in = read(footer, (int) (size - TRAILER_LENGTH - footer));
+      tokens = new String[(int) readVarint(in)];
+      for (int i = 0; i < tokens.length; i++) {
+        tokens[i] = readString(in);
+      }
+      tags = new String[(int) readVarint(in)];
+      for (int i = 0; i < tags.length; i++) {
+        tags[i] = readString(in);
+      }
+      offsets = new long[(int) readVarint(in) + 1];
+      offsets[0] = HEADER_LENGTH;
+      for (int i = 1; i < offsets.length; i++) {
+        offsets[i] = offsets[i - 1] + readVarint(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  static Set<Layer> readHeader(ByteBuffer header, File file) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+    if (! Arrays.equals(magic, MAGIC) || header.get() != VERSION) {
+      throw new IOException(file + " is not a binary annotation file");
+    }
+    return layers(header.get());
+  }
+
+  /** @return the header byte with one bit per layer */
+  static int mask(Set<Layer> layers) {
+    int mask = 0;
+    for (Layer layer : layers) {
+      mask |= 1 << layer.ordinal();
+    }
+    return mask;
+  }
+
+  static Set<Layer> layers(int mask) {
+    Set<Layer> layers = EnumSet.noneOf(Layer.class);
+    for (Layer layer : Layer.values()) {
+      if ((mask & (1 << layer.ordinal())) != 0) {
+        layers.add(layer);
+      }
+    }
+    return layers;
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException(file + " is truncated");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /** @return the number of sentences */
+  public long size() {
+    return offsets.length - 1;
+  }
+
+  /** @return the layers in the file */
+  public Set<Layer> getLayers() {
+    return EnumSet.copyOf(layers);
+  }
+
+  /** @return the number of distinct tokens in the dictionary */
+  public int getTokenCount() {
+    return tokens.length;
+  }
+
+  /**
+   * @param sentence
+   *          the index of the sentence, from 0
+   * @return
+   *          the lines of all the layers in the file for that sentence
+   */
+  public Annotation get(long sentence) throws IOException {
+    if (sentence < 0 || sentence >= size()) {
+      throw new IndexOutOfBoundsException("Sentence " + sentence + " of " + size());
+    }
+    int index = (int) sentence;
+    ByteBuffer record = read(offsets[index], (int) (offsets[index + 1] - offsets[index]));
+    readVarint(record);
+    return decode(record, layers, new Dictionary(tokens, tags));
+  }
+
+  public void close() throws IOException {
+    raf.close();
+  }
+
+  /** The tokens and tags known while decoding */
+  private static class Dictionary {
+    final List<String> tokens;
+    final List<String> tags;
+    /** Whether the inline entries are new (scanning) or already known */
+    final boolean learn;
+
+    Dictionary(String[] tokens, String[] tags) {
+      this.tokens = Arrays.asList(tokens);
+      this.tags = Arrays.asList(tags);
+      this.learn = false;
+    }
+
+    Dictionary() {
+      this.tokens = new ArrayList<String>();
+      this.tags = new ArrayList<String>();
+      this.learn = true;
+    }
+  }
+
+  private static Annotation decode(ByteBuffer record, Set<Layer> layers,
+      Dictionary dictionary) {
+    Annotation annotation = new Annotation();
+    StringBuilder line = new StringBuilder();
+    for (Layer layer : layers) {
+      line.setLength(0);
+      long pieces = readVarint(record);
+      for (long i = 0; i < pieces; i++) {
+        if (i > 0) {
+          line.append(SEPARATOR);
+        }
+        line.append(decodeToken(record, dictionary));
+        if (layer == Layer.POS) {
+          String tag = decodeTag(record, dictionary);
+          if (tag != null) {
+            line.append(SEPARATOR_POS).append(tag);
+          }
+        }
+      }
+      annotation.set(layer, line.toString());
+    }
+    return annotation;
+  }
+
+  private static String decodeToken(ByteBuffer record, Dictionary dictionary) {
+    long code = readVarint(record);
+    if (code > 0) {
+      return dictionary.tokens.get((int) (code - 1));
+    }
+    String token = readString(record);
+    if (dictionary.learn) {
+      dictionary.tokens.add(token);
+    }
+    return token;
+  }
+
+  /** @return the tag, or null if the piece had no "/" */
+  private static String decodeTag(ByteBuffer record, Dictionary dictionary) {
+    long code = readVarint(record);
+    if (code == 0) {
+      return null;
+    }
+    if (code > 1) {
+      return dictionary.tags.get((int) (code - 2));
+    }
+    String tag = readString(record);
+    if (dictionary.learn) {
+      dictionary.tags.add(tag);
+    }
+    return tag;
+  }
+
+  static long readVarint(ByteBuffer in) {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+    }
+  }
+
+  private static String readString(ByteBuffer in) {
+    int length = (int) readVarint(in);
+    String text = new String(in.array(), in.arrayOffset() + in.position(), length,
+        StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return text;
+  }
+
+  /**
+   * Reads the records of a file in order without its footer, rebuilding the
+   * dictionaries on the way; used to resume an interrupted run
+   */
+  static class Scanner {
+
+    private final DataInputStream in;
+
+    private final Set<Layer> layers;
+
+    private final Dictionary dictionary = new Dictionary();
+
+    private long position;
+
+    private byte[] buffer = new byte[1024];
+
+    Scanner(File file) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      byte[] header = new byte[HEADER_LENGTH];
+      try {
+        in.readFully(header);
+        layers = readHeader(ByteBuffer.wrap(header), file);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      position = HEADER_LENGTH;
+    }
+
+    /** @return the size of the next record, or -1 at the end of the file */
+    int next() throws IOException {
+      int first = in.read();
+      if (first < 0) {
+        return -1;
+      }
+      long length = first & 0x7F;
+      int prefix = 1;
+      for (int b = first, shift = 7; (b & 0x80) != 0; shift += 7, prefix++) {
+        b = readByte(in);
+        length |= (long) (b & 0x7F) << shift;
+      }
+      if (buffer.length < length) {
+        buffer = new byte[(int) Math.max(length, buffer.length * 2L)];
+      }
+      in.readFully(buffer, 0, (int) length);
+      decode(ByteBuffer.wrap(buffer, 0, (int) length), layers, dictionary);
+      position += prefix + length;
+      return (int) (prefix + length);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      return b;
+    }
+
+    Set<Layer> getLayers() {
+      return layers;
+    }
+
+    List<String> getTokens() {
+      return dictionary.tokens;
+    }
+
+    List<String> getTags() {
+      return dictionary.tags;
+    }
+
+    /** @return the end of the last record read */
+    long getPosition() {
+      return position;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    HelpFormatter formatter = new HelpFormatter();
+    Options options= new Options();
+    CommandLineParser parser = new DefaultParser();
+
+    options.addOption("f", "input", true, "Binary annotation file ("
+        + BinaryAnnotationWriter.FILE_SUFFIX + ")");
+    options.addOption("n", "sentence", true, "Print the layers of this sentence (from 0)");
+    options.addOption(null, "export", false,
+        "Write the text file of every layer, as ArabicProcessor does");
+    options.addOption("h", "help", false, "This help");
+
+    CommandLine cLine = null;
+    try {
+      cLine = parser.parse( options, args );
+    } catch( ParseException exp ) {
+      System.err.println( "Unexpected exception:" + exp.getMessage() );
+    }
+
+    if (cLine == null || cLine.hasOption("h") || ! cLine.hasOption("f")) {
+      System.err.println("Please, provide the necessary parameters");
+      formatter.printHelp(BinaryAnnotationReader.class.getSimpleName(), options);
+      System.exit(1);
+    }
+
+    File file = new File(cLine.getOptionValue("f"));
+    if (! file.isFile()) {
+      System.err.println("I cannot read the file at " + file);
+      System.exit(1);
+    }
+    BinaryAnnotationReader reader = new BinaryAnnotationReader(file);
+    System.err.println(file + ": " + reader.size() + " sentences, "
+        + reader.getTokenCount() + " distinct tokens, layers " + reader.getLayers());
+    if (cLine.hasOption("n")) {
+      Annotation annotation = reader.get(Long.parseLong(cLine.getOptionValue("n")));
+      for (Layer layer : reader.getLayers()) {
+        System.out.println(layer.getLongOption() + "\t" + annotation.get(layer));
+      }
+    }
+    if (cLine.hasOption("export")) {
+      String path = file.toString();
+      if (path.endsWith(BinaryAnnotationWriter.FILE_SUFFIX)) {
+        path = path.substring(0, path.length() - BinaryAnnotationWriter.FILE_SUFFIX.length());
+      }
+      AnnotationWriter writer = new AnnotationWriter(path, reader.getLayers());
+      for (long i = 0; i < reader.size(); i++) {
+        writer.write(reader.get(i));
+      }
+      writer.close();
+    }
+    reader.close();
+  }
+}
@@ -0,0 +1,318 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes all the layers of a file into a single compact binary file (the
+ * input path plus {@value #FILE_SUFFIX}), which can be read with random
+ * access by sentence with {@link BinaryAnnotationReader}.
+ *
+ * Every line is split on single spaces and each piece is replaced by its id
+ * in a token dictionary shared by all the layers; in the POS layer, the part
+ * after the last "/" of every piece (the tag and gender-number, e.g.
+ * NOUN-MS) is coded in a separate tag dictionary. This is lossless: the
+ * reader returns exactly the lines of the text outputs.
+ *
+ * <pre>
+ * file     := header record* footer trailer
+ * header   := "APB1" version:u8 layers:u8 (bit i is Layer.values()[i])
+ * record   := length:varint (line of every layer, in layer order)
+ * line     := pieces:varint piece*
+ * piece    := token [tag]                  (tag only in the POS layer)
+ * token    := 0 length:varint utf8         (first occurrence: next id)
+ *           | id+1:varint
+ * tag      := 0                            (no "/" in the piece)
+ *           | 1 length:varint utf8         (first occurrence: next id)
+ *           | id+2:varint
+ * footer   := tokens:varint (length:varint utf8)*
+ *             tags:varint (length:varint utf8)*
+ *             sentences:varint (record size:varint)*
+ * trailer  := footer offset:u64 "APBF"
+ * </pre>
+ *
+ * New tokens and tags are written inline the first time they appear, so the
+ * records can be decoded in order without the footer. This is what allows
+ * a run to be resumed: the records committed in the checkpoint are scanned
+ * to rebuild the dictionaries and the new records are appended. The footer
+ * repeats the dictionaries and the record sizes so that a reader can open
+ * the file without scanning it.
+ */
+public class BinaryAnnotationWriter implements AnnotationSink {
+
+  public static final String FILE_SUFFIX = ".apb";
+
+  private final String path;
+
+  private final Set<Layer> layers;
+
+  private final int flushInterval;
+
+  /** Null if no checkpoints are kept */
+  private final Checkpoint checkpoint;
+
+  private final OutputStream out;
+
+  private final Map<String, Integer> tokens = new HashMap<String, Integer>();
+
+  private final Map<String, Integer> tags = new HashMap<String, Integer>();
+
+  private final List<String> tokenList = new ArrayList<String>();
+
+  private final List<String> tagList = new ArrayList<String>();
+
+  /** Size of every record, in sentence order */
+  private int[] sizes = new int[1024];
+
+  private long counter;
+
+  /** Bytes written so far */
+  private long position;
+
+  /** The record being built, reused for all the sentences */
+  private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+  private final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+
+  /**
+   * @param inputFile
+   *          the input file; the output has its path plus {@value #FILE_SUFFIX}
+   * @param layers
+   *          the layers to write
+   * @param checkpoint
+   *          where every flush is committed, with {@link #getPath(String)} as
+   *          its only output; if it has been resumed, the annotations are
+   *          appended to the current output. Null for no checkpoints.
+   */
+  public BinaryAnnotationWriter(String inputFile, Set<Layer> layers, Checkpoint checkpoint)
+      throws IOException {
+    this.path = getPath(inputFile);
+    this.layers = EnumSet.copyOf(layers);
+    this.flushInterval = AnnotationWriter.DEFAULT_FLUSH_INTERVAL;
+    this.checkpoint = checkpoint;
+    File file = new File(path);
+    boolean append = checkpoint != null && checkpoint.isResumed();
+    if (append) {
+      rebuild(file);
+    }
+    out = new BufferedOutputStream(new FileOutputStream(file, append), 1 << 16);
+    if (! append) {
+      out.write(BinaryAnnotationReader.MAGIC);
+      out.write(BinaryAnnotationReader.VERSION);
+      out.write(BinaryAnnotationReader.mask(this.layers));
+      position = BinaryAnnotationReader.HEADER_LENGTH;
+    }
+  }
+
+  /**
+   * @param inputFile
+   *          the input file
+   * @return
+   *          the path of the binary output, which is never compressed (for 
+   *          random access) even if the input is
+   */
+  public static String getPath(String inputFile) {
+    return Compression.stripExtension(inputFile) + FILE_SUFFIX;
+  }
+
+  /** Reads the records of an interrupted run to continue after them */
+  private void rebuild(File file) throws IOException {
+    BinaryAnnotationReader.Scanner scanner = new BinaryAnnotationReader.Scanner(file);
+    try {
+      if (! scanner.getLayers().equals(layers)) {
+        throw new IOException(file + " has other layers: " + scanner.getLayers());
+      }
+      int size;
+      while ((size = scanner.next()) >= 0) {
+        addSize(size);
+      }
+      for (String token : scanner.getTokens()) {
+        tokens.put(token, tokenList.size());
+        tokenList.add(token);
+      }
+      for (String tag : scanner.getTags()) {
+        tags.put(tag, tagList.size());
+        tagList.add(tag);
+      }
+      position = scanner.getPosition();
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private void addSize(int size) {
+    if (counter == sizes.length) {
+      sizes = Arrays.copyOf(sizes, sizes.length * 2);
+    }
+    sizes[(int) counter++] = size;
+  }
+
+  @Override
+  public void write(Annotation annotation) {
+    long start = Metrics.start();
+    record.reset();
+    String first = null;
+    for (Layer layer : layers) {
+      String line = annotation.get(layer);
+      if (line == null) {
+        throw new IllegalArgumentException("The annotation has no " + layer.getLabel());
+      }
+      writeLine(line, layer == Layer.POS);
+      if (first == null) {
+        first = line;
+      }
+    }
+    prefix.reset();
+    writeVarint(prefix, record.size());
+    try {
+      prefix.writeTo(out);
+      record.writeTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    int size = prefix.size() + record.size();
+    position += size;
+    addSize(size);
+    if (counter % flushInterval == 0) {
+      flush();
+    }
+    Metrics.record(Metrics.Stage.WRITE, first == null ? "" : first, start);
+  }
+
+  private void writeLine(String line, boolean pos) {
+    int pieces = 1;
+    for (int i = 0; i < line.length(); i++) {
+      if (line.charAt(i) == ' ') {
+        pieces++;
+      }
+    }
+    writeVarint(record, pieces);
+    int start = 0;
+    while (true) {
+      int end = line.indexOf(' ', start);
+      String piece = end < 0 ? line.substring(start) : line.substring(start, end);
+      if (pos) {
+        int slash = piece.lastIndexOf('/');
+        if (slash < 0) {
+          writeToken(piece);
+          writeVarint(record, 0);
+        } else {
+          writeToken(piece.substring(0, slash));
+          writeTag(piece.substring(slash + 1));
+        }
+      } else {
+        writeToken(piece);
+      }
+      if (end < 0) {
+        return;
+      }
+      start = end + 1;
+    }
+  }
+
+  private void writeToken(String token) {
+    Integer id = tokens.get(token);
+    if (id == null) {
+      tokens.put(token, tokenList.size());
+      tokenList.add(token);
+      writeVarint(record, 0);
+      writeString(record, token);
+    } else {
+      writeVarint(record, id + 1);
+    }
+  }
+
+  private void writeTag(String tag) {
+    Integer id = tags.get(tag);
+    if (id == null) {
+      tags.put(tag, tagList.size());
+      tagList.add(tag);
+      writeVarint(record, 1);
+      writeString(record, tag);
+    } else {
+      writeVarint(record, id + 2);
+    }
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static void writeString(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /** Pushes the records written so far to disk and commits the checkpoint */
+  @Override
+  public void flush() {
+    try {
+      out.flush();
+      if (checkpoint != null) {
+        checkpoint.commit(counter);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return counter;
+  }
+
+  /** @return the number of distinct tokens in the dictionary */
+  public int getTokenCount() {
+    return tokenList.size();
+  }
+
+  /** Writes the dictionaries and the index after the records */
+  @Override
+  public void close() {
+    flush();
+    try {
+      long footer = position;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      writeVarint(bytes, tokenList.size());
+      for (String token : tokenList) {
+        writeString(bytes, token);
+      }
+      writeVarint(bytes, tagList.size());
+      for (String tag : tagList) {
+        writeString(bytes, tag);
+      }
+      writeVarint(bytes, counter);
+      for (int i = 0; i < counter; i++) {
+        writeVarint(bytes, sizes[i]);
+      }
+      for (int i = 7; i >= 0; i--) {
+        bytes.write((int) (footer >>> (8 * i)));
+      }
+      bytes.write(BinaryAnnotationReader.TRAILER_MAGIC);
+      bytes.writeTo(out);
+      out.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    System.err.println("All the layers written to file " + path + " (" + counter
+        + " sentences, " + tokenList.size() + " distinct tokens)");
+  }
+}
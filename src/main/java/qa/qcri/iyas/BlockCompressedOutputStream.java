@@ -0,0 +1,143 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses what is written to it in blocks that are compressed on the
+ * threads of {@link Compression#getPool()} while the next ones are being
+ * filled, and writes them in order. Every block becomes a complete gzip
+ * member or xz stream, so {@link #flush()} ends the current block: after
+ * it, the underlying file is a valid compressed file with everything written
+ * so far. At most two blocks per compression thread are pending at a time;
+ * the writer waits for the oldest one beyond that.
+ *
+ * Not thread-safe, as any other output stream.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+  private final OutputStream out;
+
+  private final Compression compression;
+
+  private final int maxPending;
+
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+  private byte[] block;
+
+  private int count;
+
+  private boolean closed;
+
+  /**
+   * @param out
+   *          where the compressed blocks are written
+   * @param compression
+   *          the format of the blocks
+   */
+  public BlockCompressedOutputStream(OutputStream out, Compression compression) {
+    if (compression == Compression.NONE) {
+      throw new IllegalArgumentException("No compression format given");
+    }
+    this.out = out;
+    this.compression = compression;
+    this.maxPending = 2 * Compression.getThreads();
+    this.block = new byte[compression.getBlockSize()];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count == block.length) {
+      submit();
+    }
+    block[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == block.length) {
+        submit();
+      }
+      int n = Math.min(len, block.length - count);
+      System.arraycopy(b, off, block, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Hands the current block to the compression threads */
+  private void submit() throws IOException {
+    if (closed) {
+      throw new IOException("The stream is closed");
+    }
+    final byte[] data = block;
+    final int length = count;
+    pending.add(Compression.getPool().submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return compression.compressBlock(data, length);
+      }
+    }));
+    block = new byte[compression.getBlockSize()];
+    count = 0;
+    while (pending.size() >= maxPending) {
+      writeNext();
+    }
+  }
+
+  /** Waits for the oldest pending block and writes it */
+  private void writeNext() throws IOException {
+    Future<byte[]> next = pending.poll();
+    try {
+      out.write(next.get());
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause()
+          : new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    }
+  }
+
+  /**
+   * Compresses the current block, even if it is not full, and writes all the
+   * pending ones
+   */
+  @Override
+  public void flush() throws IOException {
+    if (count > 0) {
+      submit();
+    }
+    while (! pending.isEmpty()) {
+      writeNext();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      for (Future<byte[]> future : pending) {
+        future.cancel(false);
+      }
+      pending.clear();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Serves exact repeats of previous sentences from a {@link SentenceCache} and
+ * delegates the rest to another annotator.
+ */
+public class CachingAnnotator implements Annotator {
+
+  private final Annotator delegate;
+
+  private final SentenceCache cache;
+
+  /**
+   * @param delegate
+   *          computes the annotations of the sentences not in the cache
+   * @param cache
+   *          shared by all the annotators with the same layers
+   */
+  public CachingAnnotator(Annotator delegate, SentenceCache cache) {
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  @Override
+  public Annotation annotate(String text) throws Exception {
+    HashCode key = SentenceCache.hash(text);
+    Annotation annotation = cache.get(key);
+    if (annotation == null) {
+      annotation = delegate.annotate(text);
+      if (! annotation.isTimedOut()) {
+        cache.put(key, annotation);
+      }
+    }
+    return annotation;
+  }
+
+  /** Delegates the sentences not in the cache together, as one batch */
+  @Override
+  public List<Annotation> annotate(List<String> texts) throws Exception {
+    HashCode[] keys = new HashCode[texts.size()];
+    Annotation[] annotations = new Annotation[texts.size()];
+    List<String> missing = new ArrayList<String>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = SentenceCache.hash(texts.get(i));
+      annotations[i] = cache.get(keys[i]);
+      if (annotations[i] == null) {
+        missing.add(texts.get(i));
+      }
+    }
+    if (missing.isEmpty()) {
+      return Arrays.asList(annotations);
+    }
+    Iterator<Annotation> computed = delegate.annotate(missing).iterator();
+    for (int i = 0; i < keys.length; i++) {
+      if (annotations[i] == null) {
+        annotations[i] = computed.next();
+        if (! annotations[i].isTimedOut()) {
+          cache.put(keys[i], annotations[i]);
+        }
+      }
+    }
+    return Arrays.asList(annotations);
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
@@ -0,0 +1,249 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The progress of a long task over one input file, kept in a properties file
+ * next to the input. Every commit records the number of input lines already
+ * processed, the size of every output file at that point and any extra state
+ * of the task, so that an interrupted run can truncate the outputs to the
+ * last commit and continue from there.
+ *
+ * The checkpoint also records a hash of the input contents and a description
+ * of the task (e.g., the layers and the model). Once the task is complete, a
+ * new run of the same task over the same contents is up to date and can be
+ * skipped.
+ */
+public class Checkpoint {
+
+  public static final String FILE_SUFFIX = ".checkpoint";
+
+  private static final String KEY_INPUT_HASH = "input.hash";
+  private static final String KEY_TASK = "task";
+  private static final String KEY_LINES = "lines";
+  private static final String KEY_COMPLETE = "complete";
+  private static final String PREFIX_OUTPUT = "output.";
+  private static final String PREFIX_STATE = "state.";
+
+  private final File file;
+
+  private final String inputHash;
+
+  private final String task;
+
+  private final List<String> outputs;
+
+  /** The last commit of a previous run of the same task; null if none */
+  private final Properties previous;
+
+  /** The extra state to record with the next commit */
+  private final Properties state = new Properties();
+
+  private boolean resumed;
+
+  /**
+   * Hashes the input and loads the checkpoint of the previous run, if any
+   * @param input
+   *          the input file
+   * @param task
+   *          what is done with the input; a checkpoint for another task is
+   *          ignored
+   * @param outputs
+   *          the files generated from the input
+   */
+  public Checkpoint(String input, String task, List<String> outputs) throws IOException {
+    this.file = new File(input + FILE_SUFFIX);
+    this.inputHash = Files.asByteSource(new File(input))
+        .hash(Hashing.murmur3_128()).toString();
+    this.task = task;
+    this.outputs = new ArrayList<String>(outputs);
+    this.previous = load();
+  }
+
+  /** @return the previous commit if it was for the same task and contents */
+  private Properties load() {
+    if (! file.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Ignoring the unreadable checkpoint " + file);
+      return null;
+    }
+    if (! inputHash.equals(properties.getProperty(KEY_INPUT_HASH))
+        || ! task.equals(properties.getProperty(KEY_TASK))) {
+      return null;
+    }
+    return properties;
+  }
+
+  /**
+   * @return
+   *        true if a previous run completed the same task on the same
+   *        contents and its outputs are still as it left them
+   */
+  public boolean isUpToDate() {
+    if (previous == null
+        || ! Boolean.parseBoolean(previous.getProperty(KEY_COMPLETE))) {
+      return false;
+    }
+    for (int i = 0; i < outputs.size(); i++) {
+      File output = new File(outputs.get(i));
+      if (! output.isFile() || output.length() != getCommittedLength(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return
+   *        true if a previous run of the same task on the same contents was
+   *        interrupted and all its outputs reach the last commit
+   */
+  public boolean canResume() {
+    if (previous == null
+        || Boolean.parseBoolean(previous.getProperty(KEY_COMPLETE))
+        || getLines() == 0) {
+      return false;
+    }
+    for (int i = 0; i < outputs.size(); i++) {
+      File output = new File(outputs.get(i));
+      long length = getCommittedLength(i);
+      if (length < 0 || ! output.isFile() || output.length() < length) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long getCommittedLength(int output) {
+    String length = previous.getProperty(PREFIX_OUTPUT + output);
+    String path = previous.getProperty(PREFIX_OUTPUT + output + ".path");
+    if (length == null || ! outputs.get(output).equals(path)) {
+      return -1;
+    }
+    return Long.parseLong(length);
+  }
+
+  /**
+   * Truncates the outputs to their length at the last commit. The outputs
+   * have to be opened for appending afterwards.
+   * @return
+   *        the number of input lines processed at the last commit
+   */
+  public long resume() throws IOException {
+    if (! canResume()) {
+      throw new IllegalStateException("There is no run to resume for " + file);
+    }
+    for (int i = 0; i < outputs.size(); i++) {
+      RandomAccessFile output = new RandomAccessFile(outputs.get(i), "rw");
+      try {
+        output.setLength(getCommittedLength(i));
+      } finally {
+        output.close();
+      }
+    }
+    resumed = true;
+    return getLines();
+  }
+
+  /** @return true if {@link #resume()} has been called */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * @return
+   *        the number of input lines processed at the last commit of the
+   *        previous run; 0 if none
+   */
+  public long getLines() {
+    return previous == null
+        ? 0
+        : Long.parseLong(previous.getProperty(KEY_LINES, "0"));
+  }
+
+  /**
+   * @param key
+   * @return
+   *        the extra state recorded with the last commit of the previous run;
+   *        null if none
+   */
+  public String getState(String key) {
+    return previous == null
+        ? null
+        : previous.getProperty(PREFIX_STATE + key);
+  }
+
+  /**
+   * @param key
+   * @param value
+   *          extra state to record with the next commit
+   */
+  public void setState(String key, String value) {
+    state.setProperty(PREFIX_STATE + key, value);
+  }
+
+  /**
+   * Records the progress so far. The outputs must have been flushed.
+   * @param lines
+   *          number of input lines processed
+   */
+  public void commit(long lines) throws IOException {
+    save(lines, false);
+  }
+
+  /**
+   * Records that the task is done. The outputs must have been closed.
+   * @param lines
+   *          number of input lines processed
+   */
+  public void complete(long lines) throws IOException {
+    save(lines, true);
+  }
+
+  private void save(long lines, boolean complete) throws IOException {
+    Properties properties = new Properties();
+    properties.putAll(state);
+    properties.setProperty(KEY_INPUT_HASH, inputHash);
+    properties.setProperty(KEY_TASK, task);
+    properties.setProperty(KEY_LINES, String.valueOf(lines));
+    properties.setProperty(KEY_COMPLETE, String.valueOf(complete));
+    for (int i = 0; i < outputs.size(); i++) {
+      properties.setProperty(PREFIX_OUTPUT + i + ".path", outputs.get(i));
+      properties.setProperty(PREFIX_OUTPUT + i,
+          String.valueOf(new File(outputs.get(i)).length()));
+    }
+    // write and rename, so that a crash never leaves half a checkpoint
+    File temp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+    java.nio.file.Files.move(temp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,398 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Processes a whole corpus in one JVM. The books come either from a directory,
+ * which is explored recursively, or from a manifest file with one path per
+ * line. Every worker thread loads the models once and then processes whole
+ * books, the largest ones first, so that the startup cost is paid once per
+ * corpus and not once per book.
+ *
+ * With --markdown, the mARkdown is removed from every OpenITI book and its
+ * sentences are identified before annotating them (as {@link MARkdown} does);
+ * otherwise the books are the .sent files generated by {@link MARkdown}.
+ *
+ * The result of every book (or the reason why it failed) is written to a
+ * tab-separated run summary as soon as the book is done.
+ *
+ * Every book keeps its checkpoints (see {@link Checkpoint}). With --resume,
+ * the books whose contents have not changed since they were completed are
+ * skipped and the interrupted ones continue where they were left.
+ */
+public class CorpusProcessor {
+
+  private static final String DEFAULT_SUMMARY_FILE = "corpus-summary.tsv";
+
+  private static final String MANIFEST_COMMENT = "#";
+
+  private static final String STATUS_DONE = "done";
+  private static final String STATUS_FAILED = "failed";
+  private static final String STATUS_SKIPPED = "skipped";
+
+  private final EnumSet<Layer> layers;
+
+  private final boolean markdown;
+
+  private final int threads;
+
+  private boolean resume;
+
+  private boolean binary;
+
+  private final FarasaAnnotatorFactory factory;
+
+  /** The annotator of each worker thread, created with its first book */
+  private final ThreadLocal<Annotator> annotators = new ThreadLocal<Annotator>();
+
+  /** The annotators of all the worker threads, closed once the corpus is done */
+  private final Queue<Annotator> created = new ConcurrentLinkedQueue<Annotator>();
+
+  private WriteFile summary;
+
+  private int failures;
+
+  /**
+   * @param factory
+   *          creates the annotator of every worker thread, for the layers
+   *          to compute for every book
+   * @param markdown
+   *          whether the books are OpenITI files whose mARkdown is removed first
+   * @param threads
+   *          number of books processed in parallel
+   */
+  public CorpusProcessor(FarasaAnnotatorFactory factory, boolean markdown,
+      int threads) {
+    this.layers = EnumSet.noneOf(Layer.class);
+    this.layers.addAll(factory.getLayers());
+    this.markdown = markdown;
+    this.threads = threads;
+    this.factory = factory;
+  }
+
+  /**
+   * @param resume
+   *          whether to skip the books that are up to date and to continue
+   *          the interrupted ones from their checkpoints
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * @param binary
+   *          whether to write the layers of every book to one binary file
+   *          (see {@link BinaryAnnotationWriter}) instead of one text file each
+   */
+  public void setBinary(boolean binary) {
+    this.binary = binary;
+  }
+
+  /**
+   * Processes the given books, the largest first, and writes one line per
+   * book to the summary file
+   * @param books
+   *          the input files
+   * @param summaryFile
+   *          the tab-separated run summary
+   * @return
+   *          the number of books that failed
+   */
+  public int process(List<File> books, String summaryFile)
+      throws InterruptedException, IOException {
+    List<File> sorted = new ArrayList<File>(books);
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f2.length(), f1.length());
+      }
+    });
+
+    summary = new WriteFile(summaryFile);
+    summary.writeLn("#file\tstatus\tbytes\tsentences\tseconds\tmessage");
+    failures = 0;
+
+    System.err.println("Processing " + sorted.size() + " books on "
+        + threads + " threads");
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (final File book : sorted) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          processBook(book);
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    Annotator annotator;
+    while ((annotator = created.poll()) != null) {
+      close(annotator);
+    }
+    summary.close();
+
+    factory.printReport();
+    factory.close();
+    System.err.print(Metrics.getSummary());
+    System.err.println((sorted.size() - failures) + " books processed, "
+        + failures + " failed; summary written to " + summaryFile);
+    return failures;
+  }
+
+  private void processBook(File book) {
+    long start = System.currentTimeMillis();
+    long sentences = 0;
+    try {
+      if (! (book.isFile() && book.canRead())) {
+        throw new IllegalArgumentException("I cannot read the file");
+      }
+      String input = book.toString();
+      boolean skipped = resume;
+      if (markdown) {
+        Checkpoint checkpoint = MARkdown.newCheckpoint(input);
+        skipped &= checkpoint.isUpToDate();
+        sentences = MARkdown.process(input, 1, checkpoint, resume);
+        input = Compression.withSuffix(input, MARkdown.FILE_SUFFIX_SENTENCES);
+      }
+      if (! layers.isEmpty()) {
+        Checkpoint checkpoint = ArabicProcessor.newCheckpoint(input, layers,
+            factory.getPathToModel(), binary);
+        if (resume && checkpoint.isUpToDate()) {
+          sentences = checkpoint.getLines();
+        } else {
+          skipped = false;
+          Annotator annotator = annotators.get();
+          if (annotator == null) {
+            annotator = factory.newAnnotator();
+            annotators.set(annotator);
+            created.add(annotator);
+          }
+          sentences = ArabicProcessor.annotateFile(input, layers, annotator,
+              checkpoint, resume, binary);
+        }
+      }
+      report(book, skipped ? STATUS_SKIPPED : STATUS_DONE, sentences, start, "");
+    } catch (Throwable e) {
+      if (e instanceof Error) {
+        // e.g., out of memory or stack inside Farasa: the models of this
+        // thread may be left inconsistent, so the next book loads new ones
+        Annotator annotator = annotators.get();
+        annotators.remove();
+        if (annotator != null && created.remove(annotator)) {
+          close(annotator);
+        }
+      }
+      report(book, STATUS_FAILED, sentences, start,
+          e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+  }
+
+  private static void close(Annotator annotator) {
+    try {
+      annotator.close();
+    } catch (IOException e) {
+      System.err.println("An annotator could not be closed: " + e.getMessage());
+    }
+  }
+
+  private synchronized void report(File book, String status, long sentences,
+      long start, String message) {
+    if (STATUS_FAILED.equals(status)) {
+      failures++;
+      System.err.println("Failed " + book + ": " + message);
+    }
+    summary.writeLn(book + "\t" + status + "\t" + book.length() + "\t"
+        + sentences + "\t" + (System.currentTimeMillis() - start) / 1000.0
+        + "\t" + message.replaceAll("\\s+", " "));
+    summary.flush();
+  }
+
+  /**
+   * @param status
+   *          the status of a book in a run summary
+   * @return
+   *          true if the book was done in that run or was already up to date
+   */
+  public static boolean isComplete(String status) {
+    return STATUS_DONE.equals(status) || STATUS_SKIPPED.equals(status);
+  }
+
+  /**
+   * @param manifest
+   *          a file with one path per line; relative paths are resolved
+   *          against the directory of the manifest
+   * @return
+   *          the listed files
+   */
+  public static List<File> readManifest(File manifest) {
+    List<File> books = new ArrayList<File>();
+    ReadFile rf = new ReadFile(manifest.toString());
+    while (rf.hasNextLine()) {
+      String line = rf.nextLine().trim();
+      if (line.isEmpty() || line.startsWith(MANIFEST_COMMENT)) {
+        continue;
+      }
+      File book = new File(line);
+      if (! book.isAbsolute()) {
+        book = new File(manifest.getAbsoluteFile().getParentFile(), line);
+      }
+      books.add(book);
+    }
+    rf.close();
+    return books;
+  }
+
+  /**
+   * @param dir
+   *          the root of the corpus
+   * @param markdown
+   *          if true, the OpenITI books are collected; otherwise, the .sent files
+   * @return
+   *          the books found in the directory and its subdirectories
+   */
+  public static List<File> listBooks(File dir, boolean markdown) {
+    List<File> books = new ArrayList<File>();
+    collectBooks(dir, markdown, books);
+    return books;
+  }
+
+  private static void collectBooks(File dir, boolean markdown, List<File> books) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collectBooks(file, markdown, books);
+      } else if (markdown
+          ? MARkdown.isOpenITI(file)
+          : Compression.stripExtension(file.getName())
+              .endsWith(MARkdown.FILE_SUFFIX_SENTENCES)) {
+        books.add(file);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    HelpFormatter formatter = new HelpFormatter();
+    Options options= new Options();
+    CommandLineParser parser = new DefaultParser();
+
+    options.addOption("d", "dir", true,
+        "Directory with the corpus (explored recursively)");
+    options.addOption("M", "manifest", true,
+        "File with the path of one book per line");
+    options.addOption(null, "markdown", false,
+        "The books are OpenITI files: remove the mARkdown and split sentences first");
+    options.addOption("m", "model", true,
+        "Path to the farasa model; if not set: "
+        + ArabicProcessor.DEFAULT_PATH_TO_FARASA_MODEL);
+    for (Layer layer : Layer.values()) {
+      options.addOption(layer.getOption(), layer.getLongOption(), false,
+          "Compute " + layer.getLabel());
+    }
+    options.addOption(null, "threads", true,
+        "Number of books processed in parallel; default: 1");
+    FarasaAnnotatorFactory.addOptions(options);
+    Metrics.addOptions(options);
+    options.addOption(null, "resume", false,
+        "Skip the books that are up to date and continue the interrupted ones");
+    options.addOption(null, "binary", false,
+        "Write the layers of every book to one compact binary file");
+    options.addOption("o", "summary", true,
+        "Run summary file; if not set: " + DEFAULT_SUMMARY_FILE);
+    options.addOption("h", "help", false, "This help");
+
+    CommandLine cLine = null;
+    try {
+      cLine = parser.parse( options, args );
+    } catch( ParseException exp ) {
+      System.err.println( "Unexpected exception:" + exp.getMessage() );
+    }
+
+    if (cLine == null || cLine.hasOption("h")
+        || cLine.hasOption("d") == cLine.hasOption("M")) {
+      System.err.println("Please, provide either a directory or a manifest");
+      formatter.printHelp(CorpusProcessor.class.getSimpleName(), options);
+      System.exit(1);
+    }
+
+    EnumSet<Layer> layers = EnumSet.noneOf(Layer.class);
+    for (Layer layer : Layer.values()) {
+      if (cLine.hasOption(layer.getOption())) {
+        layers.add(layer);
+      }
+    }
+    boolean markdown = cLine.hasOption("markdown");
+    if (layers.isEmpty() && ! markdown) {
+      System.err.println("Please, request at least one layer or --markdown");
+      System.exit(1);
+    }
+
+    String pathToModel = cLine.getOptionValue("m",
+        ArabicProcessor.DEFAULT_PATH_TO_FARASA_MODEL);
+    if (cLine.hasOption("m") && ! new File(pathToModel).isFile()) {
+      System.err.println("I cannot read the directory " + pathToModel);
+      System.exit(1);
+    }
+
+    int threads = 1;
+    if (cLine.hasOption("threads")) {
+      try {
+        threads = Integer.parseInt(cLine.getOptionValue("threads"));
+      } catch (NumberFormatException e) {
+        threads = 0;
+      }
+      if (threads < 1) {
+        System.err.println("The number of threads must be a positive integer: "
+            + cLine.getOptionValue("threads"));
+        System.exit(1);
+      }
+    }
+
+    List<File> books;
+    if (cLine.hasOption("d")) {
+      File dir = new File(cLine.getOptionValue("d"));
+      if (! dir.isDirectory()) {
+        System.err.println("I cannot read the directory " + dir);
+        System.exit(1);
+      }
+      books = listBooks(dir, markdown);
+    } else {
+      File manifest = new File(cLine.getOptionValue("M"));
+      if (! (manifest.isFile() && manifest.canRead())) {
+        System.err.println("I cannot read the file at " + manifest);
+        System.exit(1);
+      }
+      books = readManifest(manifest);
+    }
+
+    FarasaAnnotatorFactory factory = new FarasaAnnotatorFactory(pathToModel, layers);
+    factory.configure(cLine);
+    Metrics.configure(cLine);
+    CorpusProcessor processor = new CorpusProcessor(factory, markdown, threads);
+    processor.setResume(cLine.hasOption("resume"));
+    processor.setBinary(cLine.hasOption("binary"));
+    int failed = processor.process(books,
+        cLine.getOptionValue("o", DEFAULT_SUMMARY_FILE));
+    System.exit(failed == 0 ? 0 : 2);
+  }
+}
@@ -0,0 +1,180 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every sentence a time budget. The delegate annotates the sentence on
+ * a thread of its own; if it takes longer than the budget, the sentence gets
+ * a placeholder {@link Annotation} with an empty line for every layer (see
+ * {@link Annotation#isTimedOut()}), so the outputs stay aligned with the
+ * input, and the run goes on with the next one.
+ *
+ * The Farasa tagger and parser do not check for interruptions, so the
+ * abandoned computation cannot be stopped: it is left to finish in the
+ * background, together with its delegate, whose models are not thread-safe,
+ * and the following sentences go to a spare delegate. At most one
+ * computation per instance is left behind: the delegate becomes the spare
+ * once its sentence ends, so the models are loaded at most twice per
+ * instance; if another sentence runs out of time while the previous one is
+ * still running, the instance waits for the latter to end before going on.
+ * Until it ends, the abandoned computation still takes a core and the
+ * memory of its models; a {@link ProcessAnnotator} really stops it. As with
+ * any annotator, an instance must be used by one thread only.
+ */
+public class DeadlineAnnotator implements Annotator {
+
+  /** Sentences given up by all the instances */
+  private static final AtomicLong TIMEOUTS = new AtomicLong();
+
+  private final AnnotatorFactory factory;
+
+  private final long timeoutMillis;
+
+  private final Set<Layer> layers;
+
+  private Annotator delegate;
+
+  private ExecutorService executor;
+
+  /** The delegate left with an abandoned sentence, and its thread; null if none */
+  private Annotator spare;
+
+  private ExecutorService spareExecutor;
+
+  /** Done once the abandoned sentence of the spare has ended */
+  private Future<?> spareReady;
+
+  /**
+   * @param delegate
+   *          computes the annotations
+   * @param factory
+   *          creates the delegate that replaces the one abandoned after a
+   *          timeout
+   * @param timeoutMillis
+   *          the time budget of every sentence, in ms
+   * @param layers
+   *          the layers of the placeholder annotations
+   */
+  public DeadlineAnnotator(Annotator delegate, AnnotatorFactory factory,
+      long timeoutMillis, Set<Layer> layers) {
+    if (timeoutMillis < 1) {
+      throw new IllegalArgumentException("The time budget must be positive");
+    }
+    this.delegate = delegate;
+    this.factory = factory;
+    this.timeoutMillis = timeoutMillis;
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+    this.executor = newExecutor();
+  }
+
+  private static ExecutorService newExecutor() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "deadline-annotator");
+        // an abandoned sentence must not keep the JVM alive
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public Annotation annotate(final String text) throws Exception {
+    if (delegate == null) {
+      delegate = factory.newAnnotator();
+    }
+    final Annotator annotator = delegate;
+    Future<Annotation> result = executor.submit(new Callable<Annotation>() {
+      @Override
+      public Annotation call() throws Exception {
+        return annotator.annotate(text);
+      }
+    });
+    try {
+      return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception
+          ? (Exception) e.getCause()
+          : e;
+    } catch (TimeoutException e) {
+      TIMEOUTS.incrementAndGet();
+      abandon();
+      return Annotation.timedOut(layers);
+    } catch (InterruptedException e) {
+      // the caller gives up: no waiting for the spare
+      result.cancel(true);
+      executor.shutdown();
+      executor = newExecutor();
+      delegate = null;
+      throw e;
+    }
+  }
+
+  /**
+   * Leaves the running sentence behind together with its delegate, which
+   * becomes the spare, and goes on with the previous spare, once it is free,
+   * or with a new delegate if there was none
+   */
+  private void abandon() throws InterruptedException {
+    if (spareReady != null) {
+      try {
+        spareReady.get();
+      } catch (ExecutionException e) {
+        // a no-op, it cannot fail
+      }
+    }
+    Annotator busy = delegate;
+    ExecutorService busyExecutor = executor;
+    delegate = spare;
+    executor = spare == null ? newExecutor() : spareExecutor;
+    spare = busy;
+    spareExecutor = busyExecutor;
+    // not interrupted, so that the delegate ends in a consistent state;
+    // the no-op runs once the thread is free
+    spareReady = busyExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  /**
+   * Closes the delegates and lets their threads end; a sentence left behind
+   * still runs until it ends
+   */
+  @Override
+  public void close() throws IOException {
+    executor.shutdown();
+    if (spareExecutor != null) {
+      spareExecutor.shutdown();
+    }
+    try {
+      if (delegate != null) {
+        delegate.close();
+      }
+    } finally {
+      if (spare != null) {
+        spare.close();
+      }
+    }
+  }
+
+  /** @return the number of sentences given up so far, by all the instances */
+  public static long getTimeouts() {
+    return TIMEOUTS.get();
+  }
+}
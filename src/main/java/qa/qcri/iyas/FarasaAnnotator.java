@@ -0,0 +1,185 @@
+package qa.qcri.iyas;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.qcri.farasa.pos.Clitic;
+import com.qcri.farasa.pos.FarasaPOSTagger;
+import com.qcri.farasa.pos.Sentence;
+import com.qcri.farasa.segmenter.Farasa;
+
+import constituencyParser.ConstituencyParser;
+
+/**
+ * An {@link Annotator} backed by its own instances of the Farasa segmenter, 
+ * the Farasa POS tagger and the constituency parser. Those are not 
+ * thread-safe, so an instance must be used by one thread only.
+ */
+public class FarasaAnnotator implements Annotator {
+
+  private static final String SEPARATOR = " ";
+  private static final String SEPARATOR_POS = "/";
+  
+  /** Largest capacity kept by the line buffer between sentences, in chars */
+  private static final int MAX_BUFFER = 1 << 16;
+  
+  private final Farasa farasa;
+  private final FarasaPOSTagger farasaPOS;
+  private final ConstituencyParser parser;
+  
+  private final Set<Layer> layers;
+  
+  /** Shared with other annotators; null if no caching */
+  private WordCache wordCache;
+  
+  /** Reused by every line built by this annotator */
+  private StringBuilder buffer = new StringBuilder(1024);
+  
+  /**
+   * Loads a new instance of every model required by the layers
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @param layers
+   *          the layers to compute
+   */
+  public FarasaAnnotator(String pathToModel, Set<Layer> layers) throws Exception {
+    this(FarasaModels.load(pathToModel, layers), layers);
+  }
+  
+  /**
+   * @param models
+   *          loaded for (at least) the given layers
+   * @param layers
+   *          the layers to compute
+   */
+  public FarasaAnnotator(FarasaModels models, Set<Layer> layers) {
+    this(models.getFarasa(), models.getTagger(), models.getParser(), layers);
+  }
+  
+  /**
+   * Uses already loaded models; the tagger and the parser can be null if the
+   * layers do not need them
+   */
+  FarasaAnnotator(Farasa farasa, FarasaPOSTagger farasaPOS, 
+      ConstituencyParser parser, Set<Layer> layers) {
+    this.layers = layers.isEmpty() 
+        ? EnumSet.noneOf(Layer.class) 
+        : EnumSet.copyOf(layers);
+    this.farasa = farasa;
+    this.farasaPOS = farasaPOS;
+    this.parser = parser;
+  }
+  
+  /**
+   * @param wordCache
+   *          cache of segmented and lemmatized word forms, which can be shared 
+   *          with other annotators; null to disable caching
+   */
+  public void setWordCache(WordCache wordCache) {
+    this.wordCache = wordCache;
+  }
+  
+  /**
+   * Computes all the layers for one sentence. The sentence is segmented and 
+   * POS-tagged at most once, no matter how many of the layers depend on the 
+   * segments or on the tagged sentence. 
+   */
+  @Override
+  public Annotation annotate(String text) throws Exception {
+    Annotation annotation = new Annotation();
+    int tokens = Metrics.tokens(text);
+    long start = Metrics.start();
+    if (layers.contains(Layer.LEMMAS)) {
+      annotation.set(Layer.LEMMAS, join(wordCache == null 
+          ? farasa.lemmatizeLine(text) 
+          : wordCache.lemmatizeLine(farasa, text)));
+      Metrics.record(Metrics.Stage.LEMMATIZE, tokens, start);
+    }
+    if (! needsSegmenter(layers)) {
+      return annotation;
+    }
+    
+    start = Metrics.start();
+    ArrayList<String> segOutput = wordCache == null 
+        ? farasa.segmentLine(text) 
+        : wordCache.segmentLine(farasa, text);
+    Metrics.record(Metrics.Stage.SEGMENT, tokens, start);
+    //formatted before tagging, which receives the very same list
+    if (layers.contains(Layer.SEGMENTS)) {
+      annotation.set(Layer.SEGMENTS, join(segOutput));
+    }
+    if (! needsTagger(layers)) {
+      return annotation;
+    }
+    
+    start = Metrics.start();
+    Sentence sentence = farasaPOS.tagLine(segOutput);
+    Metrics.record(Metrics.Stage.TAG, tokens, start);
+    if (layers.contains(Layer.CLITICS)) {
+      StringBuilder sb = reset();
+      for (Clitic w : sentence.clitics) {
+        sb.append(w.surface)
+          .append(SEPARATOR);
+      }
+      annotation.set(Layer.CLITICS, sb.toString());
+    }
+    if (layers.contains(Layer.POS)) {
+      StringBuilder sb = reset();
+      for (Clitic w : sentence.clitics) {
+        sb.append(w.surface)
+          .append(SEPARATOR_POS)
+          .append(w.guessPOS)
+          .append(    //only add the gender if it exists
+              w.genderNumber!=""
+                  ? "-"+w.genderNumber
+                  : "")
+          .append(SEPARATOR);
+      }
+      annotation.set(Layer.POS, sb.toString());
+    }
+    if (layers.contains(Layer.TREES)) {
+      start = Metrics.start();
+      annotation.set(Layer.TREES, parser.generateParserFormat(sentence));
+      Metrics.record(Metrics.Stage.PARSE, tokens, start);
+    }
+    return annotation;
+  }
+  
+  private String join(List<String> tokens) {
+    StringBuilder sb = reset();
+    for (String w : tokens) {
+      sb.append(w)
+        .append(SEPARATOR);
+    }
+    return sb.toString();
+  }
+  
+  /** @return the buffer, empty; shrunk if a long sentence made it too large */
+  private StringBuilder reset() {
+    if (buffer.capacity() > MAX_BUFFER) {
+      buffer = new StringBuilder(1024);
+    }
+    buffer.setLength(0);
+    return buffer;
+  }
+  
+  static boolean needsSegmenter(Set<Layer> layers) {
+    for (Layer layer : layers) {
+      if (layer.needsSegmenter()) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  static boolean needsTagger(Set<Layer> layers) {
+    for (Layer layer : layers) {
+      if (layer.needsTagger()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,331 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+import com.qcri.farasa.pos.FarasaPOSTagger;
+import com.qcri.farasa.segmenter.Farasa;
+
+import constituencyParser.ConstituencyParser;
+
+/**
+ * Creates {@link FarasaAnnotator}s, each with its own models, together with
+ * the optional caches shared by all of them. With {@code --processes}, the
+ * models of every annotator live instead in a child JVM of its own (see
+ * {@link ProcessAnnotator}). It also holds the command-line
+ * options that configure the annotators, common to {@link ArabicProcessor}
+ * and {@link CorpusProcessor}.
+ */
+public class FarasaAnnotatorFactory implements AnnotatorFactory {
+
+  private static final long BYTES_PER_MB = 1024 * 1024;
+
+  private final String pathToModel;
+
+  private final Set<Layer> layers;
+
+  /** Shared by all the annotators; null if disabled */
+  private WordCache wordCache;
+
+  /** Size of the word cache of every worker process; 0 if disabled */
+  private long wordCacheSize;
+
+  /** Shared by all the annotators; null if disabled */
+  private SentenceCache sentenceCache;
+
+  /** Shared by all the annotators; null if disabled */
+  private AnnotationStore store;
+
+  /** Whether to keep only the entries used in this run when closing the store */
+  private boolean compactStore;
+
+  /** Time budget of every sentence, in ms; 0 if unlimited */
+  private long timeoutMillis;
+
+  /** Tokens beyond which a sentence is annotated in chunks; 0 if unlimited */
+  private int maxTokens;
+
+  /** Whether every annotator runs its models in a worker process */
+  private boolean processes;
+
+  /** Maximum heap of every worker process, in MB; 0 for the JVM default */
+  private long workerHeapMb;
+
+  /**
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @param layers
+   *          the layers to compute
+   */
+  public FarasaAnnotatorFactory(String pathToModel, Set<Layer> layers) {
+    this.pathToModel = pathToModel;
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+  }
+
+  /** 
+   * Loads a new instance of every model required by the layers, and only 
+   * those, and reports the time taken; in a worker process, if requested
+   */
+  @Override
+  public Annotator newAnnotator() throws Exception {
+    if (processes) {
+      return decorate(new ProcessAnnotator(WorkerProcess.command(pathToModel,
+          layers, wordCacheSize, workerHeapMb), layers, timeoutMillis));
+    }
+    FarasaModels models = FarasaModels.load(pathToModel, layers);
+    System.err.println(models.getReport());
+    FarasaAnnotator annotator = new FarasaAnnotator(models, layers);
+    annotator.setWordCache(wordCache);
+    return decorate(annotator);
+  }
+
+  /**
+   * @return
+   *        an annotator that uses already loaded models; the tagger and the
+   *        parser can be null if the layers do not need them
+   */
+  public Annotator newAnnotator(Farasa farasa, FarasaPOSTagger farasaPOS,
+      ConstituencyParser parser) {
+    FarasaAnnotator annotator = new FarasaAnnotator(farasa, farasaPOS, parser, layers);
+    annotator.setWordCache(wordCache);
+    return decorate(annotator);
+  }
+
+  private Annotator decorate(Annotator annotator) {
+    // a worker process is killed instead when it runs out of time
+    if (timeoutMillis > 0 && ! processes) {
+      annotator = new DeadlineAnnotator(annotator, new AnnotatorFactory() {
+        @Override
+        public Annotator newAnnotator() throws Exception {
+          FarasaAnnotator replacement =
+              new FarasaAnnotator(FarasaModels.load(pathToModel, layers), layers);
+          replacement.setWordCache(wordCache);
+          return replacement;
+        }
+      }, timeoutMillis, layers);
+    }
+    if (store != null) {
+      annotator = new StoredAnnotator(annotator, store,
+          AnnotationStore.modelIdentity(pathToModel), layers);
+    }
+    if (sentenceCache != null) {
+      annotator = new CachingAnnotator(annotator, sentenceCache);
+    }
+    // outermost, so that the chunks are cached and stored as sentences
+    return maxTokens == 0
+        ? annotator
+        : new SentenceChunker(annotator, maxTokens, layers);
+  }
+
+  public Set<Layer> getLayers() {
+    return layers;
+  }
+
+  public String getPathToModel() {
+    return pathToModel;
+  }
+
+  /**
+   * @param wordCache
+   *          cache of segmented and lemmatized word forms; null to disable it
+   */
+  public void setWordCache(WordCache wordCache) {
+    this.wordCache = wordCache;
+  }
+
+  /**
+   * @param processes
+   *          whether every annotator runs its models in a worker process
+   * @param wordCacheSize
+   *          the size of the word cache of every worker; 0 for none
+   * @param workerHeapMb
+   *          the maximum heap of every worker, in MB; 0 for the JVM default
+   */
+  public void setProcesses(boolean processes, long wordCacheSize, long workerHeapMb) {
+    this.processes = processes;
+    this.wordCacheSize = wordCacheSize;
+    this.workerHeapMb = workerHeapMb;
+  }
+
+  /** @return true if every annotator runs its models in a worker process */
+  public boolean isProcesses() {
+    return processes;
+  }
+
+  /**
+   * @param sentenceCache
+   *          cache of complete sentence analyses; null to disable it
+   */
+  public void setSentenceCache(SentenceCache sentenceCache) {
+    this.sentenceCache = sentenceCache;
+  }
+
+  /**
+   * @param store
+   *          persistent store of sentence annotations; null to disable it
+   */
+  public void setStore(AnnotationStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @param timeoutMillis
+   *          time budget of every sentence, in ms (see
+   *          {@link DeadlineAnnotator}); 0 for no limit
+   */
+  public void setTimeout(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @param maxTokens
+   *          the longest sentence annotated as a whole, in tokens; longer
+   *          ones are cut into chunks (see {@link SentenceChunker}); 0 for no
+   *          limit
+   */
+  public void setMaxTokens(int maxTokens) {
+    this.maxTokens = maxTokens;
+  }
+
+  /**
+   * Prints the statistics of the caches and the store, if any, the number
+   * of sentences that ran out of time and those of the worker processes to
+   * stderr
+   */
+  public void printReport() {
+    if (wordCache != null && ! processes) {
+      System.err.println(wordCache.getReport());
+    }
+    if (sentenceCache != null) {
+      System.err.println(sentenceCache.getReport());
+    }
+    if (store != null) {
+      System.err.println(store.getReport());
+    }
+    if (timeoutMillis > 0) {
+      System.err.println(DeadlineAnnotator.getTimeouts() + ProcessAnnotator.getTimeouts()
+          + " sentences ran out of time");
+    }
+    if (processes) {
+      System.err.println(ProcessAnnotator.getReport());
+    }
+  }
+
+  /**
+   * Writes the pending entries of the store, if any, and closes it. With
+   * --compact-store, only the entries used in this run are kept.
+   */
+  public void close() throws IOException {
+    if (store == null) {
+      return;
+    }
+    if (compactStore) {
+      long saved = store.compact(true);
+      System.err.println("Compacted the annotation store: " + saved + " bytes saved");
+    }
+    store.close();
+    store = null;
+  }
+
+  /**
+   * Adds the options understood by {@link #configure(CommandLine)}
+   * @param options
+   */
+  public static void addOptions(Options options) {
+    options.addOption(null, "word-cache", true,
+        "Cache the segments and lemmas of up to this number of word forms");
+    options.addOption(null, "sentence-cache", true,
+        "Serve repeated sentences from a cache of up to this many MB");
+    options.addOption(null, "store", true,
+        "Reuse and extend the annotations stored in this file by previous runs");
+    options.addOption(null, "compact-store", false,
+        "Drop from the store the sentences not seen in this run");
+    options.addOption(null, "timeout", true,
+        "Give up the sentences that take longer than this many ms; they get "
+        + "empty lines and are listed in the input path plus "
+        + SentenceLog.TIMEOUTS_SUFFIX);
+    options.addOption(null, "max-tokens", true,
+        "Annotate the sentences longer than this many tokens in chunks, cut "
+        + "preferably after punctuation; they are listed in the input path plus "
+        + SentenceLog.CHUNKS_SUFFIX);
+    options.addOption(null, "processes", false,
+        "Load the models of every thread in a child JVM of its own, restarted "
+        + "if it dies or hangs; its sentence is given up as with --timeout");
+    options.addOption(null, "worker-heap", true,
+        "Maximum heap of every child JVM with --processes, in MB");
+  }
+
+  /**
+   * Sets up the factory from the options added by {@link #addOptions(Options)}.
+   * It exits if any value is not valid.
+   * @param cLine
+   *          the parsed command line
+   */
+  public void configure(CommandLine cLine) {
+    if (cLine.hasOption("word-cache")) {
+      setWordCache(new WordCache(
+          parsePositive(cLine.getOptionValue("word-cache"), "word cache size")));
+    }
+    if (cLine.hasOption("sentence-cache")) {
+      setSentenceCache(new SentenceCache(BYTES_PER_MB *
+          parsePositive(cLine.getOptionValue("sentence-cache"), "sentence cache size")));
+    }
+    if (cLine.hasOption("store")) {
+      File file = new File(cLine.getOptionValue("store"));
+      compactStore = cLine.hasOption("compact-store");
+      try {
+        // the entries used are only remembered if they are to be kept
+        setStore(new AnnotationStore(file, compactStore));
+      } catch (IOException e) {
+        System.err.println("I cannot open the annotation store at " + file
+            + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+    if (cLine.hasOption("timeout")) {
+      setTimeout(parsePositive(cLine.getOptionValue("timeout"), "timeout"));
+    }
+    if (cLine.hasOption("max-tokens")) {
+      setMaxTokens((int) Math.min(Integer.MAX_VALUE,
+          parsePositive(cLine.getOptionValue("max-tokens"), "maximum number of tokens")));
+    }
+    if (cLine.hasOption("processes")) {
+      setProcesses(true,
+          cLine.hasOption("word-cache")
+              ? parsePositive(cLine.getOptionValue("word-cache"), "word cache size")
+              : 0,
+          cLine.hasOption("worker-heap")
+              ? parsePositive(cLine.getOptionValue("worker-heap"), "worker heap")
+              : 0);
+    }
+  }
+
+  /**
+   * @param value
+   *          the value given in the command line
+   * @param name
+   *          what the value stands for, for the error message
+   * @return
+   *          the value as a number; it exits if it is not a positive integer
+   */
+  static long parsePositive(String value, String name) {
+    long number;
+    try {
+      number = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      number = 0;
+    }
+    if (number < 1) {
+      System.err.println("The " + name + " must be a positive integer: " + value);
+      System.exit(1);
+    }
+    return number;
+  }
+}
@@ -0,0 +1,142 @@
+package qa.qcri.iyas;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.qcri.farasa.pos.FarasaPOSTagger;
+import com.qcri.farasa.segmenter.Farasa;
+
+import constituencyParser.ConstituencyParser;
+
+/**
+ * The Farasa models needed by a set of layers, and only those: the segmenter
+ * (always), the POS tagger (for clitics, POS and trees) and the constituency
+ * parser (for trees). The parser does not depend on the others, so it is
+ * loaded on its own thread while the segmenter and then the tagger are
+ * loaded on the calling one. The time taken by every model is kept for the
+ * startup report.
+ */
+public class FarasaModels {
+
+  private final Farasa farasa;
+
+  private final FarasaPOSTagger tagger;
+
+  private final ConstituencyParser parser;
+
+  /** Loading time of every model, in ms */
+  private final Map<String, Long> times = new LinkedHashMap<String, Long>();
+
+  private final long total;
+
+  private FarasaModels(Farasa farasa, FarasaPOSTagger tagger,
+      ConstituencyParser parser, Map<String, Long> times, long total) {
+    this.farasa = farasa;
+    this.tagger = tagger;
+    this.parser = parser;
+    this.times.putAll(times);
+    this.total = total;
+  }
+
+  /**
+   * Loads the models needed by the layers, concurrently when possible
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @param layers
+   *          the layers to compute
+   * @return
+   *          the loaded models; those not needed are null
+   */
+  public static FarasaModels load(final String pathToModel, Set<Layer> layers)
+      throws Exception {
+    long start = System.currentTimeMillis();
+    Map<String, Long> times = new LinkedHashMap<String, Long>();
+    ExecutorService loader = null;
+    Future<ConstituencyParser> parser = null;
+    final long[] parserTime = new long[1];
+    if (layers.contains(Layer.TREES)) {
+      loader = Executors.newSingleThreadExecutor();
+      parser = loader.submit(new Callable<ConstituencyParser>() {
+        @Override
+        public ConstituencyParser call() throws Exception {
+          long start = System.currentTimeMillis();
+          ConstituencyParser parser = new ConstituencyParser(pathToModel);
+          parserTime[0] = System.currentTimeMillis() - start;
+          return parser;
+        }
+      });
+      loader.shutdown();
+    }
+    try {
+      long step = System.currentTimeMillis();
+      Farasa farasa = new Farasa();
+      times.put("segmenter", System.currentTimeMillis() - step);
+      FarasaPOSTagger tagger = null;
+      if (FarasaAnnotator.needsTagger(layers)) {
+        step = System.currentTimeMillis();
+        tagger = new FarasaPOSTagger(farasa);
+        times.put("POS tagger", System.currentTimeMillis() - step);
+      }
+      ConstituencyParser constituencyParser = null;
+      if (parser != null) {
+        constituencyParser = get(parser);
+        times.put("parser", parserTime[0]);
+      }
+      return new FarasaModels(farasa, tagger, constituencyParser, times,
+          System.currentTimeMillis() - start);
+    } finally {
+      if (parser != null && ! parser.isDone()) {
+        parser.cancel(true);
+      }
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public Farasa getFarasa() {
+    return farasa;
+  }
+
+  /** @return the POS tagger; null if the layers do not need it */
+  public FarasaPOSTagger getTagger() {
+    return tagger;
+  }
+
+  /** @return the constituency parser; null if the layers do not need it */
+  public ConstituencyParser getParser() {
+    return parser;
+  }
+
+  /**
+   * @return
+   *        the time taken by every model and by the whole startup, which is
+   *        less than their sum when the parser was loaded concurrently
+   */
+  public String getReport() {
+    StringBuilder sb = new StringBuilder("Models loaded in ");
+    sb.append(String.format("%.1f s (", total / 1000.0));
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : times.entrySet()) {
+      sb.append(first ? "" : ", ")
+        .append(entry.getKey())
+        .append(String.format(" %.1f s", entry.getValue() / 1000.0));
+      first = false;
+    }
+    return sb.append(')').toString();
+  }
+}
@@ -0,0 +1,109 @@
+package qa.qcri.iyas;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of latencies in microseconds with logarithmic
+ * buckets: every power of two is divided into four buckets, so a percentile
+ * is reported with an error below 25% and recording never allocates or locks.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 2;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param nanos
+   *          one latency, in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    counts.incrementAndGet(bucket(micros));
+    count.increment();
+    sum.add(micros);
+    long current;
+    while (micros > (current = max.get()) && ! max.compareAndSet(current, micros)) {
+      // retry
+    }
+  }
+
+  private static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+  }
+
+  /** @return the largest value that falls into the bucket */
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+    long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  /** @return the number of latencies recorded */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /** @return the mean latency in microseconds; 0 if none */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /** @return the largest latency in microseconds */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param quantile
+   *          between 0 and 1, e.g. 0.99
+   * @return
+   *          an upper bound of the latency at that quantile, in microseconds;
+   *          0 if none has been recorded
+   */
+  public long getPercentile(double quantile) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(quantile * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(upperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * @return
+   *        the mean, median, 95th and 99th percentiles and maximum, in ms
+   */
+  public String getReport() {
+    return String.format("mean %.3f ms, p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms",
+        getMean() / 1000, getPercentile(0.5) / 1000.0, getPercentile(0.95) / 1000.0,
+        getPercentile(0.99) / 1000.0, getMax() / 1000.0);
+  }
+}
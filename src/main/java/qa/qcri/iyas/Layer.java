@@ -0,0 +1,63 @@
+package qa.qcri.iyas;
+
+/**
+ * The annotation layers that {@link ArabicProcessor} can compute for each 
+ * sentence. Every layer is written to its own file, which has the path and 
+ * name of the input file plus the layer suffix.
+ */
+public enum Layer {
+  
+  CLITICS("c", "clitics", ".clit", "clitics"),
+  LEMMAS("l", "lemmas", ".lem", "lemmas"),
+  SEGMENTS("s", "segments", ".segm", "segments"),
+  POS("p", "pos", ".pos", "POS"),
+  TREES("t", "tree", ".tree", "parse trees");
+  
+  private final String option;
+  private final String longOption;
+  private final String suffix;
+  private final String label;
+  
+  private Layer(String option, String longOption, String suffix, String label) {
+    this.option = option;
+    this.longOption = longOption;
+    this.suffix = suffix;
+    this.label = label;
+  }
+  
+  /** @return the short command-line option that requests this layer */
+  public String getOption() {
+    return option;
+  }
+  
+  /** @return the long command-line option that requests this layer */
+  public String getLongOption() {
+    return longOption;
+  }
+  
+  /** @return the suffix appended to the input file to name the output */
+  public String getSuffix() {
+    return suffix;
+  }
+  
+  /** @return a human-readable name for messages */
+  public String getLabel() {
+    return label;
+  }
+  
+  /**
+   * @return
+   *        true if the layer is computed from the Farasa segments 
+   */
+  public boolean needsSegmenter() {
+    return this != LEMMAS;
+  }
+  
+  /**
+   * @return
+   *        true if the layer is computed from the POS-tagged Farasa sentence 
+   */
+  public boolean needsTagger() {
+    return this == CLITICS || this == POS || this == TREES;
+  }
+}
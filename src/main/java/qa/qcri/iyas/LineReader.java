@@ -0,0 +1,25 @@
+package qa.qcri.iyas;
+
+/**
+ * Reads a text file line by line, without the line breaks: {@link ReadFile}
+ * (any stream, compressed or not) or {@link MappedReadFile} (plain files,
+ * memory-mapped).
+ */
+public interface LineReader {
+
+  /** @return true if there is at least one more line */
+  boolean hasNextLine();
+
+  /** @return the next line; null at the end of the file */
+  String nextLine();
+
+  /**
+   * Skips the next line, without decoding it if the reader allows it
+   * @return
+   *        false if there were no more lines
+   */
+  boolean skipLine();
+
+  void close();
+
+}
@@ -0,0 +1,131 @@
+package qa.qcri.iyas;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to non-negative longs kept in two primitive arrays with
+ * open addressing, i.e. some 16 bytes per entry plus the free slots, instead
+ * of the hundred or so of a {@code HashMap<Long, Long>}. The keys are
+ * expected to be hashes already (the slot is taken from a multiplicative
+ * mix of their bits anyway). Not thread-safe.
+ */
+final class LongTable {
+
+  private static final long MIX = 0x9E3779B97F4A7C15L;
+
+  /** The largest number of slots of a Java array that is a power of two */
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  /** Key 0 marks the free slots, so its value is kept apart */
+  private long[] keys;
+
+  private long[] values;
+
+  private int size;
+
+  private boolean hasZero;
+
+  private long zeroValue;
+
+  LongTable() {
+    keys = new long[16];
+    values = new long[16];
+  }
+
+  /**
+   * @return
+   *        the value of the key, or -1 if it is not in the table
+   */
+  long get(long key) {
+    if (key == 0) {
+      return hasZero ? zeroValue : -1;
+    }
+    int mask = keys.length - 1;
+    for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the key or replaces its value
+   * @param value
+   *          non-negative
+   */
+  void put(long key, long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Negative value " + value);
+    }
+    if (key == 0) {
+      if (! hasZero) {
+        hasZero = true;
+        size++;
+      }
+      zeroValue = value;
+      return;
+    }
+    int mask = keys.length - 1;
+    int i = slot(key, mask);
+    while (keys[i] != 0) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    size++;
+    // at most 3/4 full
+    if (size * 4L > keys.length * 3L) {
+      grow();
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** @return the keys, in increasing (signed) order */
+  long[] sortedKeys() {
+    long[] sorted = new long[size];
+    int n = 0;
+    if (hasZero) {
+      sorted[n++] = 0;
+    }
+    for (long key : keys) {
+      if (key != 0) {
+        sorted[n++] = key;
+      }
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private void grow() {
+    if (keys.length == MAX_CAPACITY) {
+      throw new IllegalStateException("Too many entries: " + size);
+    }
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new long[oldKeys.length * 2];
+    int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != 0) {
+        int i = slot(oldKeys[j], mask);
+        while (keys[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  private static int slot(long key, int mask) {
+    return (int) ((key * MIX) >>> 32) & mask;
+  }
+}
@@ -1,11 +1,17 @@
 package qa.qcri.iyas;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -14,10 +20,7 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import opennlp.tools.sentdetect.SentenceDetectorME;
-import opennlp.tools.sentdetect.SentenceModel;
 import opennlp.tools.util.InvalidFormatException;
-import opennlp.tools.util.Span;
 
 /**
  * A simple class with texts substitutions that aim to remove mARkdown tags from
@@ -27,79 +30,68 @@ import opennlp.tools.util.Span;
  * When executed in isolation, it gets an OpenITI file and generates a .plain file
  * with plain text (no mARkdown) and .sent with one sentence per line.
  * 
+ * The file is closed once its last paragraph has been read; closing the 
+ * instance closes it earlier and stops the threads set with 
+ * {@link #setThreads(int)}.
+ * 
  * @author albarron
  * @since September 2017
  * @version 0.1
  */
-public class MARkdown {
+public class MARkdown implements Closeable {
 
-  private final String SENTENCE_MODEL = "resources/open-nlp-seg-models/ar-sent.bin";
-  private  static SentenceDetectorME sentenceDetector;
+  /** Shared by all the instances (and threads); loaded when first needed */
+  private SentenceSplitter splitter;
+  
+  /** Number of threads splitting paragraphs into sentences */
+  private int threads = 1;
   
-  private final ReadFile FILE_READER;
-  private final String FIRST_LINE = "######OpenITI#";
+  /** The threads splitting paragraphs; null with only one */
+  private ExecutorService pool;
   
-  private final String SUBJECT_PATTERN = "#####[A-Z]+#[A-Z]+#";
-  private final String SUBJECT_SUBST = "";
+  /** Paragraphs split at once per thread when streaming */
+  private static final int PARAGRAPHS_PER_THREAD = 64;
   
+  /** Minimum number of sentences written between two checkpoint commits */
+  private static final int SENTENCES_PER_CHECKPOINT = 10000;
   
-  private final String HEADER_PATTERN = "### \\|{1,5}";
-  private final String HEADER_SUBST = " ";
-  //TODO incorporated into HEADER_PATTERN. MIGHT NOT BE NECESSARY
-//  private final String HEADER_CHAPTER = "### |";
-//  private final String HEADER_SECTION = "### ||";
-//  private final String HEADER_SUBSECTION = "### |||";
+  private static final String STATE_SENTENCES = "sentences";
+  private static final String STATE_PENDING = "pending";
   
-  private final String EDITORIAL_PATTERN = "### \\|EDITOR\\|";
-  private final String EDITORIAL_SUBST = "";
+  private final LineReader FILE_READER;
+  private static final String FIRST_LINE = "######OpenITI#";
   
   private final String HEADER_META = "#META#";
   
-  private final String TAG_PARAGRAPH_BEGINS = "#( %)?";
-  private final String TAG_PARAGRAPH_CONTINUES = "~~";
+  private final String TAG_PARAGRAPH_BEGINS = MarkdownCleaner.TAG_PARAGRAPH_BEGINS;
+  private final String TAG_PARAGRAPH_CONTINUES = MarkdownCleaner.TAG_PARAGRAPH_CONTINUES;
   
   /** The symbol inserted when we want to start a new paragraph  */
-  private final String PAR_DIVISOR = "\n";
+  private final String PAR_DIVISOR = MarkdownCleaner.PAR_DIVISOR;
   
   /** The symbol inserted when we want to continue the paragraph*/
   private final String PAR_CONTINUER = " ";
   
-  private final String PAGE_NUMBER_PATTERN = "PageV\\d{2}P\\d{3}";
-  private final String PAGE_NUMBER_SUBST = "";
-  
-  private final String MILESTONE_PATTERN = "Milestone300";
-  private final String MILESTONE_SUBST = "";
+  /** Removes the mARkdown tags, line by line */
+  private final MarkdownCleaner cleaner = new MarkdownCleaner();
   
-  //TODO what character should I implement instead of this one?
-  private final String VERSE_HEMISTICH_PATTERN = "%([~, ]%)?";
-  private final String VERSE_HEMISTICH_SUBST = "";
+  /** Text read after the last complete paragraph */
+  private final StringBuilder pending = new StringBuilder();
   
-  private final String DICTIONARY_PATTERN = "\\$DIC_[A-Z]{3}\\$";
-  private final String DICTIONARY_SUBST = ".";
+  /** Length of the prefix of pending known not to contain a divisor */
+  private int scanned;
   
-  private final String BIOGRAPHY_PATTERN = "### \\${1,4}";
-  private final String BIOGRAPHY_SUBST = "";
+  private boolean paragraphsDone;
   
-  private final String HISTORY_PATTERN = "### @( RAW)?";
-  private final String HISTORY_SUBST = " ";
-  
-  /**
-   * Contains patterns for biographies (e.g., ### $BIO_MAN$), historical events
-   * (e.g., ### $CHR_RAW$), doxographical items (e.g., ### $DOX_POS$)
-   */
-  private final String GENERIC_PATTERN = "### \\$[A-Z]{3}_[A-Z]{3}\\$";
-  private final String GENERIC_SUBST = " ";
-  
-  private final String LINE_NUMBER = "\\%\\s+(\\d)+";
-  private final String LINE_SUBST = " ";
+  private int linesRead;
   
   //TODO note that bios and dict entries have the same
   //TODO yet to be used
 //  private final String EVENTS = "### @";
 //  private final String DICT_ENTRIES = "### $";
   
-  private static final String FILE_SUFFIX_PLAIN = ".plain";
-  private static final String FILE_SUFFIX_SENTENCES = ".sent";
+  public static final String FILE_SUFFIX_PLAIN = ".plain";
+  public static final String FILE_SUFFIX_SENTENCES = ".sent";
   
   /**
    * Loads the file and checks that it is openITI by checking its first
@@ -109,38 +101,169 @@ public class MARkdown {
    * @throws IOException 
    * @throws FileNotFoundException 
    * @throws InvalidFormatException 
+   *      if the file does not start with the OpenITI header
    */
   public MARkdown(String file) throws InvalidFormatException, FileNotFoundException, IOException {
-    FILE_READER = new ReadFile(file);
+    FILE_READER = Metrics.meter(MappedReadFile.open(file));
     String firstLine = FILE_READER.nextLine();
-    if (! firstLine.trim().startsWith(FIRST_LINE)) {
+    if (firstLine == null || ! firstLine.trim().startsWith(FIRST_LINE)) {
       FILE_READER.close();
-      System.err.println("The file does not start with the expected line '" 
+      throw new InvalidFormatException("The file does not start with the expected line '" 
                           +FIRST_LINE+ "'");
-      System.exit(1);
     }
-    SentenceModel model = new SentenceModel(new FileInputStream(SENTENCE_MODEL));
-    sentenceDetector = new SentenceDetectorME(model);
   }  
   
   /**
-   * Removes all the metadata (i.e. mARkdown) from the file
+   * @return
+   *        the sentence splitter, whose model is loaded on the first call (so 
+   *        that removing the mARkdown alone does not load it)
+   */
+  private synchronized SentenceSplitter getSplitter() {
+    if (splitter == null) {
+      try {
+        splitter = SentenceSplitter.getDefault();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return splitter;
+  }
+  
+  /**
+   * @param threads
+   *          number of threads splitting paragraphs into sentences; they 
+   *          are started now and kept until the instance is closed
+   */
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is necessary");
+    }
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.threads = threads;
+    if (threads > 1) {
+      final AtomicInteger count = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "markdown-" + count.incrementAndGet());
+          // an instance that is not closed must not keep the JVM alive
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+  
+  /**
+   * @param file
+   *        any file
+   * @return
+   *        true if the file starts with the OpenITI header
+   */
+  public static boolean isOpenITI(File file) {
+    if (! (file.isFile() && file.canRead())) {
+      return false;
+    }
+    ReadFile rf = new ReadFile(file.toString());
+    String firstLine = rf.hasNextLine() ? rf.nextLine() : null;
+    rf.close();
+    return firstLine != null && firstLine.trim().startsWith(FIRST_LINE);
+  }
+  
+  /**
+   * Skips the lines of the file already processed by an interrupted run
+   * @param lines
+   *          number of lines read by the interrupted run, without the header
+   * @param text
+   *          the text read by the interrupted run after its last complete 
+   *          paragraph
+   */
+  private void skipLines(int lines, String text) {
+    for (int i = 0; i < lines && FILE_READER.skipLine(); i++) {
+      // already processed
+    }
+    linesRead = lines;
+    pending.setLength(0);
+    pending.append(text);
+    scanned = 0;
+  }
+  
+  /**
+   * Removes all the metadata (i.e. mARkdown) from the file. 
+   * It consumes the file: it cannot be combined with {@link #nextParagraph()}.
    * @return
    *        plain text version of the file contents
    */
   public String getPlainText() {
     StringBuffer sb = new StringBuffer();
+    while (hasNextParagraph()) {
+      sb.append(nextParagraph());
+      if (hasNextParagraph()) {
+        sb.append(PAR_DIVISOR);
+      }
+    } 
+    return sb.toString();
+  }
+  
+  /**
+   * @return
+   *        true if there are paragraphs left in the file
+   */
+  public boolean hasNextParagraph() {
+    return ! paragraphsDone;
+  }
+  
+  /**
+   * Reads the file until the current paragraph is complete and removes its 
+   * metadata. Only the current paragraph is kept in memory. Joining all the 
+   * paragraphs with a line break gives the same as {@link #getPlainText()}.
+   * 
+   * @return
+   *        the plain text of the next paragraph (it might be empty) or null if 
+   *        there are none left
+   */
+  public String nextParagraph() {
+    if (paragraphsDone) {
+      return null;
+    }
+    int end;
+    while ((end = pending.indexOf(PAR_DIVISOR, scanned)) < 0) {
+      scanned = pending.length();
+      String piece = nextCleanLine();
+      if (piece == null) {
+        // the tail of the text is the last paragraph
+        paragraphsDone = true;
+        String paragraph = pending.toString();
+        pending.setLength(0);
+        return paragraph;
+      }
+      pending.append(piece);
+    }
+    String paragraph = pending.substring(0, end);
+    pending.delete(0, end + PAR_DIVISOR.length());
+    scanned = 0;
+    return paragraph;
+  }
+  
+  /**
+   * @return
+   *        the next valid line of the file without mARkdown and preceded by 
+   *        the paragraph divisor or continuer if necessary; null at the end of 
+   *        the file, which is then closed 
+   */
+  private String nextCleanLine() {
     String currentLine;
-    int counter = 0;
     while (FILE_READER.hasNextLine()) {
-      if ((++ counter ) % 50 == 0) {
-        System.err.println("Processing line " + counter);
-      }
+      linesRead++;
       //What to do with the lines...
       currentLine = FILE_READER.nextLine();
       if (! lineIsValid(currentLine)) {
         continue;
       }
+      StringBuilder sb = new StringBuilder();
       if (lineBeginsParagraph(currentLine)) {
         //do the preprocessing for new paragraph
         sb.append(PAR_DIVISOR);
@@ -151,16 +274,33 @@ public class MARkdown {
         sb.append(PAR_CONTINUER);
         
       }
+      long start = Metrics.start();
       sb.append(cleanLine(currentLine));
+      Metrics.record(Metrics.Stage.CLEAN, currentLine, start);
+      return sb.toString();
     } 
     FILE_READER.close();
-    return sb.toString();
+    return null;
+  }
+  
+  /** 
+   * Closes the file, if it has not been read until the end yet, and stops 
+   * the threads splitting paragraphs 
+   */
+  @Override
+  public void close() {
+    FILE_READER.close();
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
   }
   
   /**
    * Identifies sentences in the text with a model trained with OpenNLP.
    * The method uses \n to split the text into (potential) paragraphs 
-   * before starting with sentences.
+   * before starting with sentences. The paragraphs are split in parallel if 
+   * more than one thread has been set.
    * 
    * @param text  
    *          plain text
@@ -170,21 +310,50 @@ public class MARkdown {
   public List<String> getSentences(String text) {
     System.err.println("Identifying sentences");
     List<String> sentences = new ArrayList<String>();
-    String[] paragraphs = text.split(PAR_DIVISOR);
-    for (int i = 0; i < paragraphs.length; i++) {
-      Span[] spans = sentenceDetector.sentPosDetect(paragraphs[i]);
-      for (int j = 0; j < spans.length; j++) {
-        if (spans[j].getStart() < spans[j].getEnd()) {
-          sentences.add(
-              paragraphs[i].substring(spans[j].getStart(), spans[j].getEnd()));
-        } else {
-          System.out.println("this one is empty");
-        }
-      }
+    for (List<String> paragraph : getParagraphSentences(
+        Arrays.asList(text.split(PAR_DIVISOR)))) {
+      sentences.addAll(paragraph);
     }
     return sentences;
   }
   
+  /**
+   * Identifies sentences in one paragraph with a model trained with OpenNLP.
+   * 
+   * @param paragraph
+   *          plain text without line breaks
+   * @return
+   *          a list with the sentences in the paragraph. 
+   */
+  public List<String> getParagraphSentences(String paragraph) {
+    return getSplitter().split(paragraph);
+  }
+  
+  /**
+   * Identifies sentences in several paragraphs, in parallel if more than one 
+   * thread has been set.
+   * 
+   * @param paragraphs
+   *          plain text without line breaks
+   * @return
+   *          the sentences of every paragraph, in the same order 
+   */
+  public List<List<String>> getParagraphSentences(List<String> paragraphs) {
+    if (pool == null || paragraphs.size() < 2) {
+      List<List<String>> sentences = new ArrayList<List<String>>();
+      for (String paragraph : paragraphs) {
+        sentences.add(getSplitter().split(paragraph));
+      }
+      return sentences;
+    }
+    try {
+      return getSplitter().split(paragraphs, pool, threads);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+  
   /**
    * Substitutes mARkdown for spaces. The new paragraph marker is substituted by 
    * linebreak
@@ -192,27 +361,7 @@ public class MARkdown {
    * @return
    */
   private String cleanLine(String line) {
-    line = line
-        .replaceAll(SUBJECT_PATTERN, SUBJECT_SUBST)         // "#####[A-Z]+#[A-Z]+#";
-        .replaceAll(HEADER_PATTERN, HEADER_SUBST)           // "### |{1,5}"
-        .replaceAll(EDITORIAL_PATTERN, EDITORIAL_SUBST)     // "### \\|EDITOR\\|"
-        .replaceAll(DICTIONARY_PATTERN, DICTIONARY_SUBST)   // "\\$DIC_[A-Z]{3}\\$"
-        .replaceAll(HISTORY_PATTERN, HISTORY_SUBST)         // "### @( RAW)?";
-        .replaceAll(GENERIC_PATTERN, GENERIC_SUBST)         // "### \\$[A-Z]{3}_[A-Z]{3}\\$";
-        .replaceAll(BIOGRAPHY_PATTERN, BIOGRAPHY_SUBST)     // "### \\${1,4}";  TODO not sure it this is necessary as well
-        .replaceAll(PAGE_NUMBER_PATTERN, PAGE_NUMBER_SUBST) // "PageV\\d{2}P\\d{3}"
-
-        .replaceAll(TAG_PARAGRAPH_BEGINS, PAR_DIVISOR)              //  "#( %)?" (it was originally "#")
-        .replaceAll(TAG_PARAGRAPH_CONTINUES, " ")           // "~~"
-        .replaceAll("( ){2,}", " ")                         // space normalization
-        .replaceAll(LINE_NUMBER, LINE_SUBST)                // "\\% (\\d)+"
-        .replaceAll(VERSE_HEMISTICH_PATTERN, VERSE_HEMISTICH_SUBST) //"%([~, ]%)?";
-        .replaceAll(MILESTONE_PATTERN, MILESTONE_SUBST)     //"Milestone300"
-        // 
-        .replaceAll(" % ", " ")        
-        ;
-
-    return line;
+    return cleaner.clean(line);
   }
   
   /**
@@ -257,9 +406,9 @@ public class MARkdown {
    * can be read
    * @param args
    * @return
-   *          the provided file (if valid)
+   *          the parsed parameters, with a valid input file
    */
-  private static String setup(String[] args)  {
+  private static CommandLine setup(String[] args)  {
     HelpFormatter formatter = new HelpFormatter();
 //    int widthFormatter = 88;    
     
@@ -268,6 +417,11 @@ public class MARkdown {
 
     options.addOption("f", "input", true, 
         "Input file");
+    options.addOption(null, "threads", true, 
+        "Number of threads splitting paragraphs into sentences; default: 1");
+    options.addOption(null, "resume", false, 
+        "Continue an interrupted run from its checkpoint; skip the file if it is up to date");
+    Metrics.addOptions(options);
     
     CommandLine cLine = null; 
     
@@ -288,45 +442,176 @@ public class MARkdown {
       System.err.println("I cannot read the file at " + f);
       System.exit(1);     
     }
+    Metrics.configure(cLine);
 
-    return f.toString();
+    return cLine;
 
   }
 
   
   
-  public static void main (String[] args) throws InvalidFormatException, FileNotFoundException, IOException {
-//    String input = "/Users/albarron/workspace/abc/qatar/qcri/shamela/0001AbuTalibCabdManaf.Diwan.JK007501-ara1";
-//    String input = "/Users/albarron/workspace/abc/qatar/qcri/shamela/0834IbnHamzaFanari.MisbahUns.Shia004692-ara1";
-    String input = setup(args);
-    final String filePlain =  input + FILE_SUFFIX_PLAIN;
-    final String fileSent = input + FILE_SUFFIX_SENTENCES;
+  /**
+   * Generates the .plain file with the plain text and the .sent file with 
+   * one sentence per line for the given OpenITI file. The file is processed 
+   * one paragraph at a time: each paragraph is written to both files as soon 
+   * as it is complete, so memory is bounded by the largest paragraph.
+   * @param input
+   *          input file in openITI format
+   * @return
+   *          the number of sentences written
+   */
+  public static long process(String input) throws InvalidFormatException, FileNotFoundException, IOException {
+    return process(input, 1);
+  }
+  
+  /**
+   * Generates the .plain file with the plain text and the .sent file with 
+   * one sentence per line for the given OpenITI file. With more than one 
+   * thread, the paragraphs are split into sentences in parallel, in batches 
+   * of a few paragraphs per thread, so memory is bounded by the batch.
+   * @param input
+   *          input file in openITI format
+   * @param threads
+   *          number of threads splitting paragraphs into sentences
+   * @return
+   *          the number of sentences written
+   */
+  public static long process(String input, int threads) throws InvalidFormatException, FileNotFoundException, IOException {
+    return process(input, threads, null, false);
+  }
+  
+  /**
+   * @param input
+   *          input file in openITI format
+   * @return
+   *          the checkpoint of generating the .plain and .sent files
+   */
+  public static Checkpoint newCheckpoint(String input) throws IOException {
+    return new Checkpoint(input, "markdown", 
+        Arrays.asList(Compression.withSuffix(input, FILE_SUFFIX_PLAIN), 
+            Compression.withSuffix(input, FILE_SUFFIX_SENTENCES)));
+  }
+  
+  /**
+   * Same as {@link #process(String, int)}, but the progress is committed to 
+   * the checkpoint every few thousand sentences.
+   * @param input
+   *          input file in openITI format
+   * @param threads
+   *          number of threads splitting paragraphs into sentences
+   * @param checkpoint
+   *          from {@link #newCheckpoint(String)}; null for none
+   * @param resume
+   *          whether to continue from the checkpoint of an interrupted run and 
+   *          to skip the file if it is up to date
+   * @return
+   *          the number of sentences in the .sent file
+   */
+  public static long process(String input, int threads, Checkpoint checkpoint, 
+      boolean resume) throws InvalidFormatException, FileNotFoundException, IOException {
+    final String filePlain = Compression.withSuffix(input, FILE_SUFFIX_PLAIN);
+    final String fileSent = Compression.withSuffix(input, FILE_SUFFIX_SENTENCES);
     
+    if (resume && checkpoint != null && checkpoint.isUpToDate()) {
+      System.err.println(input + " is up to date");
+      return Long.parseLong(checkpoint.getState(STATE_SENTENCES));
+    }
     MARkdown mark = new MARkdown(input);
-    String text = mark.getPlainText();
-    
-    
-    WriteFile wf = new WriteFile(filePlain);
-    wf.write(text);
-    wf.close();
-    System.err.println("Plain text file saved");
-    
-    List<String> sentences = mark.getSentences(text);
-
-    WriteFile wf2 = new WriteFile(fileSent);
+    // loaded while the first paragraphs are cleaned
+    SentenceSplitter.preloadDefault();
+    long counter = 0;
+    boolean append = false;
+    if (resume && checkpoint != null && checkpoint.canResume()) {
+      int lines = (int) checkpoint.resume();
+      counter = Long.parseLong(checkpoint.getState(STATE_SENTENCES));
+      mark.skipLines(lines, checkpoint.getState(STATE_PENDING));
+      append = true;
+      System.err.println("Resuming " + input + " after line " + lines);
+    }
+    WriteFile wf = new AsyncWriteFile(filePlain, append);
+    WriteFile wf2 = new AsyncWriteFile(fileSent, append);
+    mark.setThreads(threads);
 
-    int counter = 0;
-    for (String sent : sentences) {
-      wf2.writeLn(sent); 
-      
-      if ((++ counter ) % 50 == 0) {
-        System.err.println("Writing sentence " + counter);
+    System.err.println("Identifying sentences");
+    long committed = counter;
+    List<String> batch = new ArrayList<String>();
+    try {
+      while (mark.hasNextParagraph()) {
+        String paragraph = mark.nextParagraph();
+        wf.write(paragraph);
+        if (mark.hasNextParagraph()) {
+          wf.write(mark.PAR_DIVISOR);
+        }
+        batch.add(paragraph);
+        if (batch.size() < threads * PARAGRAPHS_PER_THREAD && mark.hasNextParagraph()) {
+          continue;
+        }
+        
+        List<List<String>> sentences = mark.pool == null 
+            ? mark.getParagraphSentences(batch)
+            : mark.getSplitter().split(batch, mark.pool, threads);
+        batch.clear();
+        for (List<String> paragraphSentences : sentences) {
+          for (String sent : paragraphSentences) {
+            long start = Metrics.start();
+            wf2.writeLn(sent); 
+            Metrics.record(Metrics.Stage.WRITE, sent, start);
+            counter++;
+          }
+        }
+        if (checkpoint != null && counter - committed >= SENTENCES_PER_CHECKPOINT) {
+          // every paragraph read so far is in both files
+          wf.flush();
+          wf2.flush();
+          checkpoint.setState(STATE_SENTENCES, String.valueOf(counter));
+          checkpoint.setState(STATE_PENDING, mark.pending.toString());
+          checkpoint.commit(mark.linesRead);
+          committed = counter;
+        }
       }
-
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      mark.close();
+      wf.close();
+      wf2.close();
+    }
+    if (checkpoint != null) {
+      checkpoint.setState(STATE_SENTENCES, String.valueOf(counter));
+      checkpoint.setState(STATE_PENDING, "");
+      checkpoint.complete(mark.linesRead);
     }
-    wf2.close();
     System.err.println("Plain text file saved to " + filePlain);
     System.err.println("Sentences file saved to " + fileSent);
+    return counter;
+  }
+  
+  public static void main (String[] args) throws InvalidFormatException, FileNotFoundException, IOException {
+//    String input = "/Users/albarron/workspace/abc/qatar/qcri/shamela/0001AbuTalibCabdManaf.Diwan.JK007501-ara1";
+//    String input = "/Users/albarron/workspace/abc/qatar/qcri/shamela/0834IbnHamzaFanari.MisbahUns.Shia004692-ara1";
+    CommandLine cLine = setup(args);
+    String input = cLine.getOptionValue("f");
+    int threads = 1;
+    if (cLine.hasOption("threads")) {
+      try {
+        threads = Integer.parseInt(cLine.getOptionValue("threads"));
+      } catch (NumberFormatException e) {
+        threads = 0;
+      }
+      if (threads < 1) {
+        System.err.println("The number of threads must be a positive integer: " 
+            + cLine.getOptionValue("threads"));
+        System.exit(1);
+      }
+    }
+    try {
+      process(input, threads, newCheckpoint(input), cLine.hasOption("resume"));
+      System.err.print(Metrics.getSummary());
+    } catch (InvalidFormatException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
   }
   
   
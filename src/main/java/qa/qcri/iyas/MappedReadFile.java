@@ -0,0 +1,249 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A faster {@link ReadFile} for large plain UTF-8 files. The file is
+ * memory-mapped in regions of {@value #REGION_SIZE} bytes and the line
+ * breaks (\n, \r\n or \r, as in {@link java.io.BufferedReader#readLine()})
+ * are searched in the raw bytes; a line is only decoded when it is
+ * returned, so {@link #skipLine()} costs no allocation. Unlike
+ * {@link ReadFile}, an I/O error is thrown as an
+ * {@link UncheckedIOException} instead of being logged.
+ *
+ * The lines can also be iterated or streamed (closing the stream closes
+ * the file). Use {@link #open(String)} to get this reader for plain files
+ * and a {@link ReadFile} for compressed ones.
+ */
+public class MappedReadFile implements LineReader, Iterable<String>, AutoCloseable {
+
+  static final int REGION_SIZE = 1 << 28;
+
+  private static final byte LF = '\n';
+
+  private static final byte CR = '\r';
+
+  private final FileChannel channel;
+
+  private final long size;
+
+  private final int regionSize;
+
+  private MappedByteBuffer region;
+
+  /** Offset of the region in the file */
+  private long regionStart;
+
+  /** Position of the next line in the region */
+  private int position;
+
+  /** End of the next line in the region (exclusive); -1 if not found yet */
+  private int lineEnd = -1;
+
+  /** Position after the line break of the next line */
+  private int next;
+
+  private byte[] bytes = new byte[1024];
+
+  /**
+   * @param path
+   *          a plain (not compressed) UTF-8 file
+   */
+  public MappedReadFile(String path) throws IOException {
+    this(path, REGION_SIZE);
+  }
+
+  MappedReadFile(String path, int regionSize) throws IOException {
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    this.size = channel.size();
+    this.regionSize = regionSize;
+    map(0, (int) Math.min(size, regionSize));
+  }
+
+  /**
+   * @param path
+   *          a text file, compressed or not
+   * @return
+   *          a {@link MappedReadFile} if the file is not compressed and a
+   *          {@link ReadFile} otherwise
+   */
+  public static LineReader open(String path) throws IOException {
+    Compression compression;
+    BufferedInputStream in = new BufferedInputStream(new FileInputStream(path), 16);
+    try {
+      compression = Compression.detect(in);
+    } finally {
+      in.close();
+    }
+    return compression == Compression.NONE
+        ? new MappedReadFile(path)
+        : new ReadFile(path);
+  }
+
+  private void map(long start, int length) throws IOException {
+    region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    regionStart = start;
+  }
+
+  /** Finds the end of the next line, mapping the next region if necessary */
+  private boolean find() {
+    if (lineEnd >= 0) {
+      return true;
+    }
+    try {
+      while (true) {
+        int limit = region.limit();
+        for (int i = position; i < limit; i++) {
+          byte b = region.get(i);
+          if (b == LF) {
+            lineEnd = i;
+            next = i + 1;
+            return true;
+          }
+          if (b == CR) {
+            if (i + 1 < limit) {
+              lineEnd = i;
+              next = region.get(i + 1) == LF ? i + 2 : i + 1;
+              return true;
+            }
+            if (regionStart + limit == size) {
+              lineEnd = i;
+              next = limit;
+              return true;
+            }
+            // the \n may be in the next region
+            break;
+          }
+        }
+        long end = regionStart + limit;
+        if (end == size) {
+          if (position == limit) {
+            return false;
+          }
+          // last line without a line break
+          lineEnd = limit;
+          next = limit;
+          return true;
+        }
+        // map from the start of the line, larger if the line does not fit
+        long start = regionStart + position;
+        int length = position == 0 ? grow(limit) : regionSize;
+        map(start, (int) Math.min(size - start, length));
+        position = 0;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int grow(int length) throws IOException {
+    if (length == Integer.MAX_VALUE) {
+      throw new IOException("Line longer than " + Integer.MAX_VALUE + " bytes at "
+          + regionStart);
+    }
+    return (int) Math.min(Integer.MAX_VALUE, 2L * length);
+  }
+
+  @Override
+  public boolean hasNextLine() {
+    return find();
+  }
+
+  /**
+   * @return
+   *        the next line, decoded from UTF-8 (malformed bytes are replaced);
+   *        null at the end of the file
+   */
+  @Override
+  public String nextLine() {
+    if (! find()) {
+      return null;
+    }
+    int length = lineEnd - position;
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, 2 * bytes.length)];
+    }
+    region.position(position);
+    region.get(bytes, 0, length);
+    advance();
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Skips the next line without decoding it
+   * @return
+   *        false if there were no more lines
+   */
+  @Override
+  public boolean skipLine() {
+    if (! find()) {
+      return false;
+    }
+    advance();
+    return true;
+  }
+
+  private void advance() {
+    position = next;
+    lineEnd = -1;
+  }
+
+  /** @return the offset in the file of the next line */
+  public long getPosition() {
+    return regionStart + position;
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** @return the remaining lines; the iterator shares the position of this reader */
+  @Override
+  public Iterator<String> iterator() {
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        return hasNextLine();
+      }
+
+      @Override
+      public String next() {
+        if (! hasNextLine()) {
+          throw new NoSuchElementException();
+        }
+        return nextLine();
+      }
+    };
+  }
+
+  /** @return the remaining lines; closing the stream closes this reader */
+  public Stream<String> lines() {
+    Spliterator<String> spliterator = Spliterators.spliteratorUnknownSize(iterator(),
+        Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+      @Override
+      public void run() {
+        close();
+      }
+    });
+  }
+}
@@ -0,0 +1,209 @@
+package qa.qcri.iyas;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Removes the mARkdown tags from one line of an OpenITI file. The patterns
+ * are compiled once, and every instance reuses its matchers and two
+ * character buffers, so that cleaning a line allocates a single String.
+ *
+ * The substitutions are applied in the same order as the original chain of
+ * {@code String.replaceAll} calls, which guarantees the very same output
+ * (MarkdownCleanerTest compares both on a sample). A first scan of the line looks for the
+ * characters every pattern needs in order to match (e.g., '#' for the
+ * headers, '$' for the dictionary entries), and only the substitutions that
+ * can actually match are attempted. The substitutions only insert spaces,
+ * dots and line breaks, so a pattern whose characters are not in the
+ * original line cannot match at any point of the chain. Most lines are plain
+ * text and go through that first scan only.
+ *
+ * An instance is not thread-safe.
+ */
+public class MarkdownCleaner {
+
+  static final String SUBJECT_PATTERN = "#####[A-Z]+#[A-Z]+#";
+  static final String SUBJECT_SUBST = "";
+
+  static final String HEADER_PATTERN = "### \\|{1,5}";
+  static final String HEADER_SUBST = " ";
+  //TODO incorporated into HEADER_PATTERN. MIGHT NOT BE NECESSARY
+//  private final String HEADER_CHAPTER = "### |";
+//  private final String HEADER_SECTION = "### ||";
+//  private final String HEADER_SUBSECTION = "### |||";
+
+  static final String EDITORIAL_PATTERN = "### \\|EDITOR\\|";
+  static final String EDITORIAL_SUBST = "";
+
+  static final String TAG_PARAGRAPH_BEGINS = "#( %)?";
+  static final String TAG_PARAGRAPH_CONTINUES = "~~";
+
+  /** The symbol inserted when we want to start a new paragraph  */
+  static final String PAR_DIVISOR = "\n";
+
+  static final String PAGE_NUMBER_PATTERN = "PageV\\d{2}P\\d{3}";
+  static final String PAGE_NUMBER_SUBST = "";
+
+  static final String MILESTONE_PATTERN = "Milestone300";
+  static final String MILESTONE_SUBST = "";
+
+  //TODO what character should I implement instead of this one?
+  static final String VERSE_HEMISTICH_PATTERN = "%([~, ]%)?";
+  static final String VERSE_HEMISTICH_SUBST = "";
+
+  static final String DICTIONARY_PATTERN = "\\$DIC_[A-Z]{3}\\$";
+  static final String DICTIONARY_SUBST = ".";
+
+  static final String BIOGRAPHY_PATTERN = "### \\${1,4}";
+  static final String BIOGRAPHY_SUBST = "";
+
+  static final String HISTORY_PATTERN = "### @( RAW)?";
+  static final String HISTORY_SUBST = " ";
+
+  /**
+   * Contains patterns for biographies (e.g., ### $BIO_MAN$), historical events
+   * (e.g., ### $CHR_RAW$), doxographical items (e.g., ### $DOX_POS$)
+   */
+  static final String GENERIC_PATTERN = "### \\$[A-Z]{3}_[A-Z]{3}\\$";
+  static final String GENERIC_SUBST = " ";
+
+  static final String LINE_NUMBER = "\\%\\s+(\\d)+";
+  static final String LINE_SUBST = " ";
+
+  static final String SPACES_PATTERN = "( ){2,}";
+  static final String SPACES_SUBST = " ";
+
+  static final String LOOSE_PERCENT_PATTERN = " % ";
+  static final String LOOSE_PERCENT_SUBST = " ";
+
+  /** Stands for "the rule can be triggered by the substitutions themselves" */
+  private static final char ANY = 0;
+
+  /**
+   * The substitutions, in the order of the original chain. Each one comes
+   * with the character any of its matches must contain.
+   */
+  private static final Rule[] RULES = {
+      new Rule(SUBJECT_PATTERN, SUBJECT_SUBST, '#'),
+      new Rule(HEADER_PATTERN, HEADER_SUBST, '#'),
+      new Rule(EDITORIAL_PATTERN, EDITORIAL_SUBST, '#'),
+      new Rule(DICTIONARY_PATTERN, DICTIONARY_SUBST, '$'),
+      new Rule(HISTORY_PATTERN, HISTORY_SUBST, '#'),
+      new Rule(GENERIC_PATTERN, GENERIC_SUBST, '#'),
+      new Rule(BIOGRAPHY_PATTERN, BIOGRAPHY_SUBST, '#'),
+      new Rule(PAGE_NUMBER_PATTERN, PAGE_NUMBER_SUBST, 'P'),
+
+      new Rule(TAG_PARAGRAPH_BEGINS, PAR_DIVISOR, '#'),
+      new Rule(TAG_PARAGRAPH_CONTINUES, " ", '~'),
+      new Rule(SPACES_PATTERN, SPACES_SUBST, ANY),
+      new Rule(LINE_NUMBER, LINE_SUBST, '%'),
+      new Rule(VERSE_HEMISTICH_PATTERN, VERSE_HEMISTICH_SUBST, '%'),
+      new Rule(MILESTONE_PATTERN, MILESTONE_SUBST, 'M'),
+      new Rule(LOOSE_PERCENT_PATTERN, LOOSE_PERCENT_SUBST, '%'),
+  };
+
+  private final Matcher[] matchers = new Matcher[RULES.length];
+
+  private StringBuilder current = new StringBuilder();
+  private StringBuilder other = new StringBuilder();
+
+  public MarkdownCleaner() {
+    for (int i = 0; i < RULES.length; i++) {
+      matchers[i] = RULES[i].pattern.matcher("");
+    }
+  }
+
+  /**
+   * Substitutes mARkdown for spaces. The new paragraph marker is substituted by
+   * linebreak
+   * @param line
+   *          one line of an OpenITI file
+   * @return
+   *          the same as the original chain of {@code replaceAll} calls
+   */
+  public String clean(String line) {
+    boolean hash = false;
+    boolean dollar = false;
+    boolean page = false;
+    boolean tilde = false;
+    boolean percent = false;
+    boolean milestone = false;
+    boolean spaces = false;
+    char previous = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      switch (c) {
+        case '#': hash = true; break;
+        case '$': dollar = true; break;
+        case 'P': page = true; break;
+        case '~': tilde = true; break;
+        case '%': percent = true; break;
+        case 'M': milestone = true; break;
+        case ' ': spaces |= previous == ' '; break;
+        default: break;
+      }
+      previous = c;
+    }
+    if (! (hash || dollar || page || tilde || percent || milestone || spaces)) {
+      return line;
+    }
+
+    current.setLength(0);
+    current.append(line);
+    boolean changed = false;
+    for (int i = 0; i < RULES.length; i++) {
+      boolean applies;
+      switch (RULES[i].trigger) {
+        case '#': applies = hash; break;
+        case '$': applies = dollar; break;
+        case 'P': applies = page; break;
+        case '~': applies = tilde; break;
+        case '%': applies = percent; break;
+        case 'M': applies = milestone; break;
+        default: applies = spaces || changed; break;
+      }
+      if (applies) {
+        changed |= replaceAll(matchers[i], RULES[i].substitution);
+      }
+    }
+    return changed ? current.toString() : line;
+  }
+
+  /**
+   * Same as {@code current.replaceAll(pattern, substitution)}, but writes into
+   * the spare buffer, which becomes the current one
+   * @return
+   *          true if at least one substitution was done
+   */
+  private boolean replaceAll(Matcher matcher, String substitution) {
+    matcher.reset(current);
+    if (! matcher.find()) {
+      return false;
+    }
+    other.setLength(0);
+    int last = 0;
+    do {
+      other.append(current, last, matcher.start())
+        .append(substitution);
+      last = matcher.end();
+    } while (matcher.find());
+    other.append(current, last, current.length());
+
+    StringBuilder tmp = current;
+    current = other;
+    other = tmp;
+    return true;
+  }
+
+  private static class Rule {
+    final Pattern pattern;
+    final String substitution;
+    final char trigger;
+
+    Rule(String regex, String substitution, char trigger) {
+      this.pattern = Pattern.compile(regex);
+      this.substitution = substitution;
+      this.trigger = trigger;
+    }
+  }
+}
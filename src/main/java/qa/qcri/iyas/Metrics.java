@@ -0,0 +1,456 @@
+package qa.qcri.iyas;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+/**
+ * Throughput and latency of every processing stage in this JVM: the number
+ * of items (lines, paragraphs or sentences) and tokens processed, their rates
+ * and a {@link LatencyHistogram} of the time per item, overall and by the
+ * length of the item in tokens. Recording costs two calls to
+ * {@link System#nanoTime()} and a few lock-free increments, so the metrics
+ * are always on.
+ *
+ * Every stage is registered in JMX as {@code qa.qcri.iyas:type=Metrics,stage=NAME}.
+ * With --metrics FILE, a report is appended to the file periodically and when
+ * the JVM exits, in the "name value" format of the /stats page of
+ * {@link AnnotationServer}; every report starts with its timestamp and ends
+ * with a blank line.
+ */
+public final class Metrics {
+
+  /** The processing stages, in pipeline order */
+  public enum Stage {
+    READ("read", "lines"),
+    CLEAN("clean", "lines"),
+    SPLIT("split", "paragraphs"),
+    LEMMATIZE("lemmatize", "sentences"),
+    SEGMENT("segment", "sentences"),
+    TAG("tag", "sentences"),
+    PARSE("parse", "sentences"),
+    WRITE("write", "sentences");
+
+    private final String name;
+    private final String unit;
+
+    private Stage(String name, String unit) {
+      this.name = name;
+      this.unit = unit;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** @return what an item of the stage is */
+    public String getUnit() {
+      return unit;
+    }
+  }
+
+  /** The attributes of every stage in JMX */
+  public interface StageMXBean {
+    long getCount();
+    long getTokens();
+    double getItemsPerSecond();
+    double getTokensPerSecond();
+    double getMeanMillis();
+    double getP50Millis();
+    double getP95Millis();
+    double getP99Millis();
+    double getMaxMillis();
+    /** @return the 95th percentile by length bucket, e.g. "11_20" */
+    Map<String, Double> getP95MillisByLength();
+  }
+
+  /** Upper bounds (in tokens) of the length buckets; the last one is open */
+  private static final int[] LENGTH_LIMITS = {10, 20, 40, 80};
+
+  private static final String[] LENGTH_LABELS = {"1_10", "11_20", "21_40", "41_80", "81_plus"};
+
+  public static final long DEFAULT_REPORT_INTERVAL = 10;
+
+  private static final Map<Stage, StageMetrics> STAGES = newStages();
+
+  private static final long STARTED = System.nanoTime();
+
+  private static ScheduledExecutorService reporter;
+
+  /** When the previous report was made; 0 for none. Guarded by the class */
+  private static long lastReport;
+
+  private Metrics() {
+  }
+
+  private static Map<Stage, StageMetrics> newStages() {
+    Map<Stage, StageMetrics> stages = new EnumMap<Stage, StageMetrics>(Stage.class);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Stage stage : Stage.values()) {
+      StageMetrics metrics = new StageMetrics();
+      stages.put(stage, metrics);
+      try {
+        server.registerMBean(metrics,
+            new ObjectName("qa.qcri.iyas:type=Metrics,stage=" + stage.getName()));
+      } catch (JMException e) {
+        // already registered by another class loader; the metrics still work
+      }
+    }
+    return stages;
+  }
+
+  /** @return the time to pass to {@link #record(Stage, String, long)} */
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records one item of a stage
+   * @param stage
+   *          the stage
+   * @param text
+   *          the item, whose tokens are counted
+   * @param start
+   *          the value of {@link #start()} before processing the item
+   */
+  public static void record(Stage stage, String text, long start) {
+    record(stage, tokens(text), start);
+  }
+
+  /**
+   * Records one item of a stage
+   * @param stage
+   *          the stage
+   * @param tokens
+   *          the length of the item in tokens
+   * @param start
+   *          the value of {@link #start()} before processing the item
+   */
+  public static void record(Stage stage, int tokens, long start) {
+    STAGES.get(stage).record(tokens, System.nanoTime() - start);
+  }
+
+  /** @return the number of space-separated tokens of the text */
+  public static int tokens(String text) {
+    int tokens = 0;
+    boolean inToken = false;
+    for (int i = 0; i < text.length(); i++) {
+      boolean space = Character.isWhitespace(text.charAt(i));
+      if (! space && ! inToken) {
+        tokens++;
+      }
+      inToken = ! space;
+    }
+    return tokens;
+  }
+
+  private static int bucket(int tokens) {
+    for (int i = 0; i < LENGTH_LIMITS.length; i++) {
+      if (tokens <= LENGTH_LIMITS[i]) {
+        return i;
+      }
+    }
+    return LENGTH_LIMITS.length;
+  }
+
+  /**
+   * @param reader
+   *          the input of a run
+   * @return
+   *          the same reader, recording every line read in the READ stage
+   */
+  public static LineReader meter(final LineReader reader) {
+    return new LineReader() {
+      @Override
+      public boolean hasNextLine() {
+        return reader.hasNextLine();
+      }
+
+      @Override
+      public String nextLine() {
+        long start = start();
+        String line = reader.nextLine();
+        if (line != null) {
+          record(Stage.READ, line, start);
+        }
+        return line;
+      }
+
+      @Override
+      public boolean skipLine() {
+        return reader.skipLine();
+      }
+
+      @Override
+      public void close() {
+        reader.close();
+      }
+    };
+  }
+
+  /** @return the metrics of one stage */
+  public static StageMXBean get(Stage stage) {
+    return STAGES.get(stage);
+  }
+
+  private static class StageMetrics implements StageMXBean {
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder tokens = new LongAdder();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final LatencyHistogram[] byLength = new LatencyHistogram[LENGTH_LABELS.length];
+
+    /** Count and tokens at the previous report */
+    private long reportedCount;
+
+    private long reportedTokens;
+
+    StageMetrics() {
+      for (int i = 0; i < byLength.length; i++) {
+        byLength[i] = new LatencyHistogram();
+      }
+    }
+
+    void record(int length, long nanos) {
+      count.increment();
+      tokens.add(length);
+      latency.record(nanos);
+      byLength[bucket(length)].record(nanos);
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    public long getTokens() {
+      return tokens.sum();
+    }
+
+    @Override
+    public double getItemsPerSecond() {
+      return perSecond(getCount());
+    }
+
+    @Override
+    public double getTokensPerSecond() {
+      return perSecond(getTokens());
+    }
+
+    private static double perSecond(long value) {
+      double seconds = (System.nanoTime() - STARTED) / 1e9;
+      return seconds <= 0 ? 0 : value / seconds;
+    }
+
+    @Override
+    public double getMeanMillis() {
+      return latency.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Millis() {
+      return latency.getPercentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP95Millis() {
+      return latency.getPercentile(0.95) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+      return latency.getPercentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public Map<String, Double> getP95MillisByLength() {
+      Map<String, Double> p95 = new LinkedHashMap<String, Double>();
+      for (int i = 0; i < byLength.length; i++) {
+        p95.put(LENGTH_LABELS[i], byLength[i].getPercentile(0.95) / 1000.0);
+      }
+      return p95;
+    }
+  }
+
+  /**
+   * @return
+   *        the metrics of every stage that has processed something, one
+   *        "name value" pair per line; the interval rates are those since
+   *        the previous report
+   */
+  public static synchronized String getReport() {
+    StringBuilder report = new StringBuilder();
+    line(report, "timestamp_ms", System.currentTimeMillis());
+    line(report, "uptime_s", String.format("%.1f", (System.nanoTime() - STARTED) / 1e9));
+    double interval = (System.nanoTime() - (lastReport == 0 ? STARTED : lastReport)) / 1e9;
+    for (Stage stage : Stage.values()) {
+      StageMetrics metrics = STAGES.get(stage);
+      long count = metrics.getCount();
+      if (count == 0) {
+        continue;
+      }
+      long tokens = metrics.getTokens();
+      String name = stage.getName();
+      line(report, name + "_" + stage.getUnit(), count);
+      line(report, name + "_tokens", tokens);
+      line(report, name + "_" + stage.getUnit() + "_per_s",
+          String.format("%.1f", metrics.getItemsPerSecond()));
+      line(report, name + "_tokens_per_s", String.format("%.1f", metrics.getTokensPerSecond()));
+      if (interval > 0) {
+        line(report, name + "_" + stage.getUnit() + "_per_s_interval",
+            String.format("%.1f", (count - metrics.reportedCount) / interval));
+        line(report, name + "_tokens_per_s_interval",
+            String.format("%.1f", (tokens - metrics.reportedTokens) / interval));
+      }
+      latencies(report, name, metrics.latency);
+      for (int i = 0; i < LENGTH_LABELS.length; i++) {
+        if (metrics.byLength[i].getCount() > 0) {
+          latencies(report, name + "_len_" + LENGTH_LABELS[i], metrics.byLength[i]);
+        }
+      }
+      metrics.reportedCount = count;
+      metrics.reportedTokens = tokens;
+    }
+    lastReport = System.nanoTime();
+    return report.toString();
+  }
+
+  private static void line(StringBuilder report, String name, Object value) {
+    report.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void latencies(StringBuilder report, String name,
+      LatencyHistogram histogram) {
+    line(report, name + "_count", histogram.getCount());
+    line(report, name + "_ms_mean", String.format("%.3f", histogram.getMean() / 1000));
+    line(report, name + "_ms_p50", String.format("%.3f", histogram.getPercentile(0.5) / 1000.0));
+    line(report, name + "_ms_p95", String.format("%.3f", histogram.getPercentile(0.95) / 1000.0));
+    line(report, name + "_ms_p99", String.format("%.3f", histogram.getPercentile(0.99) / 1000.0));
+    line(report, name + "_ms_max", String.format("%.3f", histogram.getMax() / 1000.0));
+  }
+
+  /**
+   * @return
+   *        one line per stage that has processed something, with its count,
+   *        rates and latencies, for the end of a run
+   */
+  public static String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Stage stage : Stage.values()) {
+      StageMetrics metrics = STAGES.get(stage);
+      if (metrics.getCount() == 0) {
+        continue;
+      }
+      summary.append(String.format("%-10s %d %s (%.1f/s), %d tokens (%.1f/s); %s%n",
+          stage.getName(), metrics.getCount(), stage.getUnit(),
+          metrics.getItemsPerSecond(), metrics.getTokens(), metrics.getTokensPerSecond(),
+          metrics.latency.getReport()));
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Appends {@link #getReport()} to a file periodically and when the JVM
+   * exits
+   * @param path
+   *          the file
+   * @param seconds
+   *          the period
+   */
+  public static synchronized void startReport(String path, long seconds)
+      throws IOException {
+    if (reporter != null) {
+      throw new IllegalStateException("The metrics are already being reported");
+    }
+    final Writer out = new OutputStreamWriter(new FileOutputStream(path, true),
+        StandardCharsets.UTF_8);
+    final Runnable report = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          synchronized (out) {
+            out.write(getReport());
+            out.write('\n');
+            out.flush();
+          }
+        } catch (IOException e) {
+          System.err.println("I cannot write the metrics: " + e.getMessage());
+        }
+      }
+    };
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reporter.scheduleAtFixedRate(report, seconds, seconds, TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        reporter.shutdownNow();
+        report.run();
+      }
+    }));
+  }
+
+  public static void addOptions(Options options) {
+    options.addOption(null, "metrics", true,
+        "Append the throughput and latency of every stage to this file periodically");
+    options.addOption(null, "metrics-interval", true,
+        "Seconds between two metrics reports; default: " + DEFAULT_REPORT_INTERVAL);
+  }
+
+  /**
+   * Starts the report requested with the options added by
+   * {@link #addOptions(Options)}. It exits if any value is not valid.
+   * @param cLine
+   *          the parsed command line
+   */
+  public static void configure(CommandLine cLine) {
+    if (! cLine.hasOption("metrics")) {
+      return;
+    }
+    long seconds = DEFAULT_REPORT_INTERVAL;
+    if (cLine.hasOption("metrics-interval")) {
+      seconds = FarasaAnnotatorFactory.parsePositive(
+          cLine.getOptionValue("metrics-interval"), "metrics interval");
+    }
+    try {
+      startReport(cLine.getOptionValue("metrics"), seconds);
+    } catch (IOException e) {
+      System.err.println("I cannot write the metrics to " + cLine.getOptionValue("metrics")
+          + ": " + e.getMessage());
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Annotates a file of sentences on several threads. A reader feeds the
+ * sentences into a bounded queue, a pool of workers annotates them, each
+ * with its own {@link Annotator}, and the calling thread writes the results
+ * back in input order. The output is therefore identical to the one of a
+ * sequential run.
+ *
+ * At most {@code capacity} sentences are in flight at any time (queued,
+ * being annotated or waiting for their turn to be written), so memory stays
+ * bounded even when one worker is stuck on a very long sentence.
+ *
+ * The length of every sentence is measured when it is read and the workers
+ * take the longest queued sentence first: the cost of tagging and parsing
+ * grows faster than the length, so a long sentence starts as soon as it
+ * enters the window instead of being the last one to finish, and the short
+ * ones fill the other workers meanwhile.
+ *
+ * With a batch size above one, a worker takes up to that many sentences
+ * at once and hands them together to its annotator (see
+ * {@link Annotator#annotate(List)}), which pays off for annotators with a
+ * cost per call, such as a {@link ProcessAnnotator}.
+ *
+ * The annotators are created on the first run and reused by the following
+ * ones, so the models are loaded once per worker, not once per file; they
+ * are closed by {@link #shutdown()}.
+ */
+public class ParallelProcessor {
+
+  /** Sentences in flight per worker thread if no capacity is given */
+  public static final int DEFAULT_CAPACITY_PER_THREAD = 64;
+
+  private static final Job END = new Job(-1, null, -1);
+
+  /** Longest first, then in input order; END last */
+  private static final Comparator<Job> LONGEST_FIRST = new Comparator<Job>() {
+    @Override
+    public int compare(Job a, Job b) {
+      if (a.tokens != b.tokens) {
+        return a.tokens > b.tokens ? -1 : 1;
+      }
+      return Long.compare(a.index, b.index);
+    }
+  };
+
+  private final AnnotatorFactory factory;
+
+  private final int threads;
+
+  private final int capacity;
+
+  private final int batchSize;
+
+  private final ExecutorService pool;
+
+  /** Annotators not currently in use by any worker */
+  private final BlockingQueue<Annotator> idle = new LinkedBlockingQueue<Annotator>();
+
+  /**
+   * @param factory
+   *          creates one annotator per worker
+   * @param threads
+   *          number of worker threads
+   */
+  public ParallelProcessor(AnnotatorFactory factory, int threads) {
+    this(factory, threads, threads * DEFAULT_CAPACITY_PER_THREAD);
+  }
+
+  /**
+   * @param factory
+   *          creates one annotator per worker
+   * @param threads
+   *          number of worker threads
+   * @param capacity
+   *          maximum number of sentences in flight
+   */
+  public ParallelProcessor(AnnotatorFactory factory, int threads, int capacity) {
+    this(factory, threads, capacity, 1);
+  }
+
+  /**
+   * @param factory
+   *          creates one annotator per worker
+   * @param threads
+   *          number of worker threads
+   * @param capacity
+   *          maximum number of sentences in flight
+   * @param batchSize
+   *          maximum number of sentences annotated together by a worker
+   */
+  public ParallelProcessor(AnnotatorFactory factory, int threads, int capacity,
+      int batchSize) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is necessary");
+    }
+    if (capacity < threads) {
+      throw new IllegalArgumentException(
+          "The capacity cannot be lower than the number of threads");
+    }
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be positive");
+    }
+    this.factory = factory;
+    this.threads = threads;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    // one more thread for the reader
+    pool = Executors.newFixedThreadPool(threads + 1);
+  }
+
+  /**
+   * Annotates every line of the input and writes the annotations in the
+   * same order. Neither the reader nor the writer are closed.
+   *
+   * @param input
+   *          one sentence per line
+   * @param output
+   *          where the annotations are written
+   * @return
+   *          the number of sentences processed
+   */
+  public long process(LineReader input, AnnotationSink output) throws Exception {
+    Run run = new Run(input);
+    Future<?> reader = pool.submit(run.reader());
+    Future<?>[] workers = new Future<?>[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = pool.submit(run.worker());
+    }
+
+    try {
+      run.write(output);
+    } finally {
+      run.abort();
+      await(reader);
+      for (Future<?> worker : workers) {
+        await(worker);
+      }
+    }
+    return run.total;
+  }
+
+  /** Stops the threads and closes the annotators. */
+  public void shutdown() {
+    pool.shutdownNow();
+    Annotator annotator;
+    while ((annotator = idle.poll()) != null) {
+      try {
+        annotator.close();
+      } catch (IOException e) {
+        System.err.println("An annotator could not be closed: " + e.getMessage());
+      }
+    }
+  }
+
+  private static void await(Future<?> future) throws InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      // already reported through Run.fail
+    }
+  }
+
+  private static class Job {
+    final long index;
+    final String text;
+    final int tokens;
+
+    Job(long index, String text, int tokens) {
+      this.index = index;
+      this.text = text;
+      this.tokens = tokens;
+    }
+  }
+
+  /** The state of one call to process */
+  private class Run {
+
+    private final LineReader input;
+
+    /** Unbounded, but never holds more than capacity jobs thanks to inFlight */
+    private final BlockingQueue<Job> queue =
+        new PriorityBlockingQueue<Job>(capacity, LONGEST_FIRST);
+
+    private final Semaphore inFlight = new Semaphore(capacity);
+
+    /** Guarded by itself */
+    private final Map<Long, Annotation> done = new HashMap<Long, Annotation>();
+
+    /** Number of sentences in the input; -1 while it is being read */
+    private long total = -1;
+
+    private Exception failure;
+
+    private volatile boolean aborted;
+
+    Run(LineReader input) {
+      this.input = input;
+    }
+
+    Runnable reader() {
+      return new Runnable() {
+        @Override
+        public void run() {
+          long counter = 0;
+          try {
+            while (! aborted && input.hasNextLine()) {
+              inFlight.acquire();
+              String text = input.nextLine();
+              queue.put(new Job(counter++, text, Metrics.tokens(text)));
+            }
+            if (aborted) {
+              return;
+            }
+            for (int i = 0; i < threads; i++) {
+              queue.put(END);
+            }
+            synchronized (done) {
+              total = counter;
+              done.notifyAll();
+            }
+          } catch (Throwable e) {
+            fail(e);
+          }
+        }
+      };
+    }
+
+    Runnable worker() {
+      return new Runnable() {
+        @Override
+        public void run() {
+          Annotator annotator = null;
+          try {
+            annotator = idle.poll();
+            if (annotator == null) {
+              annotator = factory.newAnnotator();
+            }
+            List<Job> batch = new ArrayList<Job>(batchSize);
+            List<String> texts = new ArrayList<String>(batchSize);
+            boolean end = false;
+            Job job;
+            while (! end && ! aborted && (job = queue.take()) != END) {
+              if (batchSize == 1) {
+                Annotation annotation = annotator.annotate(job.text);
+                synchronized (done) {
+                  done.put(job.index, annotation);
+                  done.notifyAll();
+                }
+                continue;
+              }
+              batch.add(job);
+              queue.drainTo(batch, batchSize - 1);
+              end = takeEnds(batch);
+              for (Job j : batch) {
+                texts.add(j.text);
+              }
+              List<Annotation> annotations = annotator.annotate(texts);
+              synchronized (done) {
+                for (int i = 0; i < batch.size(); i++) {
+                  done.put(batch.get(i).index, annotations.get(i));
+                }
+                done.notifyAll();
+              }
+              batch.clear();
+              texts.clear();
+            }
+          } catch (Throwable e) {
+            fail(e);
+          } finally {
+            if (annotator != null) {
+              idle.add(annotator);
+            }
+          }
+        }
+      };
+    }
+
+    /**
+     * Removes the END markers drained together with the last jobs, which
+     * sort after them, and puts back all but the one of this worker
+     * @return
+     *        true if the batch had any
+     */
+    private boolean takeEnds(List<Job> batch) throws InterruptedException {
+      int ends = 0;
+      for (Iterator<Job> it = batch.iterator(); it.hasNext();) {
+        if (it.next() == END) {
+          it.remove();
+          ends++;
+        }
+      }
+      for (int i = 1; i < ends; i++) {
+        queue.put(END);
+      }
+      return ends > 0;
+    }
+
+    /** Writes the annotations in input order as soon as they are ready */
+    void write(AnnotationSink output) throws Exception {
+      long next = 0;
+      while (true) {
+        Annotation annotation;
+        synchronized (done) {
+          while (failure == null && ! done.containsKey(next)
+              && (total < 0 || next < total)) {
+            done.wait();
+          }
+          if (failure != null) {
+            throw failure;
+          }
+          if (total >= 0 && next >= total) {
+            return;
+          }
+          annotation = done.remove(next);
+        }
+        output.write(annotation);
+        inFlight.release();
+        next++;
+      }
+    }
+
+    void fail(Throwable e) {
+      synchronized (done) {
+        if (failure == null) {
+          failure = e instanceof Exception 
+              ? (Exception) e 
+              : new ExecutionException(e);
+        }
+        done.notifyAll();
+      }
+      abort();
+    }
+
+    /** Unblocks the reader and the workers so that they can finish */
+    void abort() {
+      if (aborted) {
+        return;
+      }
+      aborted = true;
+      inFlight.release(capacity);
+      queue.clear();
+      for (int i = 0; i < threads; i++) {
+        queue.offer(END);
+      }
+    }
+  }
+}
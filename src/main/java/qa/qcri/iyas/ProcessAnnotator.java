@@ -0,0 +1,291 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Annotates the sentences in a child JVM of its own (see
+ * {@link WorkerProcess}), which loads the models once. Nothing that goes
+ * wrong inside Farasa can then reach the coordinator: the models of
+ * different workers share no memory, and a worker that leaks, runs out of
+ * heap or dies on a bad sentence takes only itself down.
+ *
+ * The sentences are sent in batches and the annotations come back one by
+ * one. Each of them must arrive within the time budget of a sentence;
+ * otherwise, or if the worker dies, the worker is killed, the sentence gets
+ * a placeholder {@link Annotation} as if it had run out of time (see
+ * {@link Annotation#isTimedOut()}), and the rest of the batch goes to a new
+ * worker. Unlike with a {@link DeadlineAnnotator}, the computation is
+ * really stopped. A worker that does not load the models within
+ * {@link #STARTUP_MILLIS} is killed as well. As with any annotator, an
+ * instance must be used by one thread only, and closed once done, which
+ * ends the worker.
+ */
+public class ProcessAnnotator implements Annotator {
+
+  /** Sentences sent to a worker at once by a {@link ParallelProcessor} */
+  public static final int BATCH_SIZE = 8;
+
+  /** Time after which a worker is considered hung, if there is no budget */
+  public static final long DEFAULT_HANG_MILLIS = 10 * 60 * 1000;
+
+  /** Time given to a worker to load the models */
+  public static final long STARTUP_MILLIS = 10 * 60 * 1000;
+
+  /** Time given to a worker to exit once its input is closed */
+  private static final long EXIT_MILLIS = 5 * 1000;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** Sentences given up by all the instances because they took too long */
+  private static final AtomicLong TIMEOUTS = new AtomicLong();
+
+  /** Sentences given up by all the instances because the worker died */
+  private static final AtomicLong CRASHES = new AtomicLong();
+
+  private static final AtomicLong RESTARTS = new AtomicLong();
+
+  /** Kills the workers that do not answer in time */
+  private static final ScheduledExecutorService WATCHDOG =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "worker-watchdog");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final List<String> command;
+
+  private final Set<Layer> layers;
+
+  private final long timeoutMillis;
+
+  /** Null until started and after being stopped */
+  private Process process;
+
+  private DataOutputStream toWorker;
+
+  private DataInputStream fromWorker;
+
+  /**
+   * Starts the worker and waits until it has loaded the models
+   * @param command
+   *          starts a {@link WorkerProcess} (see
+   *          {@link WorkerProcess#command(String, Set, long, long)})
+   * @param layers
+   *          the layers computed by the worker
+   * @param timeoutMillis
+   *          the time budget of every sentence, in ms; 0 to give up only
+   *          the sentences that take longer than {@link #DEFAULT_HANG_MILLIS}
+   * @throws IOException
+   *          if the worker cannot be started or cannot load the models
+   */
+  public ProcessAnnotator(List<String> command, Set<Layer> layers,
+      long timeoutMillis) throws IOException {
+    this.command = new ArrayList<String>(command);
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+    this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis : DEFAULT_HANG_MILLIS;
+    start();
+  }
+
+  private void start() throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    process = builder.start();
+    toWorker = new DataOutputStream(
+        new BufferedOutputStream(process.getOutputStream(), BUFFER_SIZE));
+    fromWorker = new DataInputStream(
+        new BufferedInputStream(process.getInputStream(), BUFFER_SIZE));
+    final Process current = process;
+    ScheduledFuture<?> alarm = WATCHDOG.schedule(new Runnable() {
+      @Override
+      public void run() {
+        current.destroyForcibly();
+      }
+    }, STARTUP_MILLIS, TimeUnit.MILLISECONDS);
+    int ready;
+    try {
+      ready = fromWorker.readInt();
+    } catch (IOException e) {
+      ready = -1;
+    }
+    if (! alarm.cancel(false)) {
+      stop();
+      throw new IOException("The worker process did not load the models in "
+          + STARTUP_MILLIS / 1000 + " s");
+    }
+    if (ready != WorkerProcess.READY) {
+      stop();
+      throw new IOException("The worker process could not load the models; "
+          + "see the errors above");
+    }
+  }
+
+  private void stop() {
+    process.destroyForcibly();
+    try {
+      toWorker.close();
+    } catch (IOException e) {
+      // the worker is gone anyway
+    }
+    try {
+      fromWorker.close();
+    } catch (IOException e) {
+      // the worker is gone anyway
+    }
+    process = null;
+  }
+
+  /**
+   * Closes the input of the worker, so that it exits, and kills it if it
+   * has not done so after a few seconds
+   */
+  @Override
+  public void close() {
+    if (process == null) {
+      return;
+    }
+    try {
+      toWorker.close();
+      process.waitFor(EXIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      // already gone
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    stop();
+  }
+
+  @Override
+  public Annotation annotate(String text) throws Exception {
+    return annotate(Collections.singletonList(text)).get(0);
+  }
+
+  @Override
+  public List<Annotation> annotate(List<String> texts) throws Exception {
+    List<Annotation> annotations = new ArrayList<Annotation>(texts.size());
+    while (annotations.size() < texts.size()) {
+      List<String> rest = texts.subList(annotations.size(), texts.size());
+      send(rest);
+      for (int i = 0; i < rest.size(); i++) {
+        Annotation annotation = receive();
+        if (annotation == null) {
+          // the worker is gone: the rest goes to a new one
+          annotations.add(Annotation.timedOut(layers));
+          break;
+        }
+        annotations.add(annotation);
+      }
+    }
+    return annotations;
+  }
+
+  /** Writes a batch, to a new worker if the current one is gone */
+  private void send(List<String> texts) throws IOException {
+    if (process == null) {
+      restart();
+    }
+    try {
+      write(texts);
+    } catch (IOException e) {
+      // it died since the last batch
+      stop();
+      restart();
+      write(texts);
+    }
+  }
+
+  private void restart() throws IOException {
+    RESTARTS.incrementAndGet();
+    System.err.println("Restarting a worker process");
+    start();
+  }
+
+  private void write(List<String> texts) throws IOException {
+    toWorker.writeInt(texts.size());
+    for (String text : texts) {
+      WorkerProcess.writeText(toWorker, text);
+    }
+    toWorker.flush();
+  }
+
+  /**
+   * @return
+   *        the annotation of the next sentence of the batch; null if the
+   *        worker did not answer in time or died, in which case it is stopped
+   */
+  private Annotation receive() throws IOException {
+    final Process current = process;
+    ScheduledFuture<?> alarm = WATCHDOG.schedule(new Runnable() {
+      @Override
+      public void run() {
+        current.destroyForcibly();
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+    Annotation annotation = new Annotation();
+    String error = null;
+    try {
+      if (fromWorker.readByte() == WorkerProcess.STATUS_OK) {
+        for (Layer layer : layers) {
+          annotation.set(layer, WorkerProcess.readText(fromWorker));
+        }
+      } else {
+        error = WorkerProcess.readText(fromWorker);
+      }
+    } catch (IOException e) {
+      boolean timedOut = ! alarm.cancel(false);
+      stop();
+      (timedOut ? TIMEOUTS : CRASHES).incrementAndGet();
+      System.err.println(timedOut
+          ? "A worker process ran out of time; the sentence is given up"
+          : "A worker process died; the sentence is given up");
+      return null;
+    }
+    if (! alarm.cancel(false) || error != null) {
+      // killed right after answering, or the rest of the batch is not wanted
+      stop();
+    }
+    if (error != null) {
+      throw new IOException("The worker process failed: " + error);
+    }
+    return annotation;
+  }
+
+  /** @return the number of sentences that ran out of time, in all the instances */
+  public static long getTimeouts() {
+    return TIMEOUTS.get();
+  }
+
+  /** @return the number of sentences whose worker died, in all the instances */
+  public static long getCrashes() {
+    return CRASHES.get();
+  }
+
+  /**
+   * @return
+   *        the number of workers restarted and of sentences given up because
+   *        their worker died, in all the instances
+   */
+  public static String getReport() {
+    return "Worker processes: " + RESTARTS.get() + " restarted, "
+        + CRASHES.get() + " sentences given up because their worker died";
+  }
+}
@@ -1,7 +1,6 @@
 package qa.qcri.iyas;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -10,7 +9,7 @@ import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ReadFile {
+public class ReadFile implements LineReader {
 
 	private BufferedReader in;
 	private String line = null;
@@ -18,7 +17,8 @@ public class ReadFile {
 	public ReadFile(URL url) {
 		in = null;
 		try {
-			in = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+			in = new BufferedReader(new InputStreamReader(
+					Compression.decompress(url.openStream()), "UTF-8"));
 		} catch (FileNotFoundException | UnsupportedEncodingException ex) {
 			Logger.getLogger(ReadFile.class.getName()).log(Level.SEVERE, null,
 					ex);
@@ -28,12 +28,17 @@ public class ReadFile {
 		}
 	}
 	
+	/**
+	 * @param path
+	 *            a text file, which is decompressed on the fly if it is in
+	 *            one of the {@link Compression} formats
+	 */
 	public ReadFile(String path) {
 		in = null;
 		try {
-			in = new BufferedReader(new InputStreamReader(new FileInputStream(
-					path), "UTF-8"));
-		} catch (FileNotFoundException | UnsupportedEncodingException ex) {
+			in = new BufferedReader(new InputStreamReader(
+					Compression.openInput(path), "UTF-8"));
+		} catch (IOException ex) {
 			Logger.getLogger(ReadFile.class.getName()).log(Level.SEVERE, null,
 					ex);
 		}
@@ -68,6 +73,10 @@ public class ReadFile {
 		}
 	}
 
+	public boolean skipLine() {
+		return nextLine() != null;
+	}
+
 	public void close() {
 		try {
 			in.close();
@@ -0,0 +1,91 @@
+package qa.qcri.iyas;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A memory-capped cache of complete sentence analyses, keyed by a 128-bit
+ * hash of the sentence. OpenITI hadith and biography collections repeat whole
+ * sentences (isnads, honorifics, formulaic openings), and an exact repeat is
+ * served from the cache without calling Farasa or the parser.
+ *
+ * The cache is thread-safe and meant to be shared by all the workers. All the
+ * annotators using the same cache must compute the same layers.
+ */
+public class SentenceCache {
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  /** Rough size of the key, the entry and the annotation objects */
+  private static final int ENTRY_OVERHEAD = 160;
+
+  private final Cache<HashCode, Annotation> annotations;
+
+  /**
+   * @param maximumBytes
+   *          approximate cap on the memory used by the cached annotations
+   */
+  public SentenceCache(long maximumBytes) {
+    if (maximumBytes < 1) {
+      throw new IllegalArgumentException("The cache size must be positive");
+    }
+    annotations = CacheBuilder.newBuilder()
+        .maximumWeight(maximumBytes)
+        .weigher(new Weigher<HashCode, Annotation>() {
+          @Override
+          public int weigh(HashCode key, Annotation annotation) {
+            return ENTRY_OVERHEAD + 2 * annotation.length();
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * @param text
+   *          one sentence
+   * @return
+   *          the key of the sentence in the cache
+   */
+  public static HashCode hash(String text) {
+    return HASH.hashString(text, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param key
+   *          the hash of the sentence
+   * @return
+   *          its annotation, or null if not cached
+   */
+  public Annotation get(HashCode key) {
+    return annotations.getIfPresent(key);
+  }
+
+  public void put(HashCode key, Annotation annotation) {
+    annotations.put(key, annotation);
+  }
+
+  /** @return the lookups and hits of the cache */
+  public CacheStats getStats() {
+    return annotations.stats();
+  }
+
+  /**
+   * @return
+   *        a one-line summary of the repeats served from the cache
+   */
+  public String getReport() {
+    CacheStats stats = getStats();
+    return String.format(
+        "Sentence cache: %d sentences, %d repeats served from the cache (%.1f%%), %d evictions",
+        stats.requestCount(), stats.hitCount(), 100 * stats.hitRate(),
+        stats.evictionCount());
+  }
+}
@@ -0,0 +1,147 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cuts the sentences longer than a number of tokens into chunks that the
+ * tagger and the parser, whose cost grows faster than the length, can
+ * annotate in reasonable time, and delegates every chunk to another
+ * annotator. The annotations of the chunks are joined back into one line
+ * per layer, so the outputs stay aligned with the input; the annotation
+ * records the number of tokens of every chunk (see
+ * {@link Annotation#getChunks()}).
+ *
+ * A chunk ends, preferably, after the last token ending in a punctuation
+ * mark within the second half of the limit; otherwise, at the limit. The
+ * tokens are the pieces between spaces, which is how Farasa splits them.
+ */
+public class SentenceChunker implements Annotator {
+
+  /** Punctuation marks after which a sentence can be cut; also the Arabic , ; ? and . */
+  private static final String BOUNDARIES = ".,;:!?\u060C\u061B\u061F\u06D4";
+
+  private final Annotator delegate;
+
+  private final int maxTokens;
+
+  private final Set<Layer> layers;
+
+  /**
+   * @param delegate
+   *          annotates the sentences and the chunks
+   * @param maxTokens
+   *          the maximum number of tokens of a chunk
+   * @param layers
+   *          the layers computed by the delegate
+   */
+  public SentenceChunker(Annotator delegate, int maxTokens, Set<Layer> layers) {
+    if (maxTokens < 1) {
+      throw new IllegalArgumentException("A chunk must have at least one token");
+    }
+    this.delegate = delegate;
+    this.maxTokens = maxTokens;
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+  }
+
+  @Override
+  public Annotation annotate(String text) throws Exception {
+    List<String> chunks = split(text, maxTokens);
+    if (chunks.size() == 1) {
+      return delegate.annotate(text);
+    }
+    List<Annotation> annotations = new ArrayList<Annotation>(chunks.size());
+    for (String chunk : chunks) {
+      Annotation annotation = delegate.annotate(chunk);
+      if (annotation.isTimedOut()) {
+        return annotation;
+      }
+      annotations.add(annotation);
+    }
+    Annotation joined = join(annotations, layers);
+    int[] sizes = new int[chunks.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = Metrics.tokens(chunks.get(i));
+    }
+    joined.setChunks(sizes);
+    return joined;
+  }
+
+  /**
+   * @param text
+   *          one sentence
+   * @param maxTokens
+   *          the maximum number of tokens of a chunk
+   * @return
+   *          the sentence itself if it is not longer than the limit; its
+   *          chunks, with the tokens separated by one space, otherwise
+   */
+  static List<String> split(String text, int maxTokens) {
+    String trimmed = text.trim();
+    if (Metrics.tokens(trimmed) <= maxTokens) {
+      return Collections.singletonList(text);
+    }
+    String[] tokens = trimmed.split("\\s+");
+    List<String> chunks = new ArrayList<String>();
+    int start = 0;
+    while (tokens.length - start > maxTokens) {
+      int end = start + maxTokens;
+      for (int i = end; i > start + maxTokens / 2; i--) {
+        if (endsWithBoundary(tokens[i - 1])) {
+          end = i;
+          break;
+        }
+      }
+      chunks.add(join(tokens, start, end));
+      start = end;
+    }
+    chunks.add(join(tokens, start, tokens.length));
+    return chunks;
+  }
+
+  private static boolean endsWithBoundary(String token) {
+    return BOUNDARIES.indexOf(token.charAt(token.length() - 1)) >= 0;
+  }
+
+  private static String join(String[] tokens, int start, int end) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      if (i > start) {
+        sb.append(' ');
+      }
+      sb.append(tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return
+   *        one line per layer with the lines of the chunks, in order,
+   *        separated by one space if they do not end with one
+   */
+  static Annotation join(List<Annotation> annotations, Set<Layer> layers) {
+    Annotation joined = new Annotation();
+    for (Layer layer : layers) {
+      StringBuilder sb = new StringBuilder();
+      for (Annotation annotation : annotations) {
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+          sb.append(' ');
+        }
+        sb.append(annotation.get(layer));
+      }
+      joined.set(layer, sb.toString());
+    }
+    return joined;
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
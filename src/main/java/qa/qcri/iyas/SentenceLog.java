@@ -0,0 +1,129 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+
+/**
+ * Passes the annotations to another sink and lists two kinds of sentences
+ * in side files next to the input, so that they can be told apart in the
+ * outputs:
+ * <ul>
+ * <li>the input path plus {@value #TIMEOUTS_SUFFIX}: the number of every
+ * sentence (from 1) that ran out of time (see {@link DeadlineAnnotator}) and
+ * has empty lines, so that it can be annotated again with a larger
+ * budget;</li>
+ * <li>the input path plus {@value #CHUNKS_SUFFIX}: the number of every
+ * sentence annotated in chunks (see {@link SentenceChunker}), a tab and the
+ * tokens of every chunk, separated by spaces.</li>
+ * </ul>
+ * A file only exists if it has some entry; the entries are written as soon
+ * as the sentence is, and a resumed run drops those past its checkpoint.
+ */
+public class SentenceLog implements AnnotationSink {
+
+  public static final String TIMEOUTS_SUFFIX = ".timeouts";
+
+  public static final String CHUNKS_SUFFIX = ".chunks";
+
+  private final AnnotationSink sink;
+
+  private final SideFile timeouts;
+
+  private final SideFile chunks;
+
+  /**
+   * @param sink
+   *          where the annotations are written
+   * @param inputFile
+   *          one sentence per line
+   * @param resumed
+   *          the number of sentences written by a previous run that this one
+   *          continues; 0 if it starts from scratch
+   */
+  public SentenceLog(AnnotationSink sink, String inputFile, long resumed)
+      throws IOException {
+    this.sink = sink;
+    this.timeouts = new SideFile(getTimeoutsPath(inputFile), resumed);
+    this.chunks = new SideFile(getChunksPath(inputFile), resumed);
+  }
+
+  /**
+   * @param inputFile
+   *          one sentence per line, compressed or not
+   * @return
+   *          the path of the list of sentences that ran out of time
+   */
+  public static String getTimeoutsPath(String inputFile) {
+    return Compression.stripExtension(inputFile) + TIMEOUTS_SUFFIX;
+  }
+
+  /**
+   * @param inputFile
+   *          one sentence per line, compressed or not
+   * @return
+   *          the path of the list of sentences annotated in chunks
+   */
+  public static String getChunksPath(String inputFile) {
+    return Compression.stripExtension(inputFile) + CHUNKS_SUFFIX;
+  }
+
+  @Override
+  public void write(Annotation annotation) {
+    sink.write(annotation);
+    if (annotation.isTimedOut()) {
+      timeouts.add(sink.getCount(), null);
+    }
+    int[] sizes = annotation.getChunks();
+    if (sizes != null) {
+      StringBuilder sb = new StringBuilder();
+      for (int size : sizes) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        sb.append(size);
+      }
+      chunks.add(sink.getCount(), sb.toString());
+    }
+  }
+
+  @Override
+  public void flush() {
+    sink.flush();
+  }
+
+  @Override
+  public long getCount() {
+    return sink.getCount();
+  }
+
+  /** @return the number of sentences that ran out of time in this run */
+  public long getTimeouts() {
+    return timeouts.getEntries();
+  }
+
+  /** @return the number of sentences annotated in chunks in this run */
+  public long getChunked() {
+    return chunks.getEntries();
+  }
+
+  /** Prints the number of sentences listed in each side file, if any, to stderr */
+  public void printReport() {
+    if (timeouts.getEntries() > 0) {
+      System.err.println(timeouts.getEntries() + " sentences ran out of time; listed in "
+          + timeouts.getPath());
+    }
+    if (chunks.getEntries() > 0) {
+      System.err.println(chunks.getEntries() + " sentences annotated in chunks; listed in "
+          + chunks.getPath());
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      sink.close();
+    } finally {
+      timeouts.close();
+      chunks.close();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package qa.qcri.iyas;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.util.InvalidFormatException;
+import opennlp.tools.util.Span;
+
+/**
+ * Sentence splitting with a model trained with OpenNLP. The model is loaded 
+ * once and shared, whereas every thread gets its own {@link SentenceDetectorME},
+ * which is not thread-safe. Hence, one instance can be used from any number 
+ * of threads.
+ */
+public class SentenceSplitter {
+
+  public static final String DEFAULT_SENTENCE_MODEL = "resources/open-nlp-seg-models/ar-sent.bin";
+  
+  private static SentenceSplitter defaultSplitter;
+  
+  private final SentenceModel model;
+  
+  private final ThreadLocal<SentenceDetectorME> detectors = 
+      new ThreadLocal<SentenceDetectorME>() {
+    @Override
+    protected SentenceDetectorME initialValue() {
+      return new SentenceDetectorME(model);
+    }
+  };
+  
+  public SentenceSplitter(SentenceModel model) {
+    this.model = model;
+  }
+  
+  /**
+   * @return
+   *        the splitter with the default model, which is loaded on the first 
+   *        call only 
+   */
+  public static synchronized SentenceSplitter getDefault() 
+      throws InvalidFormatException, IOException {
+    if (defaultSplitter == null) {
+      long start = System.currentTimeMillis();
+      FileInputStream in = new FileInputStream(DEFAULT_SENTENCE_MODEL);
+      try {
+        defaultSplitter = new SentenceSplitter(new SentenceModel(in));
+      } finally {
+        in.close();
+      }
+      System.err.println(String.format("Sentence model loaded in %.1f s", 
+          (System.currentTimeMillis() - start) / 1000.0));
+    }
+    return defaultSplitter;
+  }
+  
+  /**
+   * Starts loading the default model on a background thread, so that it is 
+   * ready (or nearly) by the time {@link #getDefault()} is called. Errors are 
+   * left for {@link #getDefault()} to report.
+   */
+  public static void preloadDefault() {
+    Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          getDefault();
+        } catch (IOException e) {
+          // reported again when the model is needed
+        }
+      }
+    }, "sentence-model-loader");
+    loader.setDaemon(true);
+    loader.start();
+  }
+  
+  /**
+   * @param paragraph
+   *          plain text without line breaks
+   * @return
+   *          a list with the sentences in the paragraph
+   */
+  public List<String> split(String paragraph) {
+    long start = Metrics.start();
+    List<String> sentences = new ArrayList<String>();
+    Span[] spans = detectors.get().sentPosDetect(paragraph);
+    for (int j = 0; j < spans.length; j++) {
+      if (spans[j].getStart() < spans[j].getEnd()) {
+        sentences.add(
+            paragraph.substring(spans[j].getStart(), spans[j].getEnd()));
+      } else {
+        System.out.println("this one is empty");
+      }
+    }
+    Metrics.record(Metrics.Stage.SPLIT, paragraph, start);
+    return sentences;
+  }
+  
+  /**
+   * Splits the paragraphs in parallel. The paragraphs are divided into one 
+   * chunk per thread of the pool
+   * @param paragraphs
+   *          plain text without line breaks
+   * @param pool
+   *          the threads to use
+   * @param threads
+   *          number of threads in the pool
+   * @return
+   *          the sentences of every paragraph, in the same order as the 
+   *          paragraphs
+   */
+  public List<List<String>> split(final List<String> paragraphs, 
+      ExecutorService pool, int threads) throws InterruptedException {
+    List<Future<List<List<String>>>> chunks = 
+        new ArrayList<Future<List<List<String>>>>();
+    int chunkSize = (paragraphs.size() + threads - 1) / threads;
+    for (int i = 0; i < paragraphs.size(); i += chunkSize) {
+      final List<String> chunk = 
+          paragraphs.subList(i, Math.min(i + chunkSize, paragraphs.size()));
+      chunks.add(pool.submit(new Callable<List<List<String>>>() {
+        @Override
+        public List<List<String>> call() {
+          List<List<String>> sentences = new ArrayList<List<String>>();
+          for (String paragraph : chunk) {
+            sentences.add(split(paragraph));
+          }
+          return sentences;
+        }
+      }));
+    }
+    
+    List<List<String>> sentences = new ArrayList<List<String>>(paragraphs.size());
+    for (Future<List<List<String>>> chunk : chunks) {
+      try {
+        sentences.addAll(chunk.get());
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return sentences;
+  }
+}
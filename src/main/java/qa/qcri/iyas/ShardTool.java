@@ -0,0 +1,537 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Splits a job into shards that several machines (or processes) can run
+ * independently, and merges their results back. There are two kinds of
+ * jobs:
+ * <ul>
+ * <li>A single sentences file ({@code -f}) is cut into N contiguous shards
+ * of consecutive sentences, each a sentences file of its own that
+ * {@link ArabicProcessor} can annotate. The merge concatenates the layer
+ * files (and the lists of sentences that ran out of time or were chunked)
+ * of the shards, in order, into those of the whole file, after checking
+ * that every shard has all its sentences.</li>
+ * <li>A corpus ({@code -M} or {@code -d}) is divided into N manifests for
+ * {@link CorpusProcessor}, whose books are assigned to the least loaded
+ * shard, the largest first. Each shard writes its run summary to the
+ * manifest path plus {@value #SUMMARY_SUFFIX}; the merge concatenates them
+ * and checks that every book of every shard is done.</li>
+ * </ul>
+ * The shards are balanced by bytes or by sentences (lines), and they only
+ * depend on the input and the number of shards, so running the split again
+ * gives the same shards. The split writes a plan, which the merge reads:
+ * the input path plus {@value #PLAN_SUFFIX} for a file and the output
+ * prefix plus {@value #PLAN_SUFFIX} for a corpus.
+ */
+public class ShardTool {
+
+  public static final String PLAN_SUFFIX = ".shards";
+
+  public static final String SUMMARY_SUFFIX = ".summary.tsv";
+
+  private static final String DEFAULT_PREFIX = "corpus";
+
+  private static final String PLAN_HEADER = "#shards";
+
+  private static final String KIND_FILE = "file";
+
+  private static final String KIND_CORPUS = "corpus";
+
+  private static final String BY_BYTES = "bytes";
+
+  private static final String BY_SENTENCES = "sentences";
+
+  private static final String SEPARATOR = "\t";
+
+  private ShardTool() {
+  }
+
+  /**
+   * @param shard
+   *          from 1
+   * @param shards
+   *          the number of shards
+   * @return
+   *          e.g., "shard-03-of-12"
+   */
+  static String shardName(int shard, int shards) {
+    int width = String.valueOf(shards).length();
+    return String.format("shard-%0" + width + "d-of-%d", shard, shards);
+  }
+
+  /**
+   * @param input
+   *          a sentences file, compressed or not
+   * @return
+   *          the path of one of its shards: the shard name goes before .sent,
+   *          if any, so that the shard is a sentences file too
+   */
+  public static String getShardPath(String input, int shard, int shards) {
+    String base = Compression.stripExtension(input);
+    String extension = input.substring(base.length());
+    String name = "." + shardName(shard, shards);
+    if (base.endsWith(MARkdown.FILE_SUFFIX_SENTENCES)) {
+      return base.substring(0, base.length() - MARkdown.FILE_SUFFIX_SENTENCES.length())
+          + name + MARkdown.FILE_SUFFIX_SENTENCES + extension;
+    }
+    return base + name + extension;
+  }
+
+  /**
+   * Cuts a sentences file into shards of consecutive sentences with about the
+   * same weight (bytes or sentences) and writes the plan
+   * @param input
+   *          one sentence per line, compressed or not; the shards are
+   *          compressed in the same format
+   * @param shards
+   *          the number of shards
+   * @param bySentences
+   *          whether to balance the number of sentences instead of bytes
+   * @return
+   *          the path of the plan
+   */
+  public static String splitFile(String input, int shards, boolean bySentences)
+      throws IOException {
+    long total = 0;
+    if (! bySentences && detect(input) == Compression.NONE) {
+      total = new File(input).length();
+    } else {
+      LineReader rf = MappedReadFile.open(input);
+      try {
+        String line;
+        while ((line = rf.nextLine()) != null) {
+          total += weight(line, bySentences);
+        }
+      } finally {
+        rf.close();
+      }
+    }
+
+    String plan = Compression.stripExtension(input) + PLAN_SUFFIX;
+    WriteFile pf = new WriteFile(plan);
+    pf.writeLn(PLAN_HEADER + SEPARATOR + KIND_FILE + SEPARATOR + new File(input).getName()
+        + SEPARATOR + (bySentences ? BY_SENTENCES : BY_BYTES));
+    LineReader rf = MappedReadFile.open(input);
+    try {
+      long done = 0;
+      for (int shard = 1; shard <= shards; shard++) {
+        String path = getShardPath(input, shard, shards);
+        // the shard ends where the cumulative weight reaches its share
+        long limit = shard == shards ? Long.MAX_VALUE : total * shard / shards;
+        long sentences = 0;
+        long weight = 0;
+        WriteFile wf = new WriteFile(path);
+        while (done < limit && rf.hasNextLine()) {
+          String line = rf.nextLine();
+          wf.writeLn(line);
+          long w = weight(line, bySentences);
+          done += w;
+          weight += w;
+          sentences++;
+        }
+        wf.close();
+        pf.writeLn(new File(path).getName() + SEPARATOR + sentences + SEPARATOR + weight);
+        System.err.println(path + ": " + sentences + " sentences");
+      }
+    } finally {
+      rf.close();
+      pf.close();
+    }
+    return plan;
+  }
+
+  private static Compression detect(String path) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(new FileInputStream(path), 16);
+    try {
+      return Compression.detect(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** The bytes of the line in UTF-8 with its line break, or 1 */
+  private static long weight(String line, boolean bySentences) {
+    return bySentences ? 1 : line.getBytes(StandardCharsets.UTF_8).length + 1;
+  }
+
+  /**
+   * Divides the books into manifests with about the same weight (bytes or
+   * lines): the books are taken from the largest to the smallest and each
+   * goes to the shard with the least weight so far (the first one on ties)
+   * @param books
+   *          the books of the corpus
+   * @param prefix
+   *          the path of the manifests and the plan, without the extension
+   * @return
+   *          the path of the plan
+   */
+  public static String splitCorpus(List<File> books, String prefix, int shards,
+      boolean bySentences) throws IOException {
+    final Map<File, Long> weights = new HashMap<File, Long>();
+    for (File book : books) {
+      weights.put(book, bySentences ? countLines(book.toString()) : book.length());
+    }
+    List<File> sorted = new ArrayList<File>(books);
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        int c = weights.get(f2).compareTo(weights.get(f1));
+        return c != 0 ? c : f1.getPath().compareTo(f2.getPath());
+      }
+    });
+    List<List<File>> assigned = new ArrayList<List<File>>();
+    long[] loads = new long[shards];
+    for (int i = 0; i < shards; i++) {
+      assigned.add(new ArrayList<File>());
+    }
+    for (File book : sorted) {
+      int lightest = 0;
+      for (int i = 1; i < shards; i++) {
+        if (loads[i] < loads[lightest]) {
+          lightest = i;
+        }
+      }
+      assigned.get(lightest).add(book);
+      loads[lightest] += weights.get(book);
+    }
+
+    String plan = prefix + PLAN_SUFFIX;
+    WriteFile pf = new WriteFile(plan);
+    pf.writeLn(PLAN_HEADER + SEPARATOR + KIND_CORPUS + SEPARATOR
+        + new File(prefix).getName() + SEPARATOR + (bySentences ? BY_SENTENCES : BY_BYTES));
+    for (int i = 0; i < shards; i++) {
+      String manifest = prefix + "." + shardName(i + 1, shards);
+      WriteFile mf = new WriteFile(manifest);
+      for (File book : assigned.get(i)) {
+        mf.writeLn(book.getAbsolutePath());
+      }
+      mf.close();
+      pf.writeLn(new File(manifest).getName() + SEPARATOR + assigned.get(i).size()
+          + SEPARATOR + loads[i]);
+      System.err.println(manifest + ": " + assigned.get(i).size() + " books");
+    }
+    pf.close();
+    return plan;
+  }
+
+  private static long countLines(String path) throws IOException {
+    LineReader rf = MappedReadFile.open(path);
+    try {
+      long lines = 0;
+      while (rf.skipLine()) {
+        lines++;
+      }
+      return lines;
+    } finally {
+      rf.close();
+    }
+  }
+
+  /** One line of a plan */
+  private static class Shard {
+    final File path;
+    final long items;
+
+    Shard(File path, long items) {
+      this.path = path;
+      this.items = items;
+    }
+  }
+
+  /**
+   * Merges the results of the shards of a plan written by
+   * {@link #splitFile(String, int, boolean)} or
+   * {@link #splitCorpus(List, String, int, boolean)}
+   * @param plan
+   *          the plan
+   * @return
+   *          the problems found, one per element; empty if the merge is
+   *          complete
+   */
+  public static List<String> merge(String plan) throws IOException {
+    File dir = new File(plan).getAbsoluteFile().getParentFile();
+    ReadFile rf = new ReadFile(plan);
+    String[] header = rf.hasNextLine() ? rf.nextLine().split(SEPARATOR) : new String[0];
+    List<Shard> shards = new ArrayList<Shard>();
+    while (rf.hasNextLine()) {
+      String[] fields = rf.nextLine().split(SEPARATOR);
+      if (fields.length == 3) {
+        shards.add(new Shard(new File(dir, fields[0]), Long.parseLong(fields[1])));
+      }
+    }
+    rf.close();
+    if (header.length != 4 || ! PLAN_HEADER.equals(header[0])) {
+      throw new IOException("Not a shard plan: " + plan);
+    }
+    File target = new File(dir, header[2]);
+    return KIND_FILE.equals(header[1])
+        ? mergeFile(target.getPath(), shards)
+        : mergeCorpus(target.getPath(), shards);
+  }
+
+  private static List<String> mergeFile(String input, List<Shard> shards)
+      throws IOException {
+    List<String> problems = new ArrayList<String>();
+    // the layers computed for the first shard are expected in all of them
+    List<Layer> layers = new ArrayList<Layer>();
+    for (Layer layer : Layer.values()) {
+      if (new File(Compression.withSuffix(shards.get(0).path.getPath(),
+          layer.getSuffix())).isFile()) {
+        layers.add(layer);
+      }
+    }
+    if (layers.isEmpty()) {
+      problems.add("No layer files found for " + shards.get(0).path
+          + " (binary outputs cannot be merged; export them first)");
+      return problems;
+    }
+    for (Shard shard : shards) {
+      for (Layer layer : layers) {
+        String output = Compression.withSuffix(shard.path.getPath(), layer.getSuffix());
+        if (! new File(output).isFile()) {
+          problems.add("Missing " + output);
+          continue;
+        }
+        long lines = countLines(output);
+        if (lines != shard.items) {
+          problems.add(output + " has " + lines + " lines instead of " + shard.items);
+        }
+      }
+    }
+    if (! problems.isEmpty()) {
+      return problems;
+    }
+    for (Layer layer : layers) {
+      String output = Compression.withSuffix(input, layer.getSuffix());
+      OutputStream out = new FileOutputStream(output);
+      try {
+        // compressed shards are complete gzip members or xz streams, so
+        // their concatenation is a valid file too
+        for (Shard shard : shards) {
+          copy(Compression.withSuffix(shard.path.getPath(), layer.getSuffix()), out);
+        }
+      } finally {
+        out.close();
+      }
+      System.err.println(layer.getLabel() + " merged into " + output);
+    }
+    mergeSideFile(SentenceLog.getTimeoutsPath(input), shards, new SideFilePath() {
+      @Override
+      public String of(String shard) {
+        return SentenceLog.getTimeoutsPath(shard);
+      }
+    });
+    mergeSideFile(SentenceLog.getChunksPath(input), shards, new SideFilePath() {
+      @Override
+      public String of(String shard) {
+        return SentenceLog.getChunksPath(shard);
+      }
+    });
+    return problems;
+  }
+
+  private interface SideFilePath {
+    String of(String shard);
+  }
+
+  /** Concatenates the side files of the shards, renumbering their sentences */
+  private static void mergeSideFile(String output, List<Shard> shards,
+      SideFilePath paths) throws IOException {
+    new File(output).delete();
+    SideFile merged = new SideFile(output, 0);
+    long offset = 0;
+    for (Shard shard : shards) {
+      File part = new File(paths.of(shard.path.getPath()));
+      if (part.isFile()) {
+        ReadFile rf = new ReadFile(part.getPath());
+        while (rf.hasNextLine()) {
+          String line = rf.nextLine();
+          int tab = line.indexOf('\t');
+          long sentence = Long.parseLong(tab < 0 ? line : line.substring(0, tab));
+          merged.add(offset + sentence, tab < 0 ? null : line.substring(tab + 1));
+        }
+        rf.close();
+      }
+      offset += shard.items;
+    }
+    merged.close();
+  }
+
+  private static void copy(String path, OutputStream out) throws IOException {
+    InputStream in = new FileInputStream(path);
+    try {
+      byte[] buffer = new byte[1 << 16];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<String> mergeCorpus(String prefix, List<Shard> shards)
+      throws IOException {
+    List<String> problems = new ArrayList<String>();
+    String output = prefix + SUMMARY_SUFFIX;
+    WriteFile wf = new WriteFile(output);
+    boolean header = false;
+    for (Shard shard : shards) {
+      String summary = shard.path.getPath() + SUMMARY_SUFFIX;
+      Map<String, String> status = new HashMap<String, String>();
+      if (! new File(summary).isFile()) {
+        problems.add("Missing " + summary);
+      } else {
+        ReadFile rf = new ReadFile(summary);
+        while (rf.hasNextLine()) {
+          String line = rf.nextLine();
+          if (line.startsWith("#")) {
+            if (! header) {
+              wf.writeLn(line);
+              header = true;
+            }
+            continue;
+          }
+          wf.writeLn(line);
+          String[] fields = line.split(SEPARATOR);
+          status.put(fields[0], fields.length > 1 ? fields[1] : "");
+        }
+        rf.close();
+      }
+      for (File book : CorpusProcessor.readManifest(shard.path)) {
+        String s = status.get(book.toString());
+        if (s == null) {
+          problems.add("Not processed: " + book + " (" + shard.path.getName() + ")");
+        } else if (! CorpusProcessor.isComplete(s)) {
+          problems.add("Not complete (" + s + "): " + book);
+        }
+      }
+    }
+    wf.close();
+    System.err.println("Summaries merged into " + output);
+    return problems;
+  }
+
+  public static void main(String[] args) throws Exception {
+    HelpFormatter formatter = new HelpFormatter();
+    Options options = new Options();
+    CommandLineParser parser = new DefaultParser();
+
+    options.addOption(null, "split", false,
+        "Split the input into shards and write the plan");
+    options.addOption(null, "merge", true,
+        "Merge the results of the shards of this plan and check them");
+    options.addOption("f", "input", true, "Sentences file to split");
+    options.addOption("M", "manifest", true, "Corpus manifest to split");
+    options.addOption("d", "dir", true, "Corpus directory to split (explored recursively)");
+    options.addOption(null, "markdown", false,
+        "The books of the directory are OpenITI files instead of .sent files");
+    options.addOption("n", "shards", true, "Number of shards");
+    options.addOption(null, "by", true,
+        "Balance the shards by " + BY_BYTES + " or " + BY_SENTENCES + "; default: "
+        + BY_BYTES);
+    options.addOption("o", "output", true,
+        "Prefix of the manifests and the plan of a corpus; if not set: " + DEFAULT_PREFIX);
+    options.addOption("h", "help", false, "This help");
+
+    CommandLine cLine = null;
+    try {
+      cLine = parser.parse( options, args );
+    } catch( ParseException exp ) {
+      System.err.println( "Unexpected exception:" + exp.getMessage() );
+    }
+
+    if (cLine == null || cLine.hasOption("h")
+        || cLine.hasOption("split") == cLine.hasOption("merge")) {
+      System.err.println("Please, either split or merge");
+      formatter.printHelp(ShardTool.class.getSimpleName(), options);
+      System.exit(1);
+    }
+
+    if (cLine.hasOption("merge")) {
+      File plan = new File(cLine.getOptionValue("merge"));
+      if (! (plan.isFile() && plan.canRead())) {
+        System.err.println("I cannot read the file at " + plan);
+        System.exit(1);
+      }
+      List<String> problems = merge(cLine.getOptionValue("merge"));
+      for (String problem : problems) {
+        System.err.println(problem);
+      }
+      if (! problems.isEmpty()) {
+        System.err.println("The merge is not complete: " + problems.size() + " problems");
+        System.exit(2);
+      }
+      return;
+    }
+
+    int inputs = (cLine.hasOption("f") ? 1 : 0) + (cLine.hasOption("M") ? 1 : 0)
+        + (cLine.hasOption("d") ? 1 : 0);
+    if (inputs != 1 || ! cLine.hasOption("n")) {
+      System.err.println("Please, provide one input and the number of shards");
+      formatter.printHelp(ShardTool.class.getSimpleName(), options);
+      System.exit(1);
+    }
+    int shards = (int) Math.min(Integer.MAX_VALUE,
+        FarasaAnnotatorFactory.parsePositive(cLine.getOptionValue("n"), "number of shards"));
+    String by = cLine.getOptionValue("by", BY_BYTES);
+    if (! BY_BYTES.equals(by) && ! BY_SENTENCES.equals(by)) {
+      System.err.println("The shards are balanced by " + BY_BYTES + " or "
+          + BY_SENTENCES + ": " + by);
+      System.exit(1);
+    }
+    boolean bySentences = BY_SENTENCES.equals(by);
+
+    String plan;
+    if (cLine.hasOption("f")) {
+      File f = new File(cLine.getOptionValue("f"));
+      if (! (f.isFile() && f.canRead())) {
+        System.err.println("I cannot read the file at " + f);
+        System.exit(1);
+      }
+      plan = splitFile(f.getPath(), shards, bySentences);
+    } else {
+      List<File> books;
+      if (cLine.hasOption("d")) {
+        File dir = new File(cLine.getOptionValue("d"));
+        if (! dir.isDirectory()) {
+          System.err.println("I cannot read the directory " + dir);
+          System.exit(1);
+        }
+        books = CorpusProcessor.listBooks(dir, cLine.hasOption("markdown"));
+      } else {
+        File manifest = new File(cLine.getOptionValue("M"));
+        if (! (manifest.isFile() && manifest.canRead())) {
+          System.err.println("I cannot read the file at " + manifest);
+          System.exit(1);
+        }
+        books = CorpusProcessor.readManifest(manifest);
+      }
+      plan = splitCorpus(books, cLine.getOptionValue("o", DEFAULT_PREFIX), shards,
+          bySentences);
+    }
+    System.err.println("Plan written to " + plan);
+  }
+}
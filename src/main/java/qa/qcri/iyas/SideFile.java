@@ -0,0 +1,85 @@
+package qa.qcri.iyas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file that lists some of the sentences of an input file, one per line,
+ * starting with the number of the sentence (from 1) and optionally followed
+ * by a tab and more details. It is only created when the first entry is
+ * added, and every entry is written right away. A resumed run drops the
+ * entries past the sentences it keeps.
+ */
+class SideFile {
+
+  private final String path;
+
+  /** Null until the first entry */
+  private WriteFile file;
+
+  private long entries;
+
+  /**
+   * @param path
+   *          the file
+   * @param resumed
+   *          the number of sentences kept from a previous run; the entries
+   *          beyond them are dropped, and the whole file if 0
+   */
+  SideFile(String path, long resumed) throws IOException {
+    this.path = path;
+    File previous = new File(path);
+    if (! previous.exists()) {
+      return;
+    }
+    List<String> kept = new ArrayList<String>();
+    if (resumed > 0) {
+      for (String line : Files.readAllLines(previous.toPath(), StandardCharsets.UTF_8)) {
+        int tab = line.indexOf('\t');
+        String number = tab < 0 ? line : line.substring(0, tab);
+        if (! number.isEmpty() && Long.parseLong(number) <= resumed) {
+          kept.add(line);
+        }
+      }
+    }
+    if (kept.isEmpty()) {
+      Files.delete(previous.toPath());
+    } else {
+      Files.write(previous.toPath(), kept, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * @param sentence
+   *          the number of the sentence, from 1
+   * @param details
+   *          written after a tab; null for none
+   */
+  void add(long sentence, String details) {
+    if (file == null) {
+      file = new WriteFile(path, true);
+    }
+    file.writeLn(details == null ? String.valueOf(sentence) : sentence + "\t" + details);
+    file.flush();
+    entries++;
+  }
+
+  /** @return the number of entries added by this run */
+  long getEntries() {
+    return entries;
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  void close() {
+    if (file != null) {
+      file.close();
+    }
+  }
+}
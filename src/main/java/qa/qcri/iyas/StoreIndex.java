@@ -0,0 +1,270 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The index of an {@link AnnotationStore}: the offset of the last record of
+ * every key, by the first 64 bits of the key (the store checks the whole key
+ * in the record, so two keys sharing those bits cost a miss, never a wrong
+ * annotation).
+ *
+ * The entries known when the store was closed are kept in a file next to
+ * it (the store path plus {@link #FILE_SUFFIX}), sorted by key, and looked up
+ * with a binary search over a memory-mapped view, so they take no heap and
+ * need no scan of the store when it is opened again. The file records the
+ * end of the last record it covers; only the records appended after it are
+ * scanned, and they and the new ones are kept in a {@link LongTable} until
+ * the file is rewritten with all of them. Not thread-safe.
+ */
+final class StoreIndex {
+
+  static final String FILE_SUFFIX = ".index";
+
+  private static final byte[] MAGIC = "ARAPROC-INDEX".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int VERSION = 1;
+
+  /** Magic, version, covered, last record, its header and count, padded */
+  private static final int HEADER_LENGTH = 64;
+
+  private static final int ENTRY_LENGTH = 16;
+
+  /** Size of every memory-mapped region; a multiple of the entry length */
+  private static final long REGION_SIZE = 1L << 30;
+
+  /** The entries of the file, sorted by key */
+  private final MappedByteBuffer[] regions;
+
+  private final long count;
+
+  /** End of the last record covered by the file; -1 without file */
+  private final long covered;
+
+  /** Offset of the last record covered by the file; -1 if none */
+  private final long lastRecord;
+
+  /** Length and CRC of the last record covered by the file */
+  private final long lastHeader;
+
+  /** Entries not in the file, or newer than those in it */
+  private final LongTable recent = new LongTable();
+
+  /** An index without file */
+  StoreIndex() {
+    this(new MappedByteBuffer[0], 0, -1, -1, 0);
+  }
+
+  private StoreIndex(MappedByteBuffer[] regions, long count, long covered,
+      long lastRecord, long lastHeader) {
+    this.regions = regions;
+    this.count = count;
+    this.covered = covered;
+    this.lastRecord = lastRecord;
+    this.lastHeader = lastHeader;
+  }
+
+  /** @return the index file of the given store */
+  static File getFile(File store) {
+    return new File(store.getPath() + FILE_SUFFIX);
+  }
+
+  /**
+   * @param file
+   *          an index file
+   * @return
+   *        the index in the file; null if it does not exist or is not valid
+   */
+  static StoreIndex load(File file) throws IOException {
+    if (! file.isFile() || file.length() < HEADER_LENGTH) {
+      return null;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // read the whole header
+      }
+      header.flip();
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (! Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+        return null;
+      }
+      long covered = header.getLong();
+      long lastRecord = header.getLong();
+      long lastHeader = header.getLong();
+      long count = header.getLong();
+      if (count < 0 || channel.size() != HEADER_LENGTH + count * ENTRY_LENGTH) {
+        return null;
+      }
+      List<MappedByteBuffer> list = new ArrayList<MappedByteBuffer>();
+      long size = count * ENTRY_LENGTH;
+      for (long start = 0; start < size; start += REGION_SIZE) {
+        list.add(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + start,
+            Math.min(REGION_SIZE, size - start)));
+      }
+      return new StoreIndex(list.toArray(new MappedByteBuffer[list.size()]),
+          count, covered, lastRecord, lastHeader);
+    } finally {
+      // the mappings stay valid
+      raf.close();
+    }
+  }
+
+  /** @return the end of the last record covered by the file; -1 without file */
+  long getCovered() {
+    return covered;
+  }
+
+  /** @return the offset of the last record covered by the file; -1 if none */
+  long getLastRecord() {
+    return lastRecord;
+  }
+
+  /** @return the length and the CRC of that record, as in its header */
+  long getLastHeader() {
+    return lastHeader;
+  }
+
+  /**
+   * @return
+   *        the offset of the last record of the key, or -1 if it is not in
+   *        the index
+   */
+  long get(long key) {
+    long offset = recent.get(key);
+    return offset >= 0 ? offset : search(key);
+  }
+
+  void put(long key, long offset) {
+    recent.put(key, offset);
+  }
+
+  /** @return true if there are entries that are not in the file */
+  boolean isModified() {
+    return recent.size() > 0;
+  }
+
+  /** @return the number of keys */
+  long size() {
+    long size = count;
+    for (long key : recent.sortedKeys()) {
+      if (search(key) < 0) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  private long search(long key) {
+    long low = 0;
+    long high = count - 1;
+    while (low <= high) {
+      long middle = (low + high) >>> 1;
+      long k = keyAt(middle);
+      if (k < key) {
+        low = middle + 1;
+      } else if (k > key) {
+        high = middle - 1;
+      } else {
+        return offsetAt(middle);
+      }
+    }
+    return -1;
+  }
+
+  private long keyAt(long entry) {
+    long position = entry * ENTRY_LENGTH;
+    return regions[(int) (position / REGION_SIZE)].getLong((int) (position % REGION_SIZE));
+  }
+
+  private long offsetAt(long entry) {
+    long position = entry * ENTRY_LENGTH + 8;
+    return regions[(int) (position / REGION_SIZE)].getLong((int) (position % REGION_SIZE));
+  }
+
+  /** Receives the entries of an index */
+  interface Visitor {
+    void visit(long key, long offset) throws IOException;
+  }
+
+  /** Visits every key, in increasing order, with its latest offset */
+  void forEach(Visitor visitor) throws IOException {
+    long[] keys = recent.sortedKeys();
+    long i = 0;
+    int j = 0;
+    while (i < count || j < keys.length) {
+      if (j == keys.length || (i < count && keyAt(i) < keys[j])) {
+        visitor.visit(keyAt(i), offsetAt(i));
+        i++;
+        continue;
+      }
+      long key = keys[j++];
+      if (i < count && keyAt(i) == key) {
+        // superseded
+        i++;
+      }
+      visitor.visit(key, recent.get(key));
+    }
+  }
+
+  /**
+   * Writes all the entries to an index file, replacing it atomically
+   * @param file
+   *          the index file
+   * @param covered
+   *          the end of the last record of the store covered by the index
+   * @param lastRecord
+   *          the offset of that record; -1 if none
+   * @param lastHeader
+   *          its length and CRC, as in its header
+   */
+  void write(File file, long covered, long lastRecord, long lastHeader)
+      throws IOException {
+    final long[] count = new long[1];
+    forEach(new Visitor() {
+      @Override
+      public void visit(long key, long offset) {
+        count[0]++;
+      }
+    });
+    File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    try {
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(covered);
+      out.writeLong(lastRecord);
+      out.writeLong(lastHeader);
+      out.writeLong(count[0]);
+      out.write(new byte[HEADER_LENGTH - out.size()]);
+      forEach(new Visitor() {
+        @Override
+        public void visit(long key, long offset) throws IOException {
+          out.writeLong(key);
+          out.writeLong(offset);
+        }
+      });
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,128 @@
+package qa.qcri.iyas;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Serves the sentences annotated in previous runs from an
+ * {@link AnnotationStore} and delegates the rest to another annotator, whose
+ * results are added to the store. A stored annotation is only used if it
+ * includes all the requested layers; otherwise the missing ones are computed
+ * and stored together with the previous ones.
+ */
+public class StoredAnnotator implements Annotator {
+
+  private final Annotator delegate;
+
+  private final AnnotationStore store;
+
+  private final String model;
+
+  private final Set<Layer> layers;
+
+  /**
+   * @param delegate
+   *          computes the annotations of the sentences not in the store
+   * @param store
+   *          shared by all the annotators
+   * @param model
+   *          the identity of the models used by the delegate
+   * @param layers
+   *          the layers computed by the delegate
+   */
+  public StoredAnnotator(Annotator delegate, AnnotationStore store,
+      String model, Set<Layer> layers) {
+    this.delegate = delegate;
+    this.store = store;
+    this.model = model;
+    this.layers = layers.isEmpty()
+        ? EnumSet.noneOf(Layer.class)
+        : EnumSet.copyOf(layers);
+  }
+
+  @Override
+  public Annotation annotate(String text) throws Exception {
+    HashCode key = AnnotationStore.key(model, text);
+    Annotation stored = store.get(key);
+    if (stored != null && covers(stored)) {
+      return project(stored);
+    }
+    Annotation annotation = delegate.annotate(text);
+    if (! annotation.isTimedOut()) {
+      store.put(key, stored == null ? annotation : merge(stored, annotation));
+    }
+    return annotation;
+  }
+
+  /** Delegates the sentences not in the store together, as one batch */
+  @Override
+  public List<Annotation> annotate(List<String> texts) throws Exception {
+    HashCode[] keys = new HashCode[texts.size()];
+    Annotation[] stored = new Annotation[texts.size()];
+    Annotation[] annotations = new Annotation[texts.size()];
+    List<String> missing = new ArrayList<String>();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = AnnotationStore.key(model, texts.get(i));
+      stored[i] = store.get(keys[i]);
+      if (stored[i] != null && covers(stored[i])) {
+        annotations[i] = project(stored[i]);
+      } else {
+        missing.add(texts.get(i));
+      }
+    }
+    if (missing.isEmpty()) {
+      return Arrays.asList(annotations);
+    }
+    Iterator<Annotation> computed = delegate.annotate(missing).iterator();
+    for (int i = 0; i < keys.length; i++) {
+      if (annotations[i] == null) {
+        annotations[i] = computed.next();
+        if (! annotations[i].isTimedOut()) {
+          store.put(keys[i], stored[i] == null
+              ? annotations[i]
+              : merge(stored[i], annotations[i]));
+        }
+      }
+    }
+    return Arrays.asList(annotations);
+  }
+
+  private boolean covers(Annotation annotation) {
+    for (Layer layer : layers) {
+      if (! annotation.has(layer)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return the requested layers of the annotation */
+  private Annotation project(Annotation annotation) {
+    Annotation projection = new Annotation();
+    for (Layer layer : layers) {
+      projection.set(layer, annotation.get(layer));
+    }
+    return projection;
+  }
+
+  /** @return the layers of both annotations, those of the newer one first */
+  private static Annotation merge(Annotation older, Annotation newer) {
+    Annotation merged = new Annotation();
+    for (Layer layer : Layer.values()) {
+      merged.set(layer, newer.has(layer) ? newer.get(layer) : older.get(layer));
+    }
+    return merged;
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+}
@@ -0,0 +1,133 @@
+package qa.qcri.iyas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.qcri.farasa.segmenter.Farasa;
+
+/**
+ * A bounded cache of the Farasa segmentation and lemmatization of single word
+ * forms. Classical Arabic is very Zipfian, so a few thousand forms cover most
+ * of the tokens of a book.
+ *
+ * A line is split on whitespace and every token is looked up independently;
+ * Farasa is only called for the forms that are not in the cache, and each
+ * of them on its own. This relies on Farasa analysing every whitespace token
+ * regardless of its context, which is how the segmenter and the lemmatizer
+ * work. Lines without tokens are passed to Farasa untouched.
+ *
+ * The cache is thread-safe and meant to be shared by all the workers (each
+ * with its own Farasa instance). The least recently used forms are evicted
+ * once the maximum size is reached.
+ */
+public class WordCache {
+
+  private final Cache<String, String[]> segments;
+
+  private final Cache<String, String[]> lemmas;
+
+  /**
+   * @param maximumSize
+   *          maximum number of word forms kept for each of segmentation and
+   *          lemmatization
+   */
+  public WordCache(long maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("The cache size must be positive");
+    }
+    segments = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+    lemmas = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Same as {@code farasa.segmentLine(line)}
+   * @param farasa
+   *          the segmenter of the calling thread, used for the unknown forms
+   * @param line
+   *          one sentence
+   * @return
+   *          the segmented words (a fresh list the caller can modify)
+   */
+  public ArrayList<String> segmentLine(Farasa farasa, String line) throws Exception {
+    String[] tokens = tokenize(line);
+    if (tokens.length == 0) {
+      return farasa.segmentLine(line);
+    }
+    ArrayList<String> output = new ArrayList<String>(tokens.length * 2);
+    for (String token : tokens) {
+      String[] segmented = segments.getIfPresent(token);
+      if (segmented == null) {
+        segmented = farasa.segmentLine(token).toArray(new String[0]);
+        segments.put(token, segmented);
+      }
+      Collections.addAll(output, segmented);
+    }
+    return output;
+  }
+
+  /**
+   * Same as {@code farasa.lemmatizeLine(line)}
+   * @param farasa
+   *          the lemmatizer of the calling thread, used for the unknown forms
+   * @param line
+   *          one sentence
+   * @return
+   *          the lemmas (a fresh list the caller can modify)
+   */
+  public ArrayList<String> lemmatizeLine(Farasa farasa, String line) {
+    String[] tokens = tokenize(line);
+    if (tokens.length == 0) {
+      return farasa.lemmatizeLine(line);
+    }
+    ArrayList<String> output = new ArrayList<String>(tokens.length);
+    for (String token : tokens) {
+      String[] lemmatized = lemmas.getIfPresent(token);
+      if (lemmatized == null) {
+        lemmatized = farasa.lemmatizeLine(token).toArray(new String[0]);
+        lemmas.put(token, lemmatized);
+      }
+      Collections.addAll(output, lemmatized);
+    }
+    return output;
+  }
+
+  private static String[] tokenize(String line) {
+    String trimmed = line.trim();
+    return trimmed.isEmpty()
+        ? new String[0]
+        : trimmed.split("\\s+");
+  }
+
+  /** @return hits and misses of the segmentation cache */
+  public CacheStats getSegmentStats() {
+    return segments.stats();
+  }
+
+  /** @return hits and misses of the lemmatization cache */
+  public CacheStats getLemmaStats() {
+    return lemmas.stats();
+  }
+
+  /**
+   * @return
+   *        a one-line summary of the hit rates
+   */
+  public String getReport() {
+    return String.format("Word cache: segments %s; lemmas %s",
+        describe(getSegmentStats()), describe(getLemmaStats()));
+  }
+
+  private static String describe(CacheStats stats) {
+    return String.format("%d lookups, %.1f%% hits, %d evictions",
+        stats.requestCount(), 100 * stats.hitRate(), stats.evictionCount());
+  }
+}
@@ -0,0 +1,188 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * The child JVM started by a {@link ProcessAnnotator}: it loads the models
+ * of the requested layers once and annotates the sentences that the
+ * coordinator writes to its standard input, answering on its standard
+ * output. Everything else, including what Farasa prints, goes to stderr.
+ *
+ * The protocol is made of framed batches. A request is the number of
+ * sentences followed by the sentences; the worker answers with one record
+ * per sentence, in order, flushed as soon as the sentence is annotated: a
+ * status byte followed by either the line of every layer, in the order of
+ * {@link Layer}, or an error message. Every string is its length in bytes
+ * followed by its UTF-8 bytes. The worker writes {@link #READY} once the
+ * models are loaded and exits when its input is closed; it dies on errors
+ * such as running out of memory, and the coordinator starts a new one.
+ */
+public class WorkerProcess {
+
+  /** Written once the models are loaded */
+  static final int READY = 0x41726150;
+
+  static final byte STATUS_OK = 0;
+
+  static final byte STATUS_ERROR = 1;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private WorkerProcess() {
+  }
+
+  /**
+   * @param pathToModel
+   *          path to the Farasa parser model
+   * @param layers
+   *          the layers to compute
+   * @param wordCache
+   *          the size of the word cache of the worker; 0 for none
+   * @param heapMb
+   *          the maximum heap of the worker, in MB; 0 for the JVM default
+   * @return
+   *        the command that starts a worker with the classpath of this JVM
+   */
+  static List<String> command(String pathToModel, Set<Layer> layers,
+      long wordCache, long heapMb) {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java")
+        .getPath());
+    if (heapMb > 0) {
+      command.add("-Xmx" + heapMb + "m");
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(WorkerProcess.class.getName());
+    command.add("-m");
+    command.add(pathToModel);
+    for (Layer layer : layers) {
+      command.add("-" + layer.getOption());
+    }
+    if (wordCache > 0) {
+      command.add("--word-cache");
+      command.add(String.valueOf(wordCache));
+    }
+    return command;
+  }
+
+  static void writeText(DataOutputStream out, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readText(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Corrupted frame: negative length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Answers the batches until the input is closed */
+  private static void serve(Annotator annotator, Set<Layer> layers,
+      DataInputStream in, DataOutputStream out) throws IOException {
+    out.writeInt(READY);
+    out.flush();
+    while (true) {
+      int size;
+      try {
+        size = in.readInt();
+      } catch (EOFException e) {
+        return;
+      }
+      String[] texts = new String[size];
+      for (int i = 0; i < size; i++) {
+        texts[i] = readText(in);
+      }
+      for (String text : texts) {
+        Annotation annotation;
+        try {
+          annotation = annotator.annotate(text);
+        } catch (Exception e) {
+          out.writeByte(STATUS_ERROR);
+          writeText(out, e.toString());
+          out.flush();
+          continue;
+        }
+        out.writeByte(STATUS_OK);
+        for (Layer layer : layers) {
+          writeText(out, annotation.get(layer));
+        }
+        out.flush();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    // the protocol owns the standard output
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(FileDescriptor.out), BUFFER_SIZE));
+    System.setOut(System.err);
+
+    Options options = new Options();
+    options.addOption("m", "model", true, "Path to the farasa model");
+    for (Layer layer : Layer.values()) {
+      options.addOption(layer.getOption(), layer.getLongOption(), false,
+          "Compute " + layer.getLabel());
+    }
+    options.addOption(null, "word-cache", true,
+        "Cache the segments and lemmas of up to this number of word forms");
+    CommandLineParser parser = new DefaultParser();
+    CommandLine cLine = null;
+    try {
+      cLine = parser.parse(options, args);
+    } catch (ParseException exp) {
+      System.err.println("Unexpected exception:" + exp.getMessage());
+    }
+    if (cLine == null || ! cLine.hasOption("m")) {
+      System.err.println("A worker process needs the model and the layers");
+      System.exit(1);
+    }
+
+    Set<Layer> layers = EnumSet.noneOf(Layer.class);
+    for (Layer layer : Layer.values()) {
+      if (cLine.hasOption(layer.getOption())) {
+        layers.add(layer);
+      }
+    }
+    FarasaAnnotatorFactory factory =
+        new FarasaAnnotatorFactory(cLine.getOptionValue("m"), layers);
+    if (cLine.hasOption("word-cache")) {
+      factory.setWordCache(new WordCache(FarasaAnnotatorFactory.parsePositive(
+          cLine.getOptionValue("word-cache"), "word cache size")));
+    }
+
+    try {
+      serve(factory.newAnnotator(), layers,
+          new DataInputStream(new BufferedInputStream(System.in, BUFFER_SIZE)), out);
+    } catch (Throwable e) {
+      // models that cannot be loaded, out of memory, a closed pipe...
+      e.printStackTrace();
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
@@ -1,8 +1,6 @@
 package qa.qcri.iyas;
 
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.file.Paths;
@@ -11,32 +9,71 @@ import com.google.common.io.Files;
 
 public class WriteFile {
 
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
 	private BufferedWriter out;
 
 	public WriteFile() {
 		this.out = new BufferedWriter(new OutputStreamWriter(System.out));
 	}
 
+	/**
+	 * For subclasses that write to an already open writer
+	 *
+	 * @param out
+	 */
+	protected WriteFile(BufferedWriter out) {
+		this.out = out;
+	}
+
 	private static BufferedWriter open(String path) {
-		try {
-			Files.createParentDirs(Paths.get(path).toFile());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		return open(path, false);
+	}
+
+	private static BufferedWriter open(String path, boolean append) {
 		BufferedWriter out = null;
 		try {
-			out = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(new File(path)), "UTF-8"));
+			out = open(path, append, DEFAULT_BUFFER_SIZE);
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
 		return out;
 	}
 
+	/**
+	 * Opens a file as the constructors do, but reporting the errors
+	 *
+	 * @param path
+	 * @param append
+	 *            if true, the contents are written after the current ones
+	 * @param bufferSize
+	 *            the size of the buffer, in chars
+	 */
+	static BufferedWriter open(String path, boolean append, int bufferSize)
+			throws IOException {
+		Files.createParentDirs(Paths.get(path).toFile());
+		return new BufferedWriter(new OutputStreamWriter(
+				Compression.openOutput(path, append), "UTF-8"), bufferSize);
+	}
+
+	/**
+	 * @param path
+	 *            the output file; it is compressed if its name has the
+	 *            extension of one of the {@link Compression} formats
+	 */
 	public WriteFile(String path) {
 		this.out = open(path);
 	}
 
+	/**
+	 * @param path
+	 * @param append
+	 *            if true, the contents are written after the current ones
+	 */
+	public WriteFile(String path, boolean append) {
+		this.out = open(path, append);
+	}
+
 	public WriteFile(String outputDir, String file) {
 		String path = Paths.get(outputDir, file).toString();
 		this.out = open(path);
@@ -59,6 +96,14 @@ public class WriteFile {
 		}
 	}
 
+	public void flush() {
+		try {
+			this.out.flush();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
 	public void close() {
 		if (this.out != null) {
 			try {
@@ -0,0 +1,88 @@
+package qa.qcri.iyas;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Differential test of {@link MarkdownCleaner}: on every line of a sample of
+ * OpenITI mARkdown, its output must be the one of the original chain of
+ * {@code String.replaceAll} calls.
+ */
+public class MarkdownCleanerTest extends TestCase {
+
+  private static final String SAMPLE = "/qa/qcri/iyas/openiti-sample.txt";
+
+  public void testSameOutputAsReplaceAllChain() throws IOException {
+    MarkdownCleaner cleaner = new MarkdownCleaner();
+    List<String> lines = readSample();
+    assertFalse("Empty sample", lines.isEmpty());
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      assertEquals("Line " + (i + 1) + ": " + line,
+          cleanReference(line), cleaner.clean(line));
+    }
+  }
+
+  public void testSameOutputWhenReused() throws IOException {
+    MarkdownCleaner cleaner = new MarkdownCleaner();
+    List<String> lines = readSample();
+    List<String> first = new ArrayList<String>();
+    for (String line : lines) {
+      first.add(cleaner.clean(line));
+    }
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      assertEquals(first.get(i), cleaner.clean(lines.get(i)));
+    }
+  }
+
+  public void testPlainLineIsNotCopied() {
+    String line = "هذا سطر عادي";
+    assertSame(line, new MarkdownCleaner().clean(line));
+  }
+
+  private static List<String> readSample() throws IOException {
+    InputStream in = MarkdownCleanerTest.class.getResourceAsStream(SAMPLE);
+    assertNotNull("Missing " + SAMPLE, in);
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /** The original chain of substitutions, the reference for the cleaner */
+  static String cleanReference(String line) {
+    return line
+        .replaceAll(MarkdownCleaner.SUBJECT_PATTERN, MarkdownCleaner.SUBJECT_SUBST)
+        .replaceAll(MarkdownCleaner.HEADER_PATTERN, MarkdownCleaner.HEADER_SUBST)
+        .replaceAll(MarkdownCleaner.EDITORIAL_PATTERN, MarkdownCleaner.EDITORIAL_SUBST)
+        .replaceAll(MarkdownCleaner.DICTIONARY_PATTERN, MarkdownCleaner.DICTIONARY_SUBST)
+        .replaceAll(MarkdownCleaner.HISTORY_PATTERN, MarkdownCleaner.HISTORY_SUBST)
+        .replaceAll(MarkdownCleaner.GENERIC_PATTERN, MarkdownCleaner.GENERIC_SUBST)
+        .replaceAll(MarkdownCleaner.BIOGRAPHY_PATTERN, MarkdownCleaner.BIOGRAPHY_SUBST)
+        .replaceAll(MarkdownCleaner.PAGE_NUMBER_PATTERN, MarkdownCleaner.PAGE_NUMBER_SUBST)
+        .replaceAll(MarkdownCleaner.TAG_PARAGRAPH_BEGINS, MarkdownCleaner.PAR_DIVISOR)
+        .replaceAll(MarkdownCleaner.TAG_PARAGRAPH_CONTINUES, " ")
+        .replaceAll(MarkdownCleaner.SPACES_PATTERN, MarkdownCleaner.SPACES_SUBST)
+        .replaceAll(MarkdownCleaner.LINE_NUMBER, MarkdownCleaner.LINE_SUBST)
+        .replaceAll(MarkdownCleaner.VERSE_HEMISTICH_PATTERN,
+            MarkdownCleaner.VERSE_HEMISTICH_SUBST)
+        .replaceAll(MarkdownCleaner.MILESTONE_PATTERN, MarkdownCleaner.MILESTONE_SUBST)
+        .replaceAll(MarkdownCleaner.LOOSE_PERCENT_PATTERN,
+            MarkdownCleaner.LOOSE_PERCENT_SUBST);
+  }
+}